@@ -0,0 +1,42 @@
+package benchmarks;
+
+import org.Account;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic accounts and temporary directories shared by the benchmarks
+ */
+class BenchmarkAccounts {
+
+    static Account account(int i) {
+        Account account = new Account("user" + i, "password" + i);
+        account.setName("Name" + i);
+        account.setSex(i % 2 == 0 ? Account.Sex.Male : Account.Sex.Female);
+        account.setBirthday(LocalDate.ofEpochDay(i % 20000));
+        return account;
+    }
+
+    static byte[] json(int i) {
+        Account account = account(i);
+        return ("{\"login\":\"" + account.getLogin() + "\",\"password\":\"" + account.getPassword() +
+                "\",\"name\":\"" + account.getName() + "\",\"sex\":\"" + account.getSex() +
+                "\",\"birthday\":\"" + account.getBirthday() + "\"}").getBytes();
+    }
+
+    static Path tempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import org.Account;
+import org.AccountStorageFactory;
+import org.IndexedAccountStorage;
+import org.PasswordService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.services.AccountResource;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Endpoints of AccountResource called in-process, from a request body stream to a written response,
+ * without the HTTP container in between
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceBenchmark {
+
+    @Param({"10000"})
+    public int accounts;
+
+    @Param({"files", "log"})
+    public String storage;
+
+    @Param({"0", "100000"})
+    public int cacheEntries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkAccounts.tempDirectory("resource-benchmark");
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.dataPath", directory.toString() + "/");
+        settings.setProperty("usermanager.storage", storage);
+        settings.setProperty("usermanager.cache.maxEntries", String.valueOf(cacheEntries));
+        // hashing is not what is measured here, keep the set up fast
+        settings.setProperty("usermanager.password.iterations", "1000");
+        accountStorage = new IndexedAccountStorage(AccountStorageFactory.create(settings));
+        passwords = PasswordService.create(settings);
+        resource = new AccountResource(accountStorage, passwords);
+
+        for(int i = 0; i < accounts; i++) {
+            resource.createAccount(new ByteArrayInputStream(BenchmarkAccounts.json(i)));
+        }
+        created = new Account[accounts];
+        for(int i = 0; i < accounts; i++) {
+            created[i] = accountStorage.get("user" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        resource.close();
+        passwords.close();
+        accountStorage.close();
+        BenchmarkAccounts.delete(directory);
+    }
+
+    @Benchmark
+    public void getAccount(Blackhole blackhole) throws IOException {
+        StreamingOutput output = (StreamingOutput) resource.getAccount(
+                "user" + ThreadLocalRandom.current().nextInt(accounts), null).getEntity();
+        output.write(new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public Object createAccount() {
+        return resource.createAccount(new ByteArrayInputStream(
+                BenchmarkAccounts.json(ThreadLocalRandom.current().nextInt(accounts))));
+    }
+
+    @Benchmark
+    public Object updateAccount() {
+        return resource.updateAccount("user" + ThreadLocalRandom.current().nextInt(accounts), null,
+                new ByteArrayInputStream(UPDATE));
+    }
+
+    /**
+     * Deletes a random account and stores it back directly in the storage, so this costs a delete
+     * through the endpoint and a plain store, without the hashing of {@link #createAccount()}
+     */
+    @Benchmark
+    public void deleteAccount() throws IOException {
+        int i = ThreadLocalRandom.current().nextInt(accounts);
+        resource.deleteAccount("user" + i);
+        accountStorage.store(new Account(created[i]));
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+        BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+        }
+
+        private final Blackhole blackhole;
+    }
+
+    private static final byte[] UPDATE = "{\"name\":\"Changed\"}".getBytes();
+
+    private Path directory;
+    private IndexedAccountStorage accountStorage;
+    private PasswordService passwords;
+    private AccountResource resource;
+    private Account[] created;
+}
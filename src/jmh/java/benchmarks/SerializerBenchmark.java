@@ -0,0 +1,69 @@
+package benchmarks;
+
+import org.Account;
+import org.AccountBinarySerializer;
+import org.AccountJsonSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Account encoding and decoding on the request path
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Setup
+    public void setUp() throws IOException {
+        account = BenchmarkAccounts.account(1);
+        json = BenchmarkAccounts.json(1);
+        partialJson = "{\"name\":\"Changed\",\"birthday\":\"1999-12-31\"}".getBytes();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountBinarySerializer.toBinary(account, os);
+        binary = os.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] toJSON() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        AccountJsonSerializer.toJSON(account, os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public Account createFromJSON() throws IOException {
+        return AccountJsonSerializer.createFromJSON(new ByteArrayInputStream(json));
+    }
+
+    @Benchmark
+    public Account updateFromJSON() throws IOException {
+        Account copy = new Account(account);
+        AccountJsonSerializer.updateFromJSON(copy, new ByteArrayInputStream(partialJson));
+        return copy;
+    }
+
+    @Benchmark
+    public byte[] toBinary() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(128);
+        AccountBinarySerializer.toBinary(account, os);
+        return os.toByteArray();
+    }
+
+    @Benchmark
+    public Account createFromBinary() throws IOException {
+        return AccountBinarySerializer.createFromBinary(new ByteArrayInputStream(binary));
+    }
+
+    private Account account;
+    private byte[] json;
+    private byte[] partialJson;
+    private byte[] binary;
+}
@@ -0,0 +1,79 @@
+package benchmarks;
+
+import org.AccountStorage;
+import org.AccountStorageFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage operations on random logins of a prepopulated temporary directory.
+ * Filling the directory with a million accounts takes a while, use '-p accounts=1000' for a quick run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int accounts;
+
+    /**
+     * storage type and encoding, as accepted by {@link AccountStorageFactory}
+     */
+    @Param({"files/json", "files/binary", "log/json", "log/binary", "log-mmap/json"})
+    public String storage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchmarkAccounts.tempDirectory("storage-benchmark");
+        String[] type = storage.split("/");
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.dataPath", directory.toString() + "/");
+        settings.setProperty("usermanager.storage", type[0].startsWith("log") ? "log" : "files");
+        settings.setProperty("usermanager.log.mmap", String.valueOf(type[0].equals("log-mmap")));
+        settings.setProperty("usermanager.encoding", type[1]);
+        settings.setProperty("usermanager.cache.maxEntries", "0");
+        accountStorage = AccountStorageFactory.create(settings);
+
+        for(int i = 0; i < accounts; i++) {
+            accountStorage.store(BenchmarkAccounts.account(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        accountStorage.close();
+        BenchmarkAccounts.delete(directory);
+    }
+
+    @Benchmark
+    public Object get() throws IOException {
+        return accountStorage.get("user" + ThreadLocalRandom.current().nextInt(accounts));
+    }
+
+    @Benchmark
+    public void store() throws IOException {
+        accountStorage.store(BenchmarkAccounts.account(ThreadLocalRandom.current().nextInt(accounts)));
+    }
+
+    /**
+     * The account is stored back right away to keep the number of accounts constant
+     */
+    @Benchmark
+    public void removeAndStore() throws IOException {
+        int i = ThreadLocalRandom.current().nextInt(accounts);
+        accountStorage.remove("user" + i);
+        accountStorage.store(BenchmarkAccounts.account(i));
+    }
+
+    private Path directory;
+    private AccountStorage accountStorage;
+}
@@ -9,8 +9,9 @@ export function createDefault() {
 // login: contains only letters, digits and underscores
 // birthday: a date in YYYY-MM-DD format
 // sex: either Male or Female
+// password: required if withPassword is true, accounts got from the server have none
 // throws an Error instance if the account is invalid
-export function validate(account) {
+export function validate(account, withPassword) {
     if(typeof(account.birthday) != "string" || isNaN(Date.parse(account.birthday))) {
         throw new Error("Invalid birthday:"+account.birthday+"; Should be in format YYYY-MM-DD");
     }
@@ -18,7 +19,8 @@ export function validate(account) {
 
     if (typeof (account.name) != "string")
         throw new Error("Invalid name")
-    if(typeof (account.password) != "string")
+    if(withPassword ? typeof (account.password) != "string" || account.password.length == 0
+                    : account.password !== undefined && typeof (account.password) != "string")
         throw new Error("Invalid password")
     if(typeof (account.login) != "string" || /[^a-zA-Z0-9_]/.test(account.login))
         throw new Error("Invalid login: "+account.login+"; Should contain only letters, digits, and underscores")
@@ -33,7 +35,7 @@ export function validate(account) {
 
 // post request
 export async function post(account, apiAddress) {
-    validate(account)
+    validate(account, true)
 
     await axios({
         method:'post',
@@ -48,14 +50,18 @@ export async function get(login, apiAddress) {
     return account
 }
 
-// put request
+// put request, the password is sent only if it was changed
 export async function update(account, login, apiAddress) {
-    validate(account)
+    validate(account, false)
+    let changes = Object.assign({}, account)
+    if(!changes.password) {
+        delete changes.password
+    }
 
     await axios({
         method:'put',
         url: apiAddress+login,
-        data: account
+        data: changes
     })
 }
 
@@ -26,7 +26,7 @@ function AccountView(props) {
     let account = null
     if(props.hasOwnProperty("account")) {
         try {
-            account_utils.validate(props.account)
+            account_utils.validate(props.account, false)
             account = props.account
         } catch (e) {
             return (<p style={{color: "red"}}>{e.toString()}</p>) 
@@ -52,8 +52,6 @@ function AccountView(props) {
             <div>{account.sex}</div>
             <div>Login:</div>
             <div>{account.login}</div>
-            <div>Password:</div>
-            <div>{account.password}</div>
         </div>
         </div>)
 }
@@ -64,6 +62,7 @@ function AccountView(props) {
 // has a Back button in the top menu and a Save button in a form with account fields
 // Properties:
 // account: JSON object, an account to be edited
+// newAccount: true if the account is created, so its password is required rather than left unchanged
 // onBack: a callback for the Back button
 // onSubmit: a callback for the Save button
 function AccountEdit(props) {
@@ -104,7 +103,8 @@ function AccountEdit(props) {
                            (event)=>{account.login = event.target.value
                        }} />
                 <div>Password:</div>
-                <input type="text" defaultValue={account.password} 
+                <input type="password" defaultValue=""
+                       placeholder={props.newAccount ? "" : "unchanged"}
                        onChange={(event)=>{
                            account.password = event.target.value
                        }} />
@@ -185,6 +185,8 @@ class Editor extends React.Component {
 
     handleSubmit(event) {
         account_utils.update(this.state.account, this.state.initialLogin, apiAddress).then(()=>{
+            // the server never returns the password, neither does the view keep it
+            delete this.state.account.password
             this.setState({editMode: false, initialLogin: this.state.account.login})
         }).catch((error) => {
             alert(error)
@@ -224,7 +226,7 @@ class Creator extends React.Component {
     }
 
     render() {
-        return (<AccountEdit account={this.state.account} 
+        return (<AccountEdit account={this.state.account} newAccount={true}
                              onSubmit={this.handleSubmit.bind(this)}
                              onBack={this.props.onBack} />)
     }
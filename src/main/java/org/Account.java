@@ -9,6 +9,17 @@ public class Account  {
         this.password = password;
     }
 
+    /**
+     * Creates a copy of the given account, so that changes to one of them are not visible through the other
+     */
+    public Account(Account other) {
+        this.name = other.name;
+        this.login = other.login;
+        this.password = other.password;
+        this.birthday = other.birthday;
+        this.sex = other.sex;
+    }
+
     public enum Sex {
         Male, Female;
 
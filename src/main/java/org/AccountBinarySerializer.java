@@ -0,0 +1,90 @@
+package org;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+
+/**
+ * Serializes accounts to a compact binary format, that is cheaper to read than JSON.
+ * Record layout (big-endian):
+ * byte version - currently 1
+ * login, password, name - unsigned short length followed by that many bytes of UTF-8
+ * int birthday - days since 1970-01-01
+ * byte sex - 0 for Male, 1 for Female
+ */
+public class AccountBinarySerializer {
+
+    /**
+     * Writes the binary record of the account to the stream
+     * @throws IOException if something is wrong with the stream
+     * @throws IllegalArgumentException if some field is longer than 65535 bytes in UTF-8
+     */
+    public static void toBinary(Account account, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeByte(VERSION);
+        writeString(out, account.getLogin());
+        writeString(out, account.getPassword());
+        writeString(out, account.getName());
+        out.writeInt((int) account.getBirthday().toEpochDay());
+        out.writeByte(account.getSex() == Account.Sex.Male ? 0 : 1);
+        out.flush();
+    }
+
+    /**
+     * Reads an account from the binary record in the stream
+     * @throws IOException if something is wrong with the stream
+     * @throws IllegalArgumentException if the stream is empty
+     * @throws AccountJsonSerializer.InvalidDescription if the record is cut off, has unknown version or invalid values
+     */
+    public static Account createFromBinary(InputStream is) throws IOException {
+        if(is.available() == 0) {
+            throw new IllegalArgumentException("Input stream is empty!");
+        }
+        DataInputStream in = new DataInputStream(is);
+        try {
+            int version = in.readUnsignedByte();
+            if(version != VERSION) {
+                throw new AccountJsonSerializer.InvalidDescription("Unknown binary format version " + version);
+            }
+            Account account = new Account(readString(in), readString(in));
+            account.setName(readString(in));
+            int birthday = in.readInt();
+            if(birthday < MIN_BIRTHDAY || birthday > MAX_BIRTHDAY) {
+                throw new AccountJsonSerializer.InvalidDescription("Invalid birthday: day " + birthday);
+            }
+            account.setBirthday(LocalDate.ofEpochDay(birthday));
+            int sex = in.readUnsignedByte();
+            if(sex > 1) {
+                throw new AccountJsonSerializer.InvalidDescription("Invalid sex: " + sex);
+            }
+            account.setSex(sex == 0 ? Account.Sex.Male : Account.Sex.Female);
+            return account;
+
+        } catch (EOFException e) {
+            throw new AccountJsonSerializer.InvalidDescription("Binary record is cut off");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xffff) {
+            throw new IllegalArgumentException("Field is too long for the binary format");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static final int VERSION = 1;
+    /**
+     * Days since the epoch of the birthdays a JSON description can have, years 0000 to 9999
+     */
+    private static final long MIN_BIRTHDAY = LocalDate.of(0, 1, 1).toEpochDay();
+    private static final long MAX_BIRTHDAY = LocalDate.of(9999, 12, 31).toEpochDay();
+}
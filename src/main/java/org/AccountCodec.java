@@ -0,0 +1,60 @@
+package org;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * An encoding of accounts used by a storage on disk.
+ * The REST interface always speaks JSON regardless of the encoding of the storage.
+ */
+public interface AccountCodec {
+
+    /**
+     * Writes the account to the stream
+     * @throws IOException if something is wrong with the stream
+     */
+    void write(Account account, OutputStream os) throws IOException;
+
+    /**
+     * Reads an account from the stream
+     * @throws IOException if something is wrong with the stream
+     * @throws IllegalArgumentException if the stream is empty
+     * @throws AccountJsonSerializer.InvalidDescription if the stream doesn't contain a valid account
+     */
+    Account read(InputStream is) throws IOException;
+
+    /**
+     * @return extension of files in this encoding, including the dot
+     */
+    String getExtension();
+
+    AccountCodec JSON = new AccountCodec() {
+        public void write(Account account, OutputStream os) throws IOException {
+            AccountJsonSerializer.toJSON(account, os);
+        }
+
+        public Account read(InputStream is) throws IOException {
+            return AccountJsonSerializer.createFromJSON(is, AccountValidator.DEFAULT);
+        }
+
+        public String getExtension() {
+            return ".json";
+        }
+    };
+
+    AccountCodec BINARY = new AccountCodec() {
+        public void write(Account account, OutputStream os) throws IOException {
+            AccountBinarySerializer.toBinary(account, os);
+        }
+
+        public Account read(InputStream is) throws IOException {
+            return AccountBinarySerializer.createFromBinary(is);
+        }
+
+        public String getExtension() {
+            return ".bin";
+        }
+    };
+}
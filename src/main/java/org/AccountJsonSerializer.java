@@ -2,43 +2,59 @@ package org;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
  * This class is intended to wrap Jackson tools of processing JSON and
  * simplify the account serialization/deserialization to/from JSON
- * Also it checks the validity of account descriptions, for some fields are restricted to appropriate formats
+ * Also it checks the validity of account descriptions with an {@link AccountValidator}, by default
  * login - should contain only letters, digits and '_'
  * birthday - should be a date in the format of YYYY-MM-DD
  * sex - should be either Male or Female
+ * Descriptions are read token by token: every field is read, checked and converted once, no JSON tree is built.
+ * All violations of a description are collected and reported together.
  */
 public class AccountJsonSerializer {
 
     /**
-     * Serializes given account to JSON, writing generated JSON object to the stream
+     * Serializes given account to JSON, writing generated JSON object to the stream.
+     * The stream is neither flushed nor closed, so several accounts may be written to a buffered stream
      * @throws IOException if something is wrong with the stream
      */
     public static void toJSON(Account account, OutputStream os) throws IOException {
-        JsonFactory f = new JsonFactory();
+        write(account, os, true);
+    }
+
+    /**
+     * Serializes given account to JSON without its password, for the clients of the service
+     * @see #toJSON(Account, OutputStream)
+     */
+    public static void toPublicJSON(Account account, OutputStream os) throws IOException {
+        write(account, os, false);
+    }
 
-        JsonGenerator g = f.createGenerator(os);
+    private static void write(Account account, OutputStream os, boolean withPassword) throws IOException {
+        JsonGenerator g = FACTORY.createGenerator(os);
 
         g.writeStartObject();
         g.writeStringField("login", account.getLogin());
         g.writeStringField("name", account.getName());
         g.writeStringField("sex", account.getSex().toString());
         g.writeStringField("birthday", account.getBirthday().toString());
-        g.writeStringField("password", account.getPassword());
+        if(withPassword) {
+            g.writeStringField("password", account.getPassword());
+        }
         g.writeEndObject();
         g.close();
 
@@ -46,45 +62,56 @@ public class AccountJsonSerializer {
 
     /**
      * Creates an account from JSON description, contained in the stream, and initializes
-     * the account fields from it.
+     * the account fields from it. The description is checked with the validator set by {@link #setValidator}
      * @param is contains a JSON object that represents an account.
      * @throws IOException if something is wrong with the stream
      * @throws IllegalArgumentException if the stream is empty
      * @throws InvalidDescription if a description in the stream has an invalid format
      */
     public static Account createFromJSON(InputStream is) throws IOException {
+        return createFromJSON(is, validator);
+    }
+
+    /**
+     * Creates an account from JSON description, checked with the given validator
+     * @see #createFromJSON(InputStream)
+     */
+    public static Account createFromJSON(InputStream is, AccountValidator validator) throws IOException {
         if(is.available() == 0) {
             throw new IllegalArgumentException("Input stream is empty!");
         }
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode root = mapper.readTree(is);
-        Account account;
-
-        validateJsonAsFullAccount(root);
+        Fields fields = readFields(is, validator);
+        fields.checkComplete();
+        fields.throwViolations();
 
-        String login, password;
-        login = root.get("login").asText();
-        password = root.get("password").asText();
-        account = new Account(login, password);
-        updateFromJSON(account, root);
+        Account account = new Account(fields.login, fields.password);
+        fields.applyTo(account);
         return account;
     }
 
     /**
-     * Sets some fields of the given account to values from a JSON object in the stream
+     * Sets some fields of the given account to values from a JSON object in the stream.
+     * The account is not changed if the description is invalid
      * @param is contains a JSON object that represents an account. Some account fields may be missing
      * @throws IOException if something is wrong with the stream
      * @throws IllegalArgumentException if the stream is empty
      * @throws InvalidDescription if a description in the stream has an invalid format
      */
     public static void updateFromJSON(Account account, InputStream is) throws IOException {
+        updateFromJSON(account, is, validator);
+    }
+
+    /**
+     * Sets some fields of the given account to values from a JSON object in the stream, checked with the given validator
+     * @see #updateFromJSON(Account, InputStream)
+     */
+    public static void updateFromJSON(Account account, InputStream is, AccountValidator validator) throws IOException {
         if(is.available() == 0) {
             throw new IllegalArgumentException("Input stream is empty!");
         }
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode root = mapper.readTree(is);
-
-        updateFromJSON(account, root);
+        Fields fields = readFields(is, validator);
+        fields.throwViolations();
+        fields.applyTo(account);
     }
 
     /**
@@ -92,15 +119,18 @@ public class AccountJsonSerializer {
      * @throws InvalidDescription if the object is not a valid account description
      */
     public static void validateJsonAsFullAccount(JsonNode root) {
-        if (root.has("login") &&
-                root.has("password") &&
-                root.has("birthday") &&
-                root.has("name") &&
-                root.has("sex")) {
-            validateJsonAsPartialAccount(root);
-        } else {
-            throw new InvalidDescription("Some fields are missing!");
-        }
+        validateJsonAsFullAccount(root, validator);
+    }
+
+    /**
+     * Checks the correctness of a JSON object, that should represent a complete account description,
+     * with the given validator
+     * @throws InvalidDescription if the object is not a valid account description
+     */
+    public static void validateJsonAsFullAccount(JsonNode root, AccountValidator validator) {
+        Fields fields = checkNode(root, validator);
+        fields.checkComplete();
+        fields.throwViolations();
     }
 
     /**
@@ -108,62 +138,207 @@ public class AccountJsonSerializer {
      * @throws InvalidDescription if the object is not a valid account description
      */
     public static void validateJsonAsPartialAccount(JsonNode root) {
-        if(root.has("login")) {
-            if(!root.get("login").asText().matches("[a-zA-Z0-9_]+")) {
-                throw new InvalidDescription("Invalid login: should consist only of letters and '_'");
+        checkNode(root, validator).throwViolations();
+    }
+
+    /**
+     * Sets the validator of descriptions read by {@link #createFromJSON(InputStream)} and
+     * {@link #updateFromJSON(Account, InputStream)}, {@link AccountValidator#DEFAULT} initially
+     */
+    public static void setValidator(AccountValidator validator) {
+        AccountJsonSerializer.validator = validator;
+    }
+
+    public static AccountValidator getValidator() {
+        return validator;
+    }
+
+    private static Fields checkNode(JsonNode root, AccountValidator validator) {
+        Fields fields = new Fields(validator);
+        for(String field : FIELD_NAMES) {
+            if(root.has(field)) {
+                fields.set(field, root.get(field).asText());
             }
         }
-        if(root.has("birthday")) {
-            try {
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ENGLISH);
-                LocalDate date = LocalDate.parse(root.get("birthday").asText(), formatter);
+        return fields;
+    }
 
-            } catch (DateTimeParseException e) {
-                throw new InvalidDescription("Invalid birthday: required format is YYYY-MM-DD");
+    /**
+     * Reads the fields of a JSON object from the stream, checking each of them right after it is read.
+     * Unknown fields are skipped. If the stream doesn't contain an object, no fields are read.
+     */
+    private static Fields readFields(InputStream is, AccountValidator validator) throws IOException {
+        Fields fields = new Fields(validator);
+        JsonParser p = FACTORY.createParser(is);
+        try {
+            JsonToken token = p.nextToken();
+            if(token != JsonToken.START_OBJECT) {
+                return fields;
             }
+            while(p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                if(!fields.set(field, readText(p))) {
+                    p.skipChildren();
+                }
+            }
+            return fields;
+        } finally {
+            p.close();
         }
+    }
 
-        if(root.has("sex")) {
-            try {
-                Account.Sex.valueOf(root.get("sex").asText());
-
-            } catch (IllegalArgumentException e) {
-                throw new InvalidDescription("Invalid sex: 'Male' and 'Female' are valid values");
-            }
+    /**
+     * Reads the current value as text the same way as JsonNode.asText() does
+     */
+    private static String readText(JsonParser p) throws IOException {
+        JsonToken token = p.getCurrentToken();
+        if(token == JsonToken.VALUE_NULL) {
+            return "null";
+        }
+        if(token.isScalarValue()) {
+            return p.getText();
         }
+        p.skipChildren();
+        return "";
     }
 
     /**
-     * Sets some fields of the given account to values from a JSON object in the given JSON object
-     * @param root is a JSON object that represents an account. Some account fields may be missing
-     * @throws IOException if something is wrong with the stream
-     * @throws IllegalArgumentException if the stream is empty
-     * @throws InvalidDescription if a description in the stream has an invalid format
+     * Already checked values of the fields present in a description, and violations of the rest
      */
-    private static void updateFromJSON(Account account, JsonNode root) throws IOException {
-        validateJsonAsPartialAccount(root);
-        if(root.has("login")) {
-            account.setLogin(root.get("login").asText());
+    private static class Fields {
+        Fields(AccountValidator validator) {
+            this.validator = validator;
         }
-        if(root.has("name")) {
-            account.setName(root.get("name").asText());
+
+        /**
+         * Checks and sets the value of a known field
+         * @return false if the field is unknown
+         */
+        boolean set(String field, String value) {
+            for(int i = 0; i < FIELD_NAMES.length; i++) {
+                if(FIELD_NAMES[i].equals(field)) {
+                    present |= 1 << i;
+                }
+            }
+            switch (field) {
+                case "login":
+                    if(validator.isValidLogin(value)) {
+                        login = value;
+                    } else {
+                        addViolation(validator.getLoginViolation());
+                    }
+                    return true;
+                case "password":
+                    password = value;
+                    return true;
+                case "name":
+                    if(validator.isValidName(value)) {
+                        name = value;
+                    } else {
+                        addViolation(validator.getNameViolation());
+                    }
+                    return true;
+                case "birthday":
+                    birthday = validator.parseBirthday(value);
+                    if(birthday == null) {
+                        addViolation(validator.getBirthdayViolation());
+                    }
+                    return true;
+                case "sex":
+                    sex = validator.parseSex(value);
+                    if(sex == null) {
+                        addViolation(validator.getSexViolation());
+                    }
+                    return true;
+                default:
+                    return false;
+            }
         }
-        if(root.has("birthday")) {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ENGLISH);
-            LocalDate date = LocalDate.parse(root.get("birthday").asText(), formatter);
-            account.setBirthday(date);
+
+        /**
+         * Reports the fields that are absent from the description
+         */
+        void checkComplete() {
+            StringBuilder missing = new StringBuilder();
+            for(int i = 0; i < FIELD_NAMES.length; i++) {
+                if((present & (1 << i)) == 0) {
+                    missing.append(missing.length() == 0 ? "" : ", ").append(FIELD_NAMES[i]);
+                }
+            }
+            if(missing.length() > 0) {
+                addViolation("Some fields are missing: " + missing);
+            }
         }
-        if(root.has("sex")) {
-            account.setSex(Account.Sex.valueOf(root.get("sex").asText()));
+
+        void throwViolations() {
+            if(violations != null) {
+                throw new InvalidDescription(violations);
+            }
         }
-        if(root.has("password")) {
-            account.setPassword(root.get("password").asText());
+
+        private void addViolation(String violation) {
+            if(violations == null) {
+                violations = new ArrayList<>(2);
+            }
+            violations.add(violation);
         }
+
+        void applyTo(Account account) {
+            if(login != null) {
+                account.setLogin(login);
+            }
+            if(name != null) {
+                account.setName(name);
+            }
+            if(birthday != null) {
+                account.setBirthday(birthday);
+            }
+            if(sex != null) {
+                account.setSex(sex);
+            }
+            if(password != null) {
+                account.setPassword(password);
+            }
+        }
+
+        String login;
+        String password;
+        String name;
+        LocalDate birthday;
+        Account.Sex sex;
+        private final AccountValidator validator;
+        private int present;
+        private List<String> violations;
     }
 
     public static class InvalidDescription extends RuntimeException {
         InvalidDescription(String what) {
-            super("Invalid account description: "+what);
+            this(Collections.singletonList(what));
         }
+
+        InvalidDescription(List<String> violations) {
+            super("Invalid account description: " + String.join("; ", violations));
+            this.violations = Collections.unmodifiableList(violations);
+        }
+
+        /**
+         * @return every rule the description violates
+         */
+        public List<String> getViolations() {
+            return violations;
+        }
+
+        private final List<String> violations;
     }
+
+    private static final JsonFactory FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+    /**
+     * Known fields, in the order they are reported as missing
+     */
+    private static final String[] FIELD_NAMES = {"login", "password", "name", "birthday", "sex"};
+
+    private static volatile AccountValidator validator = AccountValidator.DEFAULT;
 }
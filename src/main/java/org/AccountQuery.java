@@ -0,0 +1,71 @@
+package org;
+
+import java.time.LocalDate;
+
+
+/**
+ * Conditions of an account search, see {@link IndexedAccountStorage#search(AccountQuery, String, int)}.
+ * A condition that is not set (null) matches every account
+ */
+public class AccountQuery {
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    /**
+     * @param namePrefix case sensitive prefix of the account name
+     */
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public LocalDate getBornAfter() {
+        return bornAfter;
+    }
+
+    /**
+     * @param bornAfter the birthday should be later than this date
+     */
+    public void setBornAfter(LocalDate bornAfter) {
+        this.bornAfter = bornAfter;
+    }
+
+    public LocalDate getBornBefore() {
+        return bornBefore;
+    }
+
+    /**
+     * @param bornBefore the birthday should be earlier than this date
+     */
+    public void setBornBefore(LocalDate bornBefore) {
+        this.bornBefore = bornBefore;
+    }
+
+    public Account.Sex getSex() {
+        return sex;
+    }
+
+    public void setSex(Account.Sex sex) {
+        this.sex = sex;
+    }
+
+    /**
+     * @return whether the account satisfies all conditions of the query
+     */
+    public boolean matches(Account account) {
+        return matches(account.getName(), account.getBirthday(), account.getSex());
+    }
+
+    boolean matches(String name, LocalDate birthday, Account.Sex sex) {
+        return (namePrefix == null || name.startsWith(namePrefix)) &&
+                (bornAfter == null || birthday.isAfter(bornAfter)) &&
+                (bornBefore == null || birthday.isBefore(bornBefore)) &&
+                (this.sex == null || sex == this.sex);
+    }
+
+    private String namePrefix;
+    private LocalDate bornAfter;
+    private LocalDate bornBefore;
+    private Account.Sex sex;
+}
@@ -0,0 +1,325 @@
+package org;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * A copy of all accounts with their password hashes in a single gzip-compressed stream, taken while they keep
+ * changing. The accounts are copied one by one, and the ones changed meanwhile are copied again after them
+ * as changes, the last ones while no account can change, so the snapshot holds the accounts as they were
+ * at that moment, see {@link org.services.AccountResource#writeSnapshot(OutputStream)}.
+ * A restore stores the copied accounts on several threads and then applies the changes in order.
+ *
+ * Layout, a JSON object per line: {"snapshot":1,"started":<ms>}, the copied accounts, {"changes":true},
+ * the accounts copied again and {"deleted":"<login>"} for the removed ones,
+ * {"end":<ms of the moment>,"accounts":<copied>,"changes":<copied again>}. A snapshot without the end is incomplete.
+ */
+public class AccountSnapshot {
+
+    /**
+     * Stores the accounts of a snapshot in the storage, which must have no accounts yet
+     * @param is the compressed snapshot, it is read to the end but not closed
+     * @param threads how many threads store the copied accounts
+     * @return the counts and times of the snapshot
+     * @throws IOException if the storage has accounts, the snapshot can't be read, is malformed or incomplete,
+     *                     or the accounts can't be stored
+     */
+    public static AccountSnapshot restore(InputStream is, AccountStorage storage, int threads) throws IOException {
+        storage.forEachAccount(account -> {
+            throw new IOException("The storage has accounts already, e.g. '" + account.getLogin() +
+                    "', restore into an empty one");
+        });
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(is, BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+        JsonNode header = control(reader.readLine(), 1);
+        if(header.path("snapshot").asInt() != VERSION) {
+            throw new IOException("Not a snapshot of accounts of version " + VERSION);
+        }
+        AccountSnapshot snapshot = new AccountSnapshot(header.path("started").asLong());
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore batches = new Semaphore(2 * threads);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        int number = 1;
+        String line;
+        try {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            while((line = reader.readLine()) != null && line.startsWith(ACCOUNT_PREFIX) && failure.get() == null) {
+                number++;
+                batch.add(line);
+                if(batch.size() == BATCH_SIZE) {
+                    stored.add(storeAsync(batch, number - batch.size() + 1, storage, pool, batches, failure));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if(!batch.isEmpty()) {
+                stored.add(storeAsync(batch, number - batch.size() + 1, storage, pool, batches, failure));
+            }
+            CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring a snapshot");
+        } finally {
+            pool.shutdown();
+        }
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+        snapshot.accounts = number - 1;
+
+        if(!control(line, ++number).path("changes").asBoolean()) {
+            throw new IOException("Expected changes at line " + number + " of the snapshot");
+        }
+        while((line = reader.readLine()) != null && !line.startsWith(END_PREFIX)) {
+            number++;
+            if(line.startsWith(ACCOUNT_PREFIX)) {
+                storage.store(parse(line, number));
+            } else {
+                try {
+                    storage.remove(control(line, number).path("deleted").asText());
+                } catch (AccountStorage.UserNotFoundException e) {
+                    // created and removed while the snapshot was taken
+                }
+            }
+            snapshot.changes++;
+        }
+        JsonNode end = control(line, ++number);
+        if(end.path("accounts").asLong() != snapshot.accounts || end.path("changes").asLong() != snapshot.changes) {
+            throw new IOException("The snapshot has " + snapshot.accounts + " accounts and " + snapshot.changes +
+                    " changes, its end says " + end);
+        }
+        // reading past the end checks the trailer of the compressed stream
+        if(reader.readLine() != null) {
+            throw new IOException("Unexpected lines after the end of the snapshot");
+        }
+        snapshot.time = end.path("end").asLong();
+        return snapshot;
+    }
+
+    /**
+     * @return when the snapshot was started, in milliseconds since the epoch
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the moment the accounts of the snapshot were at, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return number of accounts copied in the first pass
+     */
+    public long getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return number of accounts copied again or found removed since the first pass
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    private AccountSnapshot(long started) {
+        this.started = started;
+    }
+
+    private static CompletableFuture<Void> storeAsync(List<String> lines, int firstLine, AccountStorage storage,
+                                                      ExecutorService pool, Semaphore batches,
+                                                      AtomicReference<IOException> failure)
+            throws InterruptedException {
+        batches.acquire();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                List<Account> accounts = new ArrayList<>(lines.size());
+                for(int i = 0; i < lines.size(); i++) {
+                    accounts.add(parse(lines.get(i), firstLine + i));
+                }
+                storage.storeAll(accounts);
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                batches.release();
+            }
+        }, pool);
+    }
+
+    private static Account parse(String line, int number) throws IOException {
+        try {
+            return AccountCodec.JSON.read(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException|AccountJsonSerializer.InvalidDescription e) {
+            throw new IOException("Bad account at line " + number + " of the snapshot: " + e.getMessage());
+        }
+    }
+
+    private static JsonNode control(String line, int number) throws IOException {
+        if(line == null) {
+            throw new IOException("The snapshot is incomplete, it ends at line " + number);
+        }
+        try {
+            return MAPPER.readTree(line);
+        } catch (IOException e) {
+            throw new IOException("Bad line " + number + " of the snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a snapshot: the copied accounts, then {@link #startChanges()} and the accounts copied again,
+     * then {@link #finish(long)}. Accounts are throttled before they are compressed, so a snapshot reads
+     * the storage no faster than the given rate
+     */
+    public static class Writer {
+
+        /**
+         * Writes the header of a snapshot
+         * @param os the stream to write the compressed snapshot to, it is not closed
+         * @param bytesPerSecond how many bytes of accounts may be written per second, 0 for no limit
+         * @throws IOException if the header can't be written
+         */
+        public Writer(OutputStream os, long bytesPerSecond) throws IOException {
+            this.compressed = new GZIPOutputStream(os, BUFFER_SIZE);
+            // a small buffer above the throttle, so that accounts are read at its rate rather than in bursts
+            this.out = bytesPerSecond > 0
+                    ? new BufferedOutputStream(new Throttled(compressed, bytesPerSecond), THROTTLE_CHUNK)
+                    : new BufferedOutputStream(compressed, BUFFER_SIZE);
+            this.snapshot = new AccountSnapshot(System.currentTimeMillis());
+            line("{\"snapshot\":" + VERSION + ",\"started\":" + snapshot.started + "}");
+        }
+
+        /**
+         * Writes an account, copied for the first time before {@link #startChanges()} and again after it
+         * @throws IOException if the account can't be written
+         */
+        public void write(Account account) throws IOException {
+            AccountJsonSerializer.toJSON(account, out);
+            out.write('\n');
+            count();
+        }
+
+        /**
+         * Writes that the account with the login was removed since it was copied
+         * @throws IOException if it can't be written
+         */
+        public void writeDeleted(String login) throws IOException {
+            line(MAPPER.createObjectNode().put("deleted", login).toString());
+            count();
+        }
+
+        /**
+         * Ends the accounts copied for the first time
+         * @throws IOException if it can't be written
+         */
+        public void startChanges() throws IOException {
+            line("{\"changes\":true}");
+            changing = true;
+        }
+
+        /**
+         * Writes the end and the rest of the compressed data and flushes the stream
+         * @param time the moment the accounts of the snapshot were at
+         * @return the counts and times of the snapshot
+         * @throws IOException if it can't be written
+         */
+        public AccountSnapshot finish(long time) throws IOException {
+            snapshot.time = time;
+            line("{\"end\":" + time + ",\"accounts\":" + snapshot.accounts + ",\"changes\":" + snapshot.changes + "}");
+            out.flush();
+            compressed.finish();
+            compressed.flush();
+            return snapshot;
+        }
+
+        private void line(String json) throws IOException {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+
+        private void count() {
+            if(changing) {
+                snapshot.changes++;
+            } else {
+                snapshot.accounts++;
+            }
+        }
+
+        private final GZIPOutputStream compressed;
+        private final OutputStream out;
+        private final AccountSnapshot snapshot;
+        private boolean changing;
+    }
+
+    /**
+     * Lets no more bytes through than the rate allows, sleeping when they come faster
+     */
+    private static class Throttled extends FilterOutputStream {
+        Throttled(OutputStream out, long bytesPerSecond) {
+            super(out);
+            this.nanosPerByte = 1e9 / bytesPerSecond;
+            this.next = System.nanoTime();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                int chunk = Math.min(len, THROTTLE_CHUNK);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+                long now = System.nanoTime();
+                next = Math.max(next, now) + (long) (chunk * nanosPerByte);
+                long wait = next - now;
+                if(wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while throttling a snapshot");
+                    }
+                }
+            }
+        }
+
+        private final double nanosPerByte;
+        private long next;
+    }
+
+    public static final String EXTENSION = ".snapshot.gz";
+    private static final int VERSION = 1;
+    private static final String ACCOUNT_PREFIX = "{\"login\"";
+    private static final String END_PREFIX = "{\"end\"";
+    private static final int BATCH_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int THROTTLE_CHUNK = 8 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final long started;
+    private long time;
+    private long accounts;
+    private long changes;
+}
@@ -1,32 +1,102 @@
 package org;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.metrics.Metrics;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * This class manages the account I/O on a disk.
  * Accounts are serialized to JSON during writing on disk and automatically deserialized during reading from it.
  * Each account is stored in a separate file named after the account login, with '.js' extention
+ * Another encoding, e.g. the compact binary one, may be chosen with {@link AccountCodec}
+ *
+ * Optionally every change is first made durable in a {@link WriteAheadLog} with group commit, and only then
+ * applied to the account file without syncing it. The log is replayed when the storage is opened after a crash.
+ * When the log grows large, the changed files are synced and the log is truncated (a checkpoint).
+ *
+ * An account file is never changed in place: the new content is written to a temporary file in the '.tmp'
+ * subdirectory, which is then atomically moved over the old one, so readers see either the old or the new account.
+ * A rename stores the new file before the old one is removed. Without the log, the rename is recorded in an intent
+ * file first, and an interrupted rename is completed or rolled back when the storage is opened.
  */
-public class AccountStorage {
+public class AccountStorage implements Closeable {
 
     /**
      * @param dataPath path to a directory where accounts will be stored
      * @throws IOException if dataPath doesn't exist and error occured during its creation
      */
     public AccountStorage(String dataPath) throws IOException {
+        this(dataPath, AccountCodec.JSON);
+    }
+
+    /**
+     * @param dataPath path to a directory where accounts will be stored
+     * @param codec encoding of account files
+     * @throws IOException if dataPath doesn't exist and error occured during its creation
+     */
+    public AccountStorage(String dataPath, AccountCodec codec) throws IOException {
         this.dataPath = dataPath;
+        this.codec = codec;
         Path p = FileSystems.getDefault().getPath(dataPath);
         if(!Files.exists(p)) {
             FileSystems.getDefault().provider().createDirectory(p);
         }
+        tmpDirectory = p.resolve(TMP_DIRECTORY);
+        Files.createDirectories(tmpDirectory);
+        recoverInterruptedWrites();
+    }
+
+    /**
+     * Opens the storage with a write-ahead log, replaying the changes left in the log by a crash
+     * @param dataPath path to a directory where accounts will be stored
+     * @param codec encoding of account files
+     * @param maxBatchDelayMicros how long the log may wait to write more changes with a single fsync
+     * @throws IOException if dataPath can't be created, or the log can't be opened or replayed
+     */
+    public AccountStorage(String dataPath, AccountCodec codec, long maxBatchDelayMicros) throws IOException {
+        this(dataPath, codec);
+        wal = new WriteAheadLog(Paths.get(dataPath, WAL_FILE), maxBatchDelayMicros);
+        wal.replay((type, login, payload) -> {
+            if(type == WriteAheadLog.PUT) {
+                writeFile(login, payload, false);
+                changedSinceCheckpoint.add(login);
+            } else if(type == WriteAheadLog.RENAME) {
+                String newLogin = decode(payload).getLogin();
+                writeFile(newLogin, payload, false);
+                Files.deleteIfExists(getFile(login));
+                changedSinceCheckpoint.add(newLogin);
+            } else {
+                Files.deleteIfExists(getFile(login));
+            }
+        });
+        checkpoint();
+    }
+
+    /**
+     * Constructor for storages that keep their records somewhere else, e.g. wrap another storage
+     */
+    protected AccountStorage() {
     }
 
     /**
-     * Reads an account from JSON file at the specified in dataPath location
+     * Reads an account from the file at the specified in dataPath location
      *
      * @param login of the needed account
      * @return the read account
@@ -35,14 +105,17 @@ public class AccountStorage {
      * @throws CorruptedFileException if the file contains incorrect JSON description of an account
      */
     public Account get(String login) throws IOException {
-        File accountFile = new File(dataPath + login + ".json");
-        if(!accountFile.exists()) {
+        File accountFile = new File(dataPath + login + codec.getExtension());
+        // a single stat both checks the file and gives its size for the metrics
+        long length = accountFile.length();
+        if(length == 0 && !accountFile.exists()) {
             throw new UserNotFoundException(login);
         }
-        InputStream is = new FileInputStream(accountFile);
-        try {
-            return AccountJsonSerializer.createFromJSON(is);
-        } catch (IllegalArgumentException| AccountJsonSerializer.InvalidDescription e) {
+        Metrics.FILE_OPENS.increment();
+        Metrics.BYTES_READ.add(length);
+        try (InputStream is = new FileInputStream(accountFile)) {
+            return codec.read(is);
+        } catch (IllegalArgumentException|AccountJsonSerializer.InvalidDescription|JsonProcessingException e) {
             throw new CorruptedFileException(accountFile.getName());
         }
     }
@@ -53,9 +126,54 @@ public class AccountStorage {
      * @throws IOException if something wrong happens during writing the file
      */
     public void store(Account account) throws IOException {
-        File accountFile = new File(dataPath + String.valueOf(account.getLogin()) + ".json");
-        OutputStream os = new FileOutputStream(accountFile);
-        AccountJsonSerializer.toJSON(account, os);
+        if(wal == null) {
+            writeFile(account.getLogin(), encode(account), syncWrites);
+            return;
+        }
+
+        byte[] encoded = encode(account);
+        walLock.readLock().lock();
+        try {
+            wal.append(WriteAheadLog.PUT, account.getLogin(), encoded);
+            writeFile(account.getLogin(), encoded, false);
+            changedSinceCheckpoint.add(account.getLogin());
+        } finally {
+            walLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
+    }
+
+    /**
+     * Writes a batch of accounts. Storages that can write several accounts at once override it,
+     * by default the accounts are stored one by one
+     * @param accounts to be stored
+     * @throws IOException if something wrong happens during writing, some of the accounts may be already stored then
+     */
+    public void storeAll(List<Account> accounts) throws IOException {
+        if(wal == null) {
+            for(Account account : accounts) {
+                store(account);
+            }
+            return;
+        }
+
+        List<String> logins = new ArrayList<>(accounts.size());
+        List<byte[]> encoded = new ArrayList<>(accounts.size());
+        for(Account account : accounts) {
+            logins.add(account.getLogin());
+            encoded.add(encode(account));
+        }
+        walLock.readLock().lock();
+        try {
+            wal.appendAll(WriteAheadLog.PUT, logins, encoded);
+            for(int i = 0; i < logins.size(); i++) {
+                writeFile(logins.get(i), encoded.get(i), false);
+            }
+            changedSinceCheckpoint.addAll(logins);
+        } finally {
+            walLock.readLock().unlock();
+        }
+        checkpointIfNeeded();
     }
 
     /**
@@ -65,16 +183,312 @@ public class AccountStorage {
      * @throws UserNotFoundException if the account is not in the storage
      */
     public void remove(String login) throws IOException {
+        if(wal != null) {
+            if(!Files.exists(getFile(login))) {
+                throw new UserNotFoundException(login);
+            }
+            walLock.readLock().lock();
+            try {
+                wal.append(WriteAheadLog.DELETE, login, new byte[0]);
+                Files.deleteIfExists(getFile(login));
+            } finally {
+                walLock.readLock().unlock();
+            }
+            checkpointIfNeeded();
+            return;
+        }
+
         FileSystem files = FileSystems.getDefault();
         try {
-            files.provider().delete(files.getPath(dataPath + login + ".json"));
+            files.provider().delete(files.getPath(dataPath + login + codec.getExtension()));
         } catch (NoSuchFileException e) {
             throw new UserNotFoundException(login);
         }
     }
 
-    public void setDataPath(String path) {
-        dataPath = path;
+    /**
+     * Moves an account to a new login, possibly changing other fields as well.
+     * After a crash the account is found either under the old or under the new login, never under both or none
+     * @param oldLogin current login of the account
+     * @param account the account with the new login
+     * @throws IOException if something wrong happens during writing or deleting the files
+     * @throws UserNotFoundException if there is no account with the old login
+     */
+    public void rename(String oldLogin, Account account) throws IOException {
+        String newLogin = account.getLogin();
+        if(oldLogin.equals(newLogin)) {
+            store(account);
+            return;
+        }
+        if(!Files.exists(getFile(oldLogin))) {
+            throw new UserNotFoundException(oldLogin);
+        }
+        byte[] encoded = encode(account);
+
+        if(wal != null) {
+            walLock.readLock().lock();
+            try {
+                wal.append(WriteAheadLog.RENAME, oldLogin, encoded);
+                writeFile(newLogin, encoded, false);
+                Files.deleteIfExists(getFile(oldLogin));
+                changedSinceCheckpoint.add(newLogin);
+            } finally {
+                walLock.readLock().unlock();
+            }
+            checkpointIfNeeded();
+            return;
+        }
+
+        // once the intent with the new account is durable, the rename is completed even after a crash
+        Path intent = tmpDirectory.resolve(oldLogin + RENAME_SUFFIX);
+        try (FileChannel channel = FileChannel.open(intent,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        syncDirectory(tmpDirectory);
+        // the new file has to be durable before the old one is gone
+        writeFile(newLogin, encoded, true);
+        Files.deleteIfExists(getFile(oldLogin));
+        Files.delete(intent);
+    }
+
+    /**
+     * Reads all accounts of the storage one by one, without keeping them in memory.
+     * Accounts removed during the iteration may be skipped, files with corrupted accounts are reported and skipped
+     * @throws IOException if the directory or some file can't be read, or the visitor fails
+     */
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        forEachLogin(login -> visitIfPresent(login, visitor));
+    }
+
+    /**
+     * Like {@link #forEachAccount(AccountVisitor)}, but the accounts are read by several threads and the visitor
+     * is called from all of them at once, so it should be thread-safe. Meant for building in-memory structures
+     * at startup, when reading many small files one by one is the bottleneck
+     * @param threads number of reading threads, with 1 the accounts are read in the calling thread
+     * @throws IOException if the directory or some file can't be read, or the visitor fails
+     */
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        if(threads <= 1) {
+            forEachAccount(visitor);
+            return;
+        }
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        // the listing thread reads accounts itself when the readers fall behind, so the queue stays short
+        ThreadPoolExecutor readers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            forEachLogin(login -> {
+                if(failure.get() != null) {
+                    return;
+                }
+                readers.execute(() -> {
+                    try {
+                        if(failure.get() == null) {
+                            visitIfPresent(login, visitor);
+                        }
+                    } catch (IOException|RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            });
+        } finally {
+            readers.shutdown();
+            try {
+                readers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                readers.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading accounts");
+            }
+        }
+        Exception e = failure.get();
+        if(e instanceof IOException) {
+            throw (IOException) e;
+        } else if(e != null) {
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Lists the logins of all accounts, which {@link #forEachAccount} reads then
+     * @throws IOException if the directory can't be read or the visitor fails
+     */
+    protected void forEachLogin(LoginVisitor visitor) throws IOException {
+        String extension = codec.getExtension();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(dataPath), "*" + extension)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                visitor.visit(name.substring(0, name.length() - extension.length()));
+            }
+        }
+    }
+
+    private void visitIfPresent(String login, AccountVisitor visitor) throws IOException {
+        Account account;
+        try {
+            account = get(login);
+        } catch (UserNotFoundException e) {
+            return;
+        } catch (CorruptedFileException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        visitor.visit(account);
+    }
+
+    /**
+     * @param syncWrites whether every written account file and the directory should be synced to the disk.
+     *                   Not needed with the write-ahead log, which makes changes durable by itself
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /**
+     * @return the write-ahead log of the storage, or null if changes are not logged
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    /**
+     * @return the log of changes made through the storage, or null if changes are not recorded,
+     *         see {@link ChangeLogAccountStorage}
+     */
+    public ChangeLog getChangeLog() {
+        return null;
+    }
+
+    /**
+     * Releases resources held by the storage. Account files are not kept open, only the write-ahead log is closed
+     * after a checkpoint
+     * @throws IOException if a subclass fails to release its resources
+     */
+    @Override
+    public void close() throws IOException {
+        if(wal != null) {
+            checkpoint();
+            wal.close();
+        }
+    }
+
+    private Path getFile(String login) {
+        return Paths.get(dataPath + login + codec.getExtension());
+    }
+
+    private byte[] encode(Account account) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        codec.write(account, os);
+        return os.toByteArray();
+    }
+
+    private Account decode(byte[] encoded) throws IOException {
+        return codec.read(new ByteArrayInputStream(encoded));
+    }
+
+    /**
+     * Writes the account file through a temporary file, that is atomically moved in place of the old one
+     */
+    private void writeFile(String login, byte[] encoded, boolean sync) throws IOException {
+        Path temp = tmpDirectory.resolve(login + codec.getExtension() + TEMP_SUFFIX + tempCounter.incrementAndGet());
+        Metrics.FILE_OPENS.increment();
+        Metrics.BYTES_WRITTEN.add(encoded.length);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if(sync) {
+                    channel.force(true);
+                }
+            }
+            Files.move(temp, getFile(login), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if(sync) {
+            syncDirectory(Paths.get(dataPath));
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories can't be synced on some platforms
+        }
+    }
+
+    /**
+     * Completes renames interrupted by a crash and deletes temporary files left by it.
+     * An intent that can't be read or decoded was cut off before it was synced, so its rename never happened
+     */
+    private void recoverInterruptedWrites() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmpDirectory)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                if(name.endsWith(RENAME_SUFFIX)) {
+                    String oldLogin = name.substring(0, name.length() - RENAME_SUFFIX.length());
+                    byte[] encoded = Files.readAllBytes(file);
+                    Account account = null;
+                    try {
+                        account = decode(encoded);
+                    } catch (AccountJsonSerializer.InvalidDescription|IllegalArgumentException|IOException e) {
+                        System.err.println("Dropping incomplete rename of " + oldLogin);
+                    }
+                    if(account != null) {
+                        writeFile(account.getLogin(), encoded, true);
+                        Files.deleteIfExists(getFile(oldLogin));
+                    }
+                }
+                // the stream may also list temporary files of the completed renames, which are already moved
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void checkpointIfNeeded() throws IOException {
+        if(wal.size() >= CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Syncs the files changed since the previous checkpoint and the directory, then truncates the log.
+     * Changes wait for the checkpoint to finish
+     */
+    private void checkpoint() throws IOException {
+        walLock.writeLock().lock();
+        try {
+            for(String login : changedSinceCheckpoint) {
+                Path file = getFile(login);
+                if(Files.exists(file)) {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        channel.force(true);
+                    }
+                }
+            }
+            syncDirectory(Paths.get(dataPath));
+            wal.truncate();
+            changedSinceCheckpoint.clear();
+        } finally {
+            walLock.writeLock().unlock();
+        }
+    }
+
+    public interface AccountVisitor {
+        void visit(Account account) throws IOException;
+    }
+
+    protected interface LoginVisitor {
+        void visit(String login) throws IOException;
     }
 
     public class UserNotFoundException extends RuntimeException {
@@ -84,10 +498,26 @@ public class AccountStorage {
     }
 
     public class CorruptedFileException extends RuntimeException {
-        public CorruptedFileException(String file) { super("JSON object in "+file+" is illegal."); }
+        public CorruptedFileException(String file) {
+            super("JSON object in "+file+" is illegal.");
+            Metrics.CORRUPTED.increment();
+        }
     }
 
+    public static final String WAL_FILE = "wal.log";
+    private static final long CHECKPOINT_SIZE = 16 * 1024 * 1024;
+    private static final String TMP_DIRECTORY = ".tmp";
+    private static final String TEMP_SUFFIX = ".tmp-";
+    private static final String RENAME_SUFFIX = ".rename";
+
     private String dataPath;
+    private AccountCodec codec;
+    private Path tmpDirectory;
+    private boolean syncWrites = false;
+    private final AtomicLong tempCounter = new AtomicLong();
+    private WriteAheadLog wal;
+    private final ReentrantReadWriteLock walLock = new ReentrantReadWriteLock();
+    private final Set<String> changedSinceCheckpoint = ConcurrentHashMap.newKeySet();
     private ObjectMapper mapper = new ObjectMapper();
 
 }
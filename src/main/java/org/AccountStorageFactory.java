@@ -0,0 +1,106 @@
+package org;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Builds an account storage according to the given settings.
+ * Supported settings:
+ * usermanager.dataPath - directory where accounts are stored, './data/' by default,
+ *                        several comma-separated directories to shard accounts between them,
+ *                        see {@link ShardedAccountStorage}
+ * usermanager.storage - 'files' to keep every account in a separate file (default),
+ *                       'log' to append accounts to segment files, see {@link LogStructuredAccountStorage}
+ * usermanager.encoding - 'json' (default) or 'binary', encoding of accounts on disk, see {@link AccountCodec}
+ * usermanager.wal - 'true' to make changes of the 'files' storage durable through a write-ahead log with group commit
+ * usermanager.wal.batchDelayMicros - how long the write-ahead log waits to sync more changes at once, 0 by default
+ * usermanager.syncWrites - 'true' to fsync every account file written by the 'files' storage without the log
+ * usermanager.log.segmentSize - size of a log segment in bytes
+ * usermanager.log.compactionThreshold - fraction of dead records in a log segment that triggers its compaction
+ * usermanager.log.mmap - 'true' to read log segments through memory mappings
+ * usermanager.cache.maxEntries - number of accounts cached in memory, 0 disables the cache, 10000 by default
+ * usermanager.resident - 'true' to keep all accounts in memory in a compact form instead of caching some of them,
+ *                        see {@link ResidentAccountStorage}
+ * usermanager.changes - 'true' to record every change in the 'changes.log' of the (first) data directory,
+ *                       see {@link ChangeLogAccountStorage}
+ * usermanager.changes.sync - 'false' to let changes be read before they are synced to the disk, 'true' by default
+ */
+public class AccountStorageFactory {
+
+    /**
+     * @param settings usually the system properties of the server
+     * @throws IOException from storage creation
+     * @throws NumberFormatException if a numeric setting is malformed
+     * @throws IllegalArgumentException if the storage type or the encoding is unknown
+     */
+    public static AccountStorage create(Properties settings) throws IOException {
+        String[] dataPaths = settings.getProperty("usermanager.dataPath", "./data/").split(",");
+        AccountStorage storage;
+        if(dataPaths.length == 1) {
+            storage = createShard(dataPaths[0].trim(), settings);
+        } else {
+            Map<String, AccountStorage> shards = new LinkedHashMap<>();
+            for(String dataPath : dataPaths) {
+                shards.put(dataPath.trim(), createShard(dataPath.trim(), settings));
+            }
+            storage = new ShardedAccountStorage(shards);
+        }
+
+        int cacheEntries = Integer.parseInt(settings.getProperty("usermanager.cache.maxEntries", "10000"));
+        if(Boolean.parseBoolean(settings.getProperty("usermanager.resident", "false"))) {
+            storage = new ResidentAccountStorage(storage, 2 * Runtime.getRuntime().availableProcessors());
+        } else if(cacheEntries > 0) {
+            storage = new CachingAccountStorage(storage, cacheEntries);
+        }
+        if(Boolean.parseBoolean(settings.getProperty("usermanager.changes", "false"))) {
+            // above the cache, which answers the lookups that tell created accounts from updated ones
+            storage = new ChangeLogAccountStorage(storage, new ChangeLog(Paths.get(dataPaths[0].trim(), ChangeLog.FILE),
+                    Boolean.parseBoolean(settings.getProperty("usermanager.changes.sync", "true"))));
+        }
+        return storage;
+    }
+
+    /**
+     * @return the storage of a single data directory
+     */
+    private static AccountStorage createShard(String dataPath, Properties settings) throws IOException {
+        String type = settings.getProperty("usermanager.storage", "files");
+        AccountCodec codec = getCodec(settings.getProperty("usermanager.encoding", "json"));
+        AccountStorage storage;
+        if(type.equals("files") && Boolean.parseBoolean(settings.getProperty("usermanager.wal", "false"))) {
+            storage = new AccountStorage(dataPath, codec,
+                    Long.parseLong(settings.getProperty("usermanager.wal.batchDelayMicros", "0")));
+        } else if(type.equals("files")) {
+            storage = new AccountStorage(dataPath, codec);
+            storage.setSyncWrites(Boolean.parseBoolean(settings.getProperty("usermanager.syncWrites", "false")));
+        } else if(type.equals("log")) {
+            storage = new LogStructuredAccountStorage(dataPath,
+                    Long.parseLong(settings.getProperty("usermanager.log.segmentSize",
+                            String.valueOf(LogStructuredAccountStorage.DEFAULT_SEGMENT_SIZE))),
+                    Double.parseDouble(settings.getProperty("usermanager.log.compactionThreshold",
+                            String.valueOf(LogStructuredAccountStorage.DEFAULT_COMPACTION_THRESHOLD))),
+                    Boolean.parseBoolean(settings.getProperty("usermanager.log.mmap", "false")),
+                    codec);
+        } else {
+            throw new IllegalArgumentException("Unknown storage type: " + type);
+        }
+        return storage;
+    }
+
+    /**
+     * @param name 'json' or 'binary'
+     * @throws IllegalArgumentException if the encoding is unknown
+     */
+    public static AccountCodec getCodec(String name) {
+        if(name.equals("json")) {
+            return AccountCodec.JSON;
+        } else if(name.equals("binary")) {
+            return AccountCodec.BINARY;
+        }
+        throw new IllegalArgumentException("Unknown encoding: " + name);
+    }
+}
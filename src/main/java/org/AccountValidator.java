@@ -0,0 +1,232 @@
+package org;
+
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * Rules for fields of account descriptions. The rules are compiled once, when the validator is created,
+ * and the checks don't allocate anything but the values they return.
+ * Every rule is configured by a property, an absent property keeps the built-in rule:
+ * usermanager.validation.login.charset - characters allowed in logins, single characters and ranges like 'a-z',
+ *                                        'a-zA-Z0-9_' by default
+ * usermanager.validation.login.minLength, usermanager.validation.login.maxLength - 1 and {@link #MAX_LOGIN_LENGTH}
+ *                                        by default, the maximum can't be longer, as a login is also a file name
+ * usermanager.validation.name.minLength, usermanager.validation.name.maxLength - 0 and unlimited by default
+ * usermanager.validation.birthday.min, usermanager.validation.birthday.max - the earliest and the latest allowed
+ *                                        birthday as YYYY-MM-DD, or 'today', unlimited by default
+ * usermanager.validation.sex.values - comma separated allowed values, 'Male,Female' by default
+ * Birthdays are always in the format of YYYY-MM-DD.
+ */
+public class AccountValidator {
+
+    /**
+     * @param settings usually the system properties of the server
+     * @throws IllegalArgumentException if some rule is malformed
+     */
+    public AccountValidator(Properties settings) {
+        loginCharset = compileCharset(settings.getProperty(PREFIX + "login.charset", "a-zA-Z0-9_"));
+        loginMinLength = parseLength(settings, "login.minLength", 1);
+        loginMaxLength = parseLength(settings, "login.maxLength", MAX_LOGIN_LENGTH);
+        if(loginMaxLength > MAX_LOGIN_LENGTH) {
+            throw new IllegalArgumentException(PREFIX + "login.maxLength should not exceed " + MAX_LOGIN_LENGTH);
+        }
+        nameMinLength = parseLength(settings, "name.minLength", 0);
+        nameMaxLength = parseLength(settings, "name.maxLength", Integer.MAX_VALUE);
+        birthdayMin = parseDay(settings, "birthday.min", Long.MIN_VALUE);
+        birthdayMax = parseDay(settings, "birthday.max", Long.MAX_VALUE);
+
+        String[] sexes = settings.getProperty(PREFIX + "sex.values", "Male,Female").split(",");
+        allowedSexes = new Account.Sex[sexes.length];
+        for(int i = 0; i < sexes.length; i++) {
+            allowedSexes[i] = Account.Sex.valueOf(sexes[i].trim());
+        }
+
+        String charset = settings.getProperty(PREFIX + "login.charset", "letters, digits and '_'");
+        loginViolation = "Invalid login: should consist only of " + charset +
+                " and be " + lengthLimits(loginMinLength, loginMaxLength);
+        nameViolation = "Invalid name: should be " + lengthLimits(nameMinLength, nameMaxLength);
+        birthdayViolation = "Invalid birthday: required format is YYYY-MM-DD" +
+                (birthdayMin != Long.MIN_VALUE ? ", not earlier than " + formatDay(birthdayMin) : "") +
+                (birthdayMax != Long.MAX_VALUE ? ", not later than " + formatDay(birthdayMax) : "");
+        StringBuilder sexList = new StringBuilder();
+        for(Account.Sex sex : allowedSexes) {
+            sexList.append(sexList.length() == 0 ? "'" : ", '").append(sex.name()).append('\'');
+        }
+        sexViolation = "Invalid sex: " + sexList + (allowedSexes.length == 1 ? " is the valid value" : " are valid values");
+    }
+
+    public boolean isValidLogin(String login) {
+        int length = login.length();
+        if(length < loginMinLength || length > loginMaxLength) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            char c = login.charAt(i);
+            if(c >= loginCharset.length || !loginCharset[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isValidName(String name) {
+        return name.length() >= nameMinLength && name.length() <= nameMaxLength;
+    }
+
+    /**
+     * @return the birthday, or null if it is malformed or out of the allowed range
+     */
+    public LocalDate parseBirthday(String birthday) {
+        if(birthday.length() != 10 || birthday.charAt(4) != '-' || birthday.charAt(7) != '-') {
+            return null;
+        }
+        int year = parseDigits(birthday, 0, 4);
+        int month = parseDigits(birthday, 5, 7);
+        int day = parseDigits(birthday, 8, 10);
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+            return null;
+        }
+        LocalDate date = LocalDate.of(year, month, day);
+        long epochDay = date.toEpochDay();
+        long max = birthdayMax == TODAY ? System.currentTimeMillis() / MILLIS_PER_DAY : birthdayMax;
+        long min = birthdayMin == TODAY ? System.currentTimeMillis() / MILLIS_PER_DAY : birthdayMin;
+        return epochDay < min || epochDay > max ? null : date;
+    }
+
+    /**
+     * @return the sex, or null if the value is not allowed
+     */
+    public Account.Sex parseSex(String sex) {
+        for(Account.Sex allowed : allowedSexes) {
+            if(allowed.name().equals(sex)) {
+                return allowed;
+            }
+        }
+        return null;
+    }
+
+    String getLoginViolation() {
+        return loginViolation;
+    }
+
+    String getNameViolation() {
+        return nameViolation;
+    }
+
+    String getBirthdayViolation() {
+        return birthdayViolation;
+    }
+
+    String getSexViolation() {
+        return sexViolation;
+    }
+
+    private static boolean[] compileCharset(String spec) {
+        List<char[]> ranges = new ArrayList<>();
+        int max = -1;
+        for(int i = 0; i < spec.length(); i++) {
+            char from = spec.charAt(i);
+            char to = from;
+            if(i + 2 < spec.length() && spec.charAt(i + 1) == '-') {
+                to = spec.charAt(i + 2);
+                i += 2;
+            }
+            if(to < from) {
+                throw new IllegalArgumentException("Invalid login charset range " + from + "-" + to);
+            }
+            ranges.add(new char[] {from, to});
+            max = Math.max(max, to);
+        }
+        boolean[] table = new boolean[max + 1];
+        for(char[] range : ranges) {
+            for(int c = range[0]; c <= range[1]; c++) {
+                table[c] = true;
+            }
+        }
+        return table;
+    }
+
+    private static int parseLength(Properties settings, String rule, int defaultValue) {
+        String value = settings.getProperty(PREFIX + rule);
+        if(value == null) {
+            return defaultValue;
+        }
+        int length = Integer.parseInt(value.trim());
+        if(length < 0) {
+            throw new IllegalArgumentException(PREFIX + rule + " should not be negative");
+        }
+        return length;
+    }
+
+    private static long parseDay(Properties settings, String rule, long defaultValue) {
+        String value = settings.getProperty(PREFIX + rule);
+        if(value == null) {
+            return defaultValue;
+        }
+        if(value.trim().equals("today")) {
+            return TODAY;
+        }
+        try {
+            return LocalDate.parse(value.trim()).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(PREFIX + rule + " should be a date in the format of YYYY-MM-DD or 'today'");
+        }
+    }
+
+    private static String formatDay(long epochDay) {
+        return epochDay == TODAY ? "today" : LocalDate.ofEpochDay(epochDay).toString();
+    }
+
+    private static String lengthLimits(int min, int max) {
+        return max == Integer.MAX_VALUE ? (min > 0 ? "at least " + min + " characters long" : "of any length")
+                : "from " + min + " to " + max + " characters long";
+    }
+
+    /**
+     * @return value of the decimal digits from start to end, or -1 if some character is not a digit
+     */
+    private static int parseDigits(String s, int start, int end) {
+        int value = 0;
+        for(int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * The built-in rules, which are also used for accounts read from a storage,
+     * so that tightening the rules doesn't make existing accounts unreadable
+     */
+    /**
+     * The longest login in characters, short enough to be a file name with any extension, in UTF-8
+     */
+    public static final int MAX_LOGIN_LENGTH = 64;
+    public static final AccountValidator DEFAULT = new AccountValidator(new Properties());
+
+    private static final String PREFIX = "usermanager.validation.";
+    private static final long TODAY = Long.MIN_VALUE + 1;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    private final boolean[] loginCharset;
+    private final int loginMinLength;
+    private final int loginMaxLength;
+    private final int nameMinLength;
+    private final int nameMaxLength;
+    private final long birthdayMin;
+    private final long birthdayMax;
+    private final Account.Sex[] allowedSexes;
+    private final String loginViolation;
+    private final String nameViolation;
+    private final String birthdayViolation;
+    private final String sexViolation;
+}
@@ -0,0 +1,201 @@
+package org;
+
+import org.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A write-through cache in front of another account storage.
+ * Recently used accounts are kept in memory, so that repeated reads of the same login do not touch the disk.
+ * Every store and remove goes to the underlying storage first and updates the cache afterwards,
+ * so the cache never holds an account that is not on disk.
+ * When the number of cached accounts exceeds the limit, the least recently used one is evicted.
+ */
+public class CachingAccountStorage extends AccountStorage {
+
+    /**
+     * @param delegate the storage that actually keeps the accounts
+     * @param maxEntries maximum number of accounts kept in memory
+     * @throws IllegalArgumentException if maxEntries is not positive
+     */
+    public CachingAccountStorage(AccountStorage delegate, int maxEntries) {
+        if(maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Account> eldest) {
+                if(size() > CachingAccountStorage.this.maxEntries) {
+                    evictions.increment();
+                    Metrics.ACCOUNT_CACHE_EVICTIONS.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the cached account, or reads it from the underlying storage on a miss
+     * @see AccountStorage#get(String)
+     */
+    @Override
+    public Account get(String login) throws IOException {
+        long writesBeforeRead;
+        synchronized (cache) {
+            Account cached = cache.get(login);
+            if(cached != null) {
+                hits.increment();
+                Metrics.ACCOUNT_CACHE_HITS.increment();
+                return new Account(cached);
+            }
+            writesBeforeRead = writes;
+        }
+        misses.increment();
+        Metrics.ACCOUNT_CACHE_MISSES.increment();
+
+        Account account = delegate.get(login);
+        synchronized (cache) {
+            // a concurrent write could have changed the record after it was read, don't cache a stale copy then
+            if(writes == writesBeforeRead) {
+                cache.put(login, new Account(account));
+            }
+        }
+        return account;
+    }
+
+    /**
+     * Writes the account to the underlying storage and caches a copy of it
+     * @see AccountStorage#store(Account)
+     */
+    @Override
+    public void store(Account account) throws IOException {
+        Account copy = new Account(account);
+        try {
+            delegate.store(account);
+        } catch (IOException|RuntimeException e) {
+            invalidate(copy.getLogin());
+            throw e;
+        }
+        synchronized (cache) {
+            writes++;
+            cache.put(copy.getLogin(), copy);
+        }
+    }
+
+    /**
+     * Writes the accounts to the underlying storage in one batch and caches copies of them
+     * @see AccountStorage#storeAll(List)
+     */
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        try {
+            delegate.storeAll(accounts);
+        } catch (IOException|RuntimeException e) {
+            for(Account account : accounts) {
+                invalidate(account.getLogin());
+            }
+            throw e;
+        }
+        synchronized (cache) {
+            writes++;
+            for(Account account : accounts) {
+                cache.put(account.getLogin(), new Account(account));
+            }
+        }
+    }
+
+    /**
+     * Drops the account from the cache and removes it from the underlying storage
+     * @see AccountStorage#remove(String)
+     */
+    @Override
+    public void remove(String login) throws IOException {
+        invalidate(login);
+        delegate.remove(login);
+    }
+
+    /**
+     * Drops both logins from the cache, renames the account in the underlying storage and caches a copy of it
+     * @see AccountStorage#rename(String, Account)
+     */
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        Account copy = new Account(account);
+        invalidate(oldLogin);
+        try {
+            delegate.rename(oldLogin, account);
+        } catch (IOException|RuntimeException e) {
+            invalidate(copy.getLogin());
+            throw e;
+        }
+        synchronized (cache) {
+            writes++;
+            cache.put(copy.getLogin(), copy);
+        }
+    }
+
+    /**
+     * Reads the accounts from the underlying storage, bypassing the cache so that a full scan doesn't evict hot accounts
+     * @see AccountStorage#forEachAccount(AccountVisitor)
+     */
+    @Override
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        delegate.forEachAccount(visitor);
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        delegate.forEachAccount(visitor, threads);
+    }
+
+    @Override
+    public ChangeLog getChangeLog() {
+        return delegate.getChangeLog();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private void invalidate(String login) {
+        synchronized (cache) {
+            writes++;
+            cache.remove(login);
+        }
+    }
+
+    private final AccountStorage delegate;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Account> cache;
+    private long writes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+}
@@ -0,0 +1,408 @@
+package org;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * An ordered durable log of account changes for consumers that follow them, e.g. search or analytics services.
+ * Every change gets the next sequence number, and a consumer reads the changes after the last number it has seen.
+ * Only changes that are durable are read, so a consumer never sees a change that a crash could take back.
+ * With sync on, concurrent appends share fsyncs: whoever syncs the file covers all changes written before.
+ * Every 1024th change is indexed by its offset, so reading from any number scans little of the file.
+ *
+ * Record layout: [int length][int crc32][long seq][long time][byte type][short login length][login]
+ * [short old login length][old login][account JSON], where length counts the bytes after the crc
+ * and the crc covers the same bytes.
+ */
+public class ChangeLog implements Closeable {
+
+    /**
+     * Opens the log file, creating it if needed, and cuts off a damaged record at its end left by a crash
+     * @param file the log file
+     * @param sync whether appends should wait until their changes are on the disk
+     * @throws IOException if the file can't be opened or read
+     */
+    public ChangeLog(Path file, boolean sync) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = channel.size();
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            Change change;
+            while((change = readRecord(in, end - offset)) != null) {
+                if(change.seq % INDEX_INTERVAL == 1) {
+                    offsets.put(change.seq, offset);
+                }
+                offset += change.size;
+                lastSeq = change.seq;
+            }
+        }
+        if(offset < end) {
+            System.err.println("Truncating damaged tail of " + file + " at " + offset);
+            channel.truncate(offset);
+        }
+        size = offset;
+        durableSize = offset;
+        durableSeq = lastSeq;
+    }
+
+    /**
+     * Appends a change and waits until it is durable if sync is on
+     * @param oldLogin the previous login of a renamed account, null for other changes
+     * @param account public JSON of the account after the change, null for a deleted one
+     * @return the sequence number of the change
+     * @throws IOException if the change couldn't be written or synced
+     * @throws IllegalArgumentException if a login is longer than 65535 bytes in UTF-8
+     */
+    public long append(Type type, String login, String oldLogin, byte[] account) throws IOException {
+        byte[] loginBytes = encodeLogin(login);
+        byte[] oldLoginBytes = oldLogin == null ? new byte[0] : encodeLogin(oldLogin);
+        byte[] json = account == null ? new byte[0] : account;
+        long seq;
+        long end;
+        synchronized (channel) {
+            seq = lastSeq + 1;
+            end = write(seq, type, loginBytes, oldLoginBytes, json);
+        }
+        if(sync) {
+            sync(end);
+        } else {
+            publish(end, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Appends changes that have no old login, e.g. of a batch of stored accounts, in one go,
+     * and waits until all of them are durable with a single sync if sync is on
+     * @param types types of the changes
+     * @param logins logins of the changed accounts
+     * @param accounts public JSON of the accounts after the changes, null for deleted ones
+     * @return the sequence number of the last change, the last one of the log if there are no changes
+     * @throws IOException if the changes couldn't be written or synced
+     * @throws IllegalArgumentException if the lists have different sizes or a login is longer than 65535 bytes
+     *                                  in UTF-8, then no change is written
+     */
+    public long appendAll(List<Type> types, List<String> logins, List<byte[]> accounts) throws IOException {
+        if(types.size() != logins.size() || logins.size() != accounts.size()) {
+            throw new IllegalArgumentException("Expected a type, a login and an account for every change");
+        }
+        List<byte[]> loginBytes = new ArrayList<>(logins.size());
+        for(String login : logins) {
+            loginBytes.add(encodeLogin(login));
+        }
+        long seq;
+        long end;
+        synchronized (channel) {
+            seq = lastSeq;
+            end = size;
+            for(int i = 0; i < types.size(); i++) {
+                byte[] json = accounts.get(i) == null ? new byte[0] : accounts.get(i);
+                seq = lastSeq + 1;
+                end = write(seq, types.get(i), loginBytes.get(i), new byte[0], json);
+            }
+        }
+        if(types.isEmpty()) {
+            return seq;
+        }
+        if(sync) {
+            sync(end);
+        } else {
+            publish(end, seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Reads durable changes in order
+     * @param since the last sequence number the reader has seen, 0 to read from the start
+     * @param limit maximum number of changes to read
+     * @throws IOException if the file can't be read
+     */
+    public List<Change> read(long since, int limit) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        long end;
+        synchronized (published) {
+            end = durableSize;
+        }
+        Map.Entry<Long, Long> start = offsets.floorEntry(since + 1);
+        long offset = start == null ? 0 : start.getValue();
+        try (InputStream is = Files.newInputStream(file)) {
+            long skipped = 0;
+            while(skipped < offset) {
+                skipped += is.skip(offset - skipped);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+            while(offset < end && changes.size() < limit) {
+                Change change = readRecord(in, end - offset);
+                if(change == null) {
+                    throw new IOException("Damaged record in " + file + " at " + offset);
+                }
+                offset += change.size;
+                if(change.seq > since) {
+                    changes.add(change);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Calls the listener on the appending thread once a change after the sequence number is durable, or at once
+     * if there is one already
+     * @return removes the listener if it hasn't been called yet, so a waiter that gives up leaves nothing behind
+     */
+    public Runnable onAppended(long seq, Runnable listener) {
+        synchronized (published) {
+            if(durableSeq <= seq) {
+                listeners.add(listener);
+                return () -> {
+                    synchronized (published) {
+                        listeners.remove(listener);
+                    }
+                };
+            }
+        }
+        listener.run();
+        return () -> {};
+    }
+
+    /**
+     * @return the sequence number of the last durable change, 0 if there are none
+     */
+    public long getLastSeq() {
+        synchronized (published) {
+            return durableSeq;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (channel) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the login is too long for a record, which keeps its length in two bytes
+     */
+    private static byte[] encodeLogin(String login) {
+        byte[] bytes = login.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MAX_LOGIN_BYTES) {
+            throw new IllegalArgumentException("Login is too long for a change record: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a record at the end of the file, should be called only while holding the channel
+     * @return the end of the file after the record
+     */
+    private long write(long seq, Type type, byte[] login, byte[] oldLogin, byte[] json) throws IOException {
+        int length = 8 + 8 + 1 + 2 + login.length + 2 + oldLogin.length + json.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.putLong(seq);
+        record.putLong(System.currentTimeMillis());
+        record.put((byte) type.ordinal());
+        record.putShort((short) login.length);
+        record.put(login);
+        record.putShort((short) oldLogin.length);
+        record.put(oldLogin);
+        record.put(json);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        long position = size;
+        while(record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        if(seq % INDEX_INTERVAL == 1) {
+            offsets.put(seq, size);
+        }
+        size = position;
+        lastSeq = seq;
+        return position;
+    }
+
+    /**
+     * Syncs the file unless another thread has synced it after the change at the end offset was written
+     */
+    private void sync(long end) throws IOException {
+        synchronized (syncLock) {
+            synchronized (published) {
+                if(durableSize >= end) {
+                    return;
+                }
+            }
+            long target;
+            long targetSeq;
+            synchronized (channel) {
+                target = size;
+                targetSeq = lastSeq;
+            }
+            channel.force(false);
+            publish(target, targetSeq);
+        }
+    }
+
+    private void publish(long end, long seq) {
+        Set<Runnable> waiting = null;
+        synchronized (published) {
+            if(end > durableSize) {
+                durableSize = end;
+                durableSeq = seq;
+                if(!listeners.isEmpty()) {
+                    waiting = listeners;
+                    listeners = new LinkedHashSet<>();
+                }
+            }
+        }
+        if(waiting != null) {
+            for(Runnable listener : waiting) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * @param available number of bytes of the file left to read
+     * @return the next change, or null if the rest of the file doesn't hold a complete valid record
+     */
+    private static Change readRecord(DataInputStream in, long available) throws IOException {
+        if(available < HEADER_SIZE) {
+            return null;
+        }
+        int length = in.readInt();
+        int expectedCrc = in.readInt();
+        if(length < MIN_LENGTH || HEADER_SIZE + length > available) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        long seq = buffer.getLong();
+        long time = buffer.getLong();
+        int type = buffer.get();
+        String login = readString(buffer);
+        String oldLogin = readString(buffer);
+        if(login == null || oldLogin == null || type < 0 || type >= TYPES.length) {
+            return null;
+        }
+        byte[] account = new byte[buffer.remaining()];
+        buffer.get(account);
+        return new Change(seq, time, TYPES[type], login, oldLogin.isEmpty() ? null : oldLogin,
+                account.length == 0 ? null : account, HEADER_SIZE + length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        if(buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort() & 0xffff;
+        if(buffer.remaining() < length) {
+            return null;
+        }
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    public enum Type {
+        CREATED, UPDATED, RENAMED, DELETED
+    }
+
+    public static class Change {
+        Change(long seq, long time, Type type, String login, String oldLogin, byte[] account, int size) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.login = login;
+            this.oldLogin = oldLogin;
+            this.account = account;
+            this.size = size;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return when the change was logged, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getLogin() {
+            return login;
+        }
+
+        /**
+         * @return the previous login of a renamed account, null for other changes
+         */
+        public String getOldLogin() {
+            return oldLogin;
+        }
+
+        /**
+         * @return public JSON of the account after the change, null if it is deleted
+         */
+        public byte[] getAccount() {
+            return account;
+        }
+
+        private final long seq;
+        private final long time;
+        private final Type type;
+        private final String login;
+        private final String oldLogin;
+        private final byte[] account;
+        private final int size;
+    }
+
+    public static final String FILE = "changes.log";
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_LENGTH = 8 + 8 + 1 + 2 + 2;
+    private static final int INDEX_INTERVAL = 1024;
+    private static final int MAX_LOGIN_BYTES = 0xffff;
+    private static final Type[] TYPES = Type.values();
+
+    private final Path file;
+    private final boolean sync;
+    private final FileChannel channel;
+    private final ConcurrentSkipListMap<Long, Long> offsets = new ConcurrentSkipListMap<>();
+    private final Object syncLock = new Object();
+    private final Object published = new Object();
+    private long size;
+    private long lastSeq = 0;
+    private long durableSize;
+    private long durableSeq;
+    private Set<Runnable> listeners = new LinkedHashSet<>();
+}
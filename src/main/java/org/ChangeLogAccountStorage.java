@@ -0,0 +1,119 @@
+package org;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Records every successful change of another account storage in a {@link ChangeLog}.
+ * A change is logged after the underlying storage has applied it, so the log never has a change that failed,
+ * but a crash between the two loses the change from the log. Changes of the same login should be serialized
+ * by the caller, as the resource does with its per-login locks, then they are logged in the order they are applied.
+ * To tell a created account from an updated one, the account is looked up before it is stored, which is usually
+ * a hit of the cache under this storage.
+ */
+public class ChangeLogAccountStorage extends AccountStorage {
+
+    /**
+     * @param delegate the storage that actually keeps the accounts
+     * @param changes the log to record changes in, it is closed along with the storage
+     */
+    public ChangeLogAccountStorage(AccountStorage delegate, ChangeLog changes) {
+        this.delegate = delegate;
+        this.changes = changes;
+    }
+
+    @Override
+    public Account get(String login) throws IOException {
+        return delegate.get(login);
+    }
+
+    @Override
+    public void store(Account account) throws IOException {
+        boolean exists = exists(account.getLogin());
+        delegate.store(account);
+        changes.append(exists ? ChangeLog.Type.UPDATED : ChangeLog.Type.CREATED, account.getLogin(), null,
+                encode(account));
+    }
+
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        boolean[] exist = new boolean[accounts.size()];
+        for(int i = 0; i < exist.length; i++) {
+            exist[i] = exists(accounts.get(i).getLogin());
+        }
+        delegate.storeAll(accounts);
+        List<ChangeLog.Type> types = new ArrayList<>(exist.length);
+        List<String> logins = new ArrayList<>(exist.length);
+        List<byte[]> encoded = new ArrayList<>(exist.length);
+        for(int i = 0; i < exist.length; i++) {
+            Account account = accounts.get(i);
+            types.add(exist[i] ? ChangeLog.Type.UPDATED : ChangeLog.Type.CREATED);
+            logins.add(account.getLogin());
+            encoded.add(encode(account));
+        }
+        // the whole batch is made durable with a single sync
+        changes.appendAll(types, logins, encoded);
+    }
+
+    @Override
+    public void remove(String login) throws IOException {
+        delegate.remove(login);
+        changes.append(ChangeLog.Type.DELETED, login, null, null);
+    }
+
+    /**
+     * Logs a rename to the same login as an update
+     * @see AccountStorage#rename(String, Account)
+     */
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        delegate.rename(oldLogin, account);
+        if(oldLogin.equals(account.getLogin())) {
+            changes.append(ChangeLog.Type.UPDATED, account.getLogin(), null, encode(account));
+        } else {
+            changes.append(ChangeLog.Type.RENAMED, account.getLogin(), oldLogin, encode(account));
+        }
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        delegate.forEachAccount(visitor);
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        delegate.forEachAccount(visitor, threads);
+    }
+
+    @Override
+    public ChangeLog getChangeLog() {
+        return changes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        changes.close();
+    }
+
+    private boolean exists(String login) throws IOException {
+        try {
+            delegate.get(login);
+            return true;
+        } catch (UserNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static byte[] encode(Account account) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+        AccountJsonSerializer.toPublicJSON(account, json);
+        return json.toByteArray();
+    }
+
+    private final AccountStorage delegate;
+    private final ChangeLog changes;
+}
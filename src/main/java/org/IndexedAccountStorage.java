@@ -0,0 +1,475 @@
+package org;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * An account storage that keeps in-memory secondary indexes of the accounts of another storage:
+ * a sorted name index, a sorted birthday index and a bitmap of accounts per sex.
+ * The indexes are built from all accounts when the storage is created
+ * and updated after every change that went through this storage, so changes of the same login should not run
+ * concurrently (the resource serializes them with per-login locks).
+ *
+ * Searches return pages of logins with a cursor, that is the position of the last returned account in the index
+ * the search walks, so fetching a page costs the same however deep it is.
+ * Every account gets a number for the sex bitmaps, which is kept until the account is removed.
+ * Numbers are not reused, so the bitmaps grow with removed accounts until the storage is rebuilt.
+ *
+ * Along with the index entry of every account a fingerprint of its content is kept, which serves as its ETag:
+ * it is the same after a restart and on every server with the same account, and changes with any field.
+ */
+public class IndexedAccountStorage extends AccountStorage {
+
+    /**
+     * Reads all accounts of the delegate to build the indexes
+     * @param delegate the storage that actually keeps the accounts
+     * @throws IOException if the accounts can't be read
+     */
+    public IndexedAccountStorage(AccountStorage delegate) throws IOException {
+        this(delegate, 1);
+    }
+
+    /**
+     * Reads all accounts of the delegate to build the indexes
+     * @param delegate the storage that actually keeps the accounts
+     * @param loadThreads number of threads reading the accounts, see {@link #forEachAccount(AccountVisitor, int)}
+     * @throws IOException if the accounts can't be read
+     */
+    public IndexedAccountStorage(AccountStorage delegate, int loadThreads) throws IOException {
+        this.delegate = delegate;
+        this.loadThreads = loadThreads;
+        for(int i = 0; i < bySex.length; i++) {
+            bySex[i] = new BitSet();
+        }
+        rebuild();
+    }
+
+    @Override
+    public Account get(String login) throws IOException {
+        return delegate.get(login);
+    }
+
+    @Override
+    public void store(Account account) throws IOException {
+        try {
+            delegate.store(account);
+        } catch (IOException|RuntimeException e) {
+            refresh(account.getLogin());
+            throw e;
+        }
+        put(account);
+    }
+
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        try {
+            delegate.storeAll(accounts);
+        } catch (IOException|RuntimeException e) {
+            for(Account account : accounts) {
+                refresh(account.getLogin());
+            }
+            throw e;
+        }
+        for(Account account : accounts) {
+            put(account);
+        }
+    }
+
+    @Override
+    public void remove(String login) throws IOException {
+        try {
+            delegate.remove(login);
+        } catch (IOException|RuntimeException e) {
+            refresh(login);
+            throw e;
+        }
+        delete(login);
+    }
+
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        try {
+            delegate.rename(oldLogin, account);
+        } catch (IOException|RuntimeException e) {
+            refresh(oldLogin);
+            refresh(account.getLogin());
+            throw e;
+        }
+        if(!oldLogin.equals(account.getLogin())) {
+            delete(oldLogin);
+        }
+        put(account);
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        delegate.forEachAccount(visitor);
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        delegate.forEachAccount(visitor, threads);
+    }
+
+    @Override
+    public ChangeLog getChangeLog() {
+        return delegate.getChangeLog();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    /**
+     * Finds logins of accounts matching the query.
+     * With a name prefix accounts are returned in the order of names, otherwise with a birthday range in the order
+     * of birthdays, otherwise with a sex in the order of creation, otherwise in the order of logins
+     * @param cursor the cursor of the previous page, null for the first page
+     * @param limit maximum number of logins in the page
+     * @throws IllegalArgumentException if the cursor is malformed or belongs to a different kind of query,
+     *                                  or the limit is not positive
+     */
+    public Page search(AccountQuery query, String cursor, int limit) {
+        if(limit <= 0) {
+            throw new IllegalArgumentException("Limit should be positive");
+        }
+        char order = query.getNamePrefix() != null ? BY_NAME
+                : query.getBornAfter() != null || query.getBornBefore() != null ? BY_BIRTHDAY
+                : query.getSex() != null ? BY_SEX
+                : BY_LOGIN;
+        Entry after = cursor == null ? null : parseCursor(order, cursor);
+
+        List<String> logins = new ArrayList<>(Math.min(limit, 1024));
+        Entry last = null;
+        String next = null;
+        lock.readLock().lock();
+        try {
+            Iterator<Entry> candidates = candidates(order, query, after);
+            while(candidates.hasNext()) {
+                Entry entry = candidates.next();
+                if(order == BY_NAME && !entry.name.startsWith(query.getNamePrefix()) ||
+                        order == BY_BIRTHDAY && query.getBornBefore() != null &&
+                                !entry.birthday.isBefore(query.getBornBefore())) {
+                    break;
+                }
+                if(!query.matches(entry.name, entry.birthday, entry.sex)) {
+                    continue;
+                }
+                if(logins.size() == limit) {
+                    next = formatCursor(order, last);
+                    break;
+                }
+                logins.add(entry.login);
+                last = entry;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Page(logins, next);
+    }
+
+    /**
+     * @return the quoted ETag of the current content of the account, or null if there is no such account
+     */
+    public String getETag(String login) {
+        Entry entry;
+        lock.readLock().lock();
+        try {
+            entry = byLogin.get(login);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return entry == null ? null : formatETag(entry.fingerprintHigh, entry.fingerprintLow);
+    }
+
+    /**
+     * @return the quoted ETag of the given content of an account
+     */
+    public static String computeETag(Account account) {
+        long[] fingerprint = fingerprint(account);
+        return formatETag(fingerprint[0], fingerprint[1]);
+    }
+
+    /**
+     * @return number of indexed accounts
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byLogin.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Iterator<Entry> candidates(char order, AccountQuery query, Entry after) {
+        switch (order) {
+            case BY_NAME:
+                return (after != null ? byName.tailSet(after, false)
+                        : byName.tailSet(new Entry(-1, "", query.getNamePrefix(), null, null), true)).iterator();
+            case BY_BIRTHDAY:
+                if(after != null) {
+                    return byBirthday.tailSet(after, false).iterator();
+                }
+                return query.getBornAfter() == null ? byBirthday.iterator()
+                        : byBirthday.tailSet(new Entry(-1, "", null, query.getBornAfter().plusDays(1), null), true)
+                                .iterator();
+            case BY_SEX:
+                BitSet bitmap = bySex[query.getSex().ordinal()];
+                return new Iterator<Entry>() {
+                    public boolean hasNext() {
+                        return id >= 0;
+                    }
+
+                    public Entry next() {
+                        Entry entry = byId.get(id);
+                        id = bitmap.nextSetBit(id + 1);
+                        return entry;
+                    }
+
+                    int id = bitmap.nextSetBit(after == null ? 0 : after.id + 1);
+                };
+            default:
+                return (after != null ? byLogin.tailMap(after.login, false) : byLogin).values().iterator();
+        }
+    }
+
+    private static String formatCursor(char order, Entry entry) {
+        String position;
+        switch (order) {
+            case BY_NAME:
+                position = entry.login + '\0' + entry.name;
+                break;
+            case BY_BIRTHDAY:
+                position = entry.login + '\0' + entry.birthday.toEpochDay();
+                break;
+            case BY_SEX:
+                position = String.valueOf(entry.id);
+                break;
+            default:
+                position = entry.login;
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((order + position).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Entry parseCursor(char order, String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        if(decoded.isEmpty() || decoded.charAt(0) != order) {
+            throw new IllegalArgumentException("The cursor doesn't belong to this query");
+        }
+        String position = decoded.substring(1);
+        int separator = position.indexOf('\0');
+        try {
+            switch (order) {
+                case BY_NAME:
+                    return new Entry(-1, position.substring(0, separator), position.substring(separator + 1),
+                            null, null);
+                case BY_BIRTHDAY:
+                    return new Entry(-1, position.substring(0, separator), null,
+                            LocalDate.ofEpochDay(Long.parseLong(position.substring(separator + 1))), null);
+                case BY_SEX:
+                    return new Entry(Math.max(-1, Integer.parseInt(position)), null, null, null, null);
+                default:
+                    return new Entry(-1, position, null, null, null);
+            }
+        } catch (IndexOutOfBoundsException|java.time.DateTimeException e) {
+            // NumberFormatException is an IllegalArgumentException as well
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+    }
+
+    private void rebuild() throws IOException {
+        lock.writeLock().lock();
+        try {
+            byLogin.clear();
+            byName.clear();
+            byBirthday.clear();
+            byId.clear();
+            for(BitSet bitmap : bySex) {
+                bitmap.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        delegate.forEachAccount(this::put, loadThreads);
+    }
+
+    /**
+     * Brings the entry of the login in line with the delegate after a failed change
+     */
+    private void refresh(String login) {
+        try {
+            put(delegate.get(login));
+        } catch (UserNotFoundException e) {
+            delete(login);
+        } catch (IOException|RuntimeException e) {
+            System.err.println("Can't refresh the index of " + login + ": " + e);
+        }
+    }
+
+    private void put(Account account) {
+        long[] fingerprint = fingerprint(account);
+        lock.writeLock().lock();
+        try {
+            Entry old = byLogin.get(account.getLogin());
+            int id = old != null ? old.id : byId.size();
+            if(old != null) {
+                unlink(old);
+            } else {
+                byId.add(null);
+            }
+            Entry entry = new Entry(id, account.getLogin(), account.getName(), account.getBirthday(), account.getSex(),
+                    fingerprint[0], fingerprint[1]);
+            byLogin.put(entry.login, entry);
+            byName.add(entry);
+            byBirthday.add(entry);
+            byId.set(id, entry);
+            if(entry.sex != null) {
+                bySex[entry.sex.ordinal()].set(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the first 128 bits of SHA-256 of the binary encoding of the account
+     */
+    private static long[] fingerprint(Account account) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(128);
+        try {
+            AccountBinarySerializer.toBinary(account, os);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer digest = ByteBuffer.wrap(SHA256.get().digest(os.toByteArray()));
+        return new long[] {digest.getLong(), digest.getLong()};
+    }
+
+    private static String formatETag(long high, long low) {
+        char[] tag = new char[34];
+        tag[0] = '"';
+        tag[33] = '"';
+        for(int i = 0; i < 16; i++) {
+            tag[16 - i] = HEX[(int) (high >>> (i * 4)) & 0xf];
+            tag[32 - i] = HEX[(int) (low >>> (i * 4)) & 0xf];
+        }
+        return new String(tag);
+    }
+
+    private void delete(String login) {
+        lock.writeLock().lock();
+        try {
+            Entry old = byLogin.remove(login);
+            if(old != null) {
+                unlink(old);
+                byId.set(old.id, null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unlink(Entry entry) {
+        byName.remove(entry);
+        byBirthday.remove(entry);
+        if(entry.sex != null) {
+            bySex[entry.sex.ordinal()].clear(entry.id);
+        }
+    }
+
+    /**
+     * A page of search results
+     */
+    public static class Page {
+        Page(List<String> logins, String next) {
+            this.logins = logins;
+            this.next = next;
+        }
+
+        public List<String> getLogins() {
+            return logins;
+        }
+
+        /**
+         * @return the cursor of the next page, null if this page is the last one
+         */
+        public String getNext() {
+            return next;
+        }
+
+        private final List<String> logins;
+        private final String next;
+    }
+
+    private static class Entry {
+        /**
+         * Creates an entry to look up a position in the indexes
+         */
+        Entry(int id, String login, String name, LocalDate birthday, Account.Sex sex) {
+            this(id, login, name, birthday, sex, 0, 0);
+        }
+
+        Entry(int id, String login, String name, LocalDate birthday, Account.Sex sex,
+              long fingerprintHigh, long fingerprintLow) {
+            this.id = id;
+            this.login = login;
+            this.name = name;
+            this.birthday = birthday;
+            this.sex = sex;
+            this.fingerprintHigh = fingerprintHigh;
+            this.fingerprintLow = fingerprintLow;
+        }
+
+        final int id;
+        final String login;
+        final String name;
+        final LocalDate birthday;
+        final Account.Sex sex;
+        final long fingerprintHigh;
+        final long fingerprintLow;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final char BY_NAME = 'n';
+    private static final char BY_BIRTHDAY = 'b';
+    private static final char BY_SEX = 's';
+    private static final char BY_LOGIN = 'l';
+    private static final Comparator<Entry> NAME_ORDER =
+            Comparator.comparing((Entry e) -> e.name).thenComparing(e -> e.login);
+    private static final Comparator<Entry> BIRTHDAY_ORDER =
+            Comparator.comparing((Entry e) -> e.birthday).thenComparing(e -> e.login);
+
+    private final AccountStorage delegate;
+    private final int loadThreads;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Entry> byLogin = new TreeMap<>();
+    private final TreeSet<Entry> byName = new TreeSet<>(NAME_ORDER);
+    private final TreeSet<Entry> byBirthday = new TreeSet<>(BIRTHDAY_ORDER);
+    private final ArrayList<Entry> byId = new ArrayList<>();
+    private final BitSet[] bySex = new BitSet[Account.Sex.values().length];
+}
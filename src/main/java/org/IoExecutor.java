@@ -0,0 +1,90 @@
+package org;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs operations on a bounded pool of I/O threads and returns futures of their results,
+ * so that callers like request threads don't wait for the disk themselves. Operations are whole requests,
+ * which usually take locks around several calls of the storage, see {@link #submit(Callable)}.
+ * When all threads are busy operations queue up, and when the queue is full they are rejected at once,
+ * which lets the caller shed load instead of piling up requests.
+ * With no threads operations run in the calling thread and the futures are already complete.
+ */
+public class IoExecutor implements Closeable {
+
+    /**
+     * @param threads number of I/O threads, 0 to run operations in the calling thread
+     * @param queueSize how many operations may wait for a thread before new ones are rejected
+     */
+    public IoExecutor(int threads, int queueSize) {
+        if(threads > 0) {
+            AtomicInteger counter = new AtomicInteger();
+            this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                        Thread thread = new Thread(runnable, "storage-io-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        } else {
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Creates the executor from properties:
+     * usermanager.io.threads - I/O threads, 0 to run operations in the calling thread, 32 by default
+     * usermanager.io.queue - operations waiting for a thread, 1024 by default
+     * @param settings usually the system properties of the server
+     * @throws NumberFormatException if a setting is malformed
+     */
+    public static IoExecutor create(Properties settings) {
+        return new IoExecutor(
+                Integer.parseInt(settings.getProperty("usermanager.io.threads", "32")),
+                Integer.parseInt(settings.getProperty("usermanager.io.queue", "1024")));
+    }
+
+    /**
+     * Runs an operation on an I/O thread
+     * @return a future completed with the result of the operation or with the exception it has thrown
+     * @throws RejectedExecutionException if too many operations are waiting for a thread
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                result.complete(operation.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        };
+        if(pool == null) {
+            task.run();
+        } else {
+            pool.execute(task);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of operations waiting for a thread
+     */
+    public int getQueued() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * Stops the threads after the queued operations
+     */
+    @Override
+    public void close() {
+        if(pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+}
@@ -0,0 +1,588 @@
+package org;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.metrics.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+/**
+ * An account storage that appends all accounts to a few large segment files instead of keeping a file per login.
+ * An in-memory index maps every login to the position of its latest record, so a read is a single positional read.
+ * Removing an account appends a tombstone record. When a segment contains mostly overwritten or removed
+ * records, a background task copies its live records to the end of the log and deletes the segment.
+ * Tombstones are copied along only while an older segment still holds a record of their login.
+ *
+ * Record layout: [int length][int crc32][byte type][short login length][login][account description],
+ * where length counts the bytes after the crc and the crc covers the same bytes.
+ * A rename is a single record with the new login, whose description is prefixed with
+ * [short old login length][old login], so a crash can't leave the account under both logins or under none.
+ * Account descriptions are encoded with the given {@link AccountCodec}, JSON by default.
+ * A record with a wrong crc or a record cut off at the end of a segment is treated as the end of the segment.
+ *
+ * In memory-mapped mode reads are served from read-only mappings of the segments and parsed right from them.
+ * Sealed segments are mapped once. The mapping of the active segment is extended only after the segment has grown
+ * by REMAP_STEP bytes, records appended since the last remapping are read with positional reads meanwhile.
+ */
+public class LogStructuredAccountStorage extends AccountStorage {
+
+    /**
+     * Opens the log in the given directory with default segment size and compaction settings
+     * @param dataPath path to a directory where segments will be stored
+     * @throws IOException if the directory can't be created or the segments can't be read
+     */
+    public LogStructuredAccountStorage(String dataPath) throws IOException {
+        this(dataPath, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, false, AccountCodec.JSON);
+    }
+
+    /**
+     * Opens the log in the given directory and rebuilds the index from the existing segments
+     * @param dataPath path to a directory where segments will be stored
+     * @param maxSegmentSize size in bytes after which a new segment is started
+     * @param compactionThreshold fraction of dead bytes in a segment after which it is compacted, 0 disables compaction
+     * @param memoryMapped whether reads should be served from memory-mapped segments
+     * @param codec encoding of account descriptions in records
+     * @throws IOException if the directory can't be created or the segments can't be read
+     * @throws IllegalArgumentException if memory mapping is requested for segments larger than 2GB
+     */
+    public LogStructuredAccountStorage(String dataPath, long maxSegmentSize, double compactionThreshold,
+                                       boolean memoryMapped, AccountCodec codec) throws IOException {
+        super(dataPath);
+        if(memoryMapped && maxSegmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Memory-mapped segments can't be larger than 2GB");
+        }
+        this.directory = Paths.get(dataPath);
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.memoryMapped = memoryMapped;
+        this.codec = codec;
+
+        recover();
+
+        if(compactionThreshold > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "account-log-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compactDeadSegments,
+                    COMPACTION_PERIOD_SECONDS, COMPACTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+        } else {
+            compactor = null;
+        }
+    }
+
+    /**
+     * Reads the latest record of the account
+     * @see AccountStorage#get(String)
+     */
+    @Override
+    public Account get(String login) throws IOException {
+        while(true) {
+            Location location = index.get(login);
+            if(location == null) {
+                throw new UserNotFoundException(login);
+            }
+            InputStream is;
+            try {
+                is = open(location);
+            } catch (ClosedChannelException e) {
+                if(index.get(login) == location) {
+                    throw e;
+                }
+                // the segment has just been compacted, the index already points to the new copy
+                continue;
+            }
+            Metrics.BYTES_READ.add(location.payloadLength);
+            try {
+                return codec.read(is);
+            } catch (IllegalArgumentException|AccountJsonSerializer.InvalidDescription e) {
+                throw new CorruptedFileException(location.segment.file.getFileName() + " at " + location.payloadOffset);
+            }
+        }
+    }
+
+    /**
+     * Appends the account to the log
+     * @see AccountStorage#store(Account)
+     */
+    @Override
+    public void store(Account account) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        codec.write(account, os);
+        byte[] payload = os.toByteArray();
+
+        synchronized (writeLock) {
+            Location location = append(PUT, account.getLogin(), payload);
+            markDead(account.getLogin(), index.put(account.getLogin(), location));
+        }
+    }
+
+    /**
+     * Appends all accounts to the log taking the write lock once
+     * @see AccountStorage#storeAll(List)
+     */
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(accounts.size());
+        for(Account account : accounts) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+            codec.write(account, os);
+            payloads.add(os.toByteArray());
+        }
+
+        synchronized (writeLock) {
+            for(int i = 0; i < accounts.size(); i++) {
+                String login = accounts.get(i).getLogin();
+                markDead(login, index.put(login, append(PUT, login, payloads.get(i))));
+            }
+        }
+    }
+
+    /**
+     * Appends a tombstone for the account to the log
+     * @see AccountStorage#remove(String)
+     */
+    @Override
+    public void remove(String login) throws IOException {
+        synchronized (writeLock) {
+            if(!index.containsKey(login)) {
+                throw new UserNotFoundException(login);
+            }
+            markDead(append(DELETE, login, new byte[0]));
+            markDead(login, index.remove(login));
+        }
+    }
+
+    /**
+     * Appends a single rename record, that both stores the account under the new login and removes the old one
+     * @see AccountStorage#rename(String, Account)
+     */
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        String newLogin = account.getLogin();
+        if(oldLogin.equals(newLogin)) {
+            store(account);
+            return;
+        }
+        byte[] oldLoginBytes = oldLogin.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        os.write(oldLoginBytes.length >>> 8);
+        os.write(oldLoginBytes.length);
+        os.write(oldLoginBytes);
+        codec.write(account, os);
+        byte[] payload = os.toByteArray();
+
+        synchronized (writeLock) {
+            if(!index.containsKey(oldLogin)) {
+                throw new UserNotFoundException(oldLogin);
+            }
+            markDead(newLogin, index.put(newLogin, append(RENAME, newLogin, payload)));
+            markDead(oldLogin, index.remove(oldLogin));
+        }
+    }
+
+    /**
+     * Lists the logins present in the index, accounts stored during the iteration may be skipped
+     * @see AccountStorage#forEachAccount(AccountVisitor)
+     */
+    @Override
+    protected void forEachLogin(LoginVisitor visitor) throws IOException {
+        for(String login : index.keySet()) {
+            visitor.visit(login);
+        }
+    }
+
+    /**
+     * Stops the compaction and closes all segments
+     * @throws IOException if a segment can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if(compactor != null) {
+            compactor.shutdownNow();
+        }
+        synchronized (writeLock) {
+            for(Segment segment : segments.values()) {
+                segment.mapping = null;
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return number of accounts in the storage
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return number of segment files of the log
+     */
+    public int getSegmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Compacts every sealed segment that has more dead bytes than the compaction threshold permits.
+     * Called periodically in the background, may be also called directly.
+     */
+    public void compactDeadSegments() {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for(Segment segment : segments.values()) {
+                if(segment != active && segment.deadBytes.get() >= segment.size * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for(Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                System.err.println("Compaction of " + segment.file + " failed: " + e);
+                return;
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for(Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+
+        for(int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            int id = Integer.parseInt(file.getFileName().toString().substring(8, 16));
+            Segment segment = openSegment(id);
+            long end = scan(segment, (type, login, payload, offset, length, payloadOffset) -> {
+                if(type == PUT) {
+                    markDead(login, index.put(login,
+                            new Location(segment, offset, length, payloadOffset, payload.length)));
+                } else if(type == RENAME) {
+                    int prefix = renamePrefixLength(payload);
+                    markDead(login, index.put(login, new Location(segment, offset, length,
+                            payloadOffset + prefix, payload.length - prefix)));
+                    String oldLogin = renamedLogin(payload);
+                    markDead(oldLogin, index.remove(oldLogin));
+                } else {
+                    markDead(login, index.remove(login));
+                    segment.deadBytes.addAndGet(length);
+                }
+            });
+            if(end < segment.channel.size()) {
+                System.err.println("Truncating damaged tail of " + file + " at " + end);
+                segment.channel.truncate(end);
+            }
+            segment.size = end;
+            segments.put(id, segment);
+            active = segment;
+        }
+        if(active == null) {
+            active = openSegment(1);
+            segments.put(1, active);
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        scan(segment, (type, login, payload, offset, length, payloadOffset) -> {
+            synchronized (writeLock) {
+                Location current = index.get(login);
+                boolean live = current != null && current.segment == segment && current.recordOffset == offset;
+                if(type == PUT) {
+                    if(live) {
+                        index.put(login, append(PUT, login, payload));
+                    }
+                } else if(type == RENAME) {
+                    // an older segment may still hold a record of the old login, keep it removed
+                    String oldLogin = renamedLogin(payload);
+                    boolean keepTombstone = !index.containsKey(oldLogin) && hasOlderRecord(oldLogin, segment);
+                    if(live && keepTombstone) {
+                        index.put(login, append(RENAME, login, payload));
+                    } else if(live) {
+                        int prefix = renamePrefixLength(payload);
+                        byte[] account = new byte[payload.length - prefix];
+                        System.arraycopy(payload, prefix, account, 0, account.length);
+                        index.put(login, append(PUT, login, account));
+                    } else if(keepTombstone) {
+                        markDead(append(DELETE, oldLogin, new byte[0]));
+                    }
+                } else if(current == null && hasOlderRecord(login, segment)) {
+                    // an older segment still holds a record of the removed account, keep the tombstone
+                    markDead(append(DELETE, login, payload));
+                }
+            }
+        });
+        synchronized (writeLock) {
+            active.channel.force(false);
+            segments.remove(segment.id);
+        }
+        // readers may still use the old mapping, it is released by the garbage collector
+        segment.mapping = null;
+        segment.channel.close();
+        Files.delete(segment.file);
+    }
+
+    /**
+     * Writes a record to the end of the active segment, starting a new one if it's full.
+     * Should be called only under the write lock.
+     * @throws IllegalArgumentException if the login is too long for a record
+     */
+    private Location append(byte type, String login, byte[] payload) throws IOException {
+        byte[] loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        if(loginBytes.length > MAX_LOGIN_BYTES) {
+            throw new IllegalArgumentException("Login is too long for a log record: " + loginBytes.length + " bytes");
+        }
+        int length = 1 + 2 + loginBytes.length + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putShort((short) loginBytes.length);
+        record.put(loginBytes);
+        record.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        if(active.size > 0 && active.size + record.remaining() > maxSegmentSize) {
+            int id = active.id + 1;
+            active = openSegment(id);
+            segments.put(id, active);
+        }
+        long offset = active.size;
+        while(record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += record.limit();
+        Metrics.BYTES_WRITTEN.add(record.limit());
+        int prefix = type == RENAME ? renamePrefixLength(payload) : 0;
+        return new Location(active, offset, record.limit(),
+                offset + RECORD_HEADER_SIZE + 3 + loginBytes.length + prefix, payload.length - prefix);
+    }
+
+    private static int renamePrefixLength(byte[] payload) {
+        return 2 + (((payload[0] & 0xff) << 8) | (payload[1] & 0xff));
+    }
+
+    private static String renamedLogin(byte[] payload) {
+        return new String(payload, 2, renamePrefixLength(payload) - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gives a stream over the account description of the record, taken from the mapping of the segment if possible
+     */
+    private InputStream open(Location location) throws IOException {
+        if(memoryMapped) {
+            ByteBuffer region = map(location.segment, location.payloadOffset + location.payloadLength);
+            if(region != null) {
+                region.limit((int) (location.payloadOffset + location.payloadLength));
+                region.position((int) location.payloadOffset);
+                return new ByteBufferBackedInputStream(region);
+            }
+        }
+        ByteBuffer payload = ByteBuffer.allocate(location.payloadLength);
+        readFully(location.segment.channel, payload, location.payloadOffset);
+        return new ByteArrayInputStream(payload.array(), 0, payload.limit());
+    }
+
+    /**
+     * Returns a view of the segment mapping that covers the given end offset, remapping the segment if it has grown
+     * @return null if the mapping doesn't cover the offset yet and the segment is not worth remapping
+     */
+    private ByteBuffer map(Segment segment, long end) throws IOException {
+        MappedByteBuffer mapping = segment.mapping;
+        if(mapping == null || mapping.limit() < end) {
+            synchronized (segment) {
+                mapping = segment.mapping;
+                if(mapping == null || mapping.limit() < end) {
+                    long size = segment.size;
+                    boolean sealed = segment != active;
+                    if(size < end || !sealed && mapping != null && size - mapping.limit() < REMAP_STEP) {
+                        return null;
+                    }
+                    // only the written part is mapped, a read-only mapping past the end of a file is not readable
+                    mapping = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    segment.mapping = mapping;
+                }
+            }
+        }
+        return mapping.duplicate();
+    }
+
+    /**
+     * Marks an overwritten or removed record of the login dead and remembers the login in its segment,
+     * so that compaction knows which tombstones still hide a record. Should be called only under the write lock.
+     */
+    private static void markDead(String login, Location location) {
+        if(location != null) {
+            location.segment.deadLogins.add(login);
+            markDead(location);
+        }
+    }
+
+    /**
+     * @return whether a segment older than the given one holds a dead record of the login, which a tombstone
+     *         should keep from coming back on recovery. Should be called only under the write lock
+     */
+    private boolean hasOlderRecord(String login, Segment segment) {
+        for(Segment older : segments.headMap(segment.id).values()) {
+            if(older.deadLogins.contains(login)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void markDead(Location location) {
+        if(location != null) {
+            location.segment.deadBytes.addAndGet(location.recordLength);
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path file = directory.resolve(String.format("segment-%08d.log", id));
+        Metrics.FILE_OPENS.increment();
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel);
+    }
+
+    /**
+     * Reads the records of a segment one by one, stopping at the first damaged or incomplete record
+     * @return offset right after the last valid record
+     */
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long end = segment.channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(segment.file), 64 * 1024));
+        try {
+            long offset = 0;
+            CRC32 crc = new CRC32();
+            while(offset + RECORD_HEADER_SIZE <= end) {
+                int length = in.readInt();
+                int expectedCrc = in.readInt();
+                if(length < 3 || offset + RECORD_HEADER_SIZE + length > end) {
+                    return offset;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                int loginLength = ((body[1] & 0xff) << 8) | (body[2] & 0xff);
+                if((int) crc.getValue() != expectedCrc || 3 + loginLength > length) {
+                    return offset;
+                }
+                String login = new String(body, 3, loginLength, StandardCharsets.UTF_8);
+                byte[] payload = new byte[length - 3 - loginLength];
+                System.arraycopy(body, 3 + loginLength, payload, 0, payload.length);
+
+                visitor.visit(body[0], login, payload, offset, RECORD_HEADER_SIZE + length,
+                        offset + RECORD_HEADER_SIZE + 3 + loginLength);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Record at " + position + " is cut off");
+            }
+        }
+        buffer.flip();
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String login, byte[] payload, long offset, int length, long payloadOffset)
+                throws IOException;
+    }
+
+    private static class Segment {
+        Segment(int id, Path file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        volatile long size = 0;
+        volatile MappedByteBuffer mapping;
+        final AtomicLong deadBytes = new AtomicLong();
+        /**
+         * Logins of the overwritten and removed records, guarded by the write lock
+         */
+        final Set<String> deadLogins = new HashSet<>();
+    }
+
+    private static class Location {
+        Location(Segment segment, long recordOffset, int recordLength, long payloadOffset, int payloadLength) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        final Segment segment;
+        final long recordOffset;
+        final int recordLength;
+        final long payloadOffset;
+        final int payloadLength;
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte RENAME = 3;
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * Records keep the length of the login in two bytes
+     */
+    private static final int MAX_LOGIN_BYTES = 0xffff;
+    private static final long COMPACTION_PERIOD_SECONDS = 30;
+    private static final long REMAP_STEP = 1024 * 1024;
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final boolean memoryMapped;
+    private final AccountCodec codec;
+    private final ScheduledExecutorService compactor;
+    private final Object writeLock = new Object();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private volatile Segment active;
+}
@@ -0,0 +1,94 @@
+package org;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Read-write locks for account logins, striped over a fixed number of locks.
+ * Operations on different accounts rarely wait for each other, while operations on the same account are serialized.
+ * When several logins are locked at once, their stripes are always taken in the same order, so there are no deadlocks.
+ */
+public class LoginLocks {
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public LoginLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantReadWriteLock[size];
+        for(int i = 0; i < size; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Locks the login for reading, to be used in try-with-resources
+     */
+    public Guard lockRead(String login) {
+        ReentrantReadWriteLock.ReadLock lock = locks[stripe(login)].readLock();
+        lock.lock();
+        return lock::unlock;
+    }
+
+    /**
+     * Locks the login for writing, to be used in try-with-resources
+     */
+    public Guard lockWrite(String login) {
+        ReentrantReadWriteLock.WriteLock lock = locks[stripe(login)].writeLock();
+        lock.lock();
+        return lock::unlock;
+    }
+
+    /**
+     * Locks all given logins for writing, e.g. both the old and the new login of a renamed account
+     */
+    public Guard lockWrite(Iterable<String> logins) {
+        boolean[] taken = new boolean[locks.length];
+        for(String login : logins) {
+            taken[stripe(login)] = true;
+        }
+        for(int i = 0; i < taken.length; i++) {
+            if(taken[i]) {
+                locks[i].writeLock().lock();
+            }
+        }
+        return () -> {
+            for(int i = taken.length - 1; i >= 0; i--) {
+                if(taken[i]) {
+                    locks[i].writeLock().unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * Locks all logins for writing: waits for the running changes and holds off new ones until it is closed
+     */
+    public Guard lockAll() {
+        for(ReentrantReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        return () -> {
+            for(int i = locks.length - 1; i >= 0; i--) {
+                locks[i].writeLock().unlock();
+            }
+        };
+    }
+
+    private int stripe(String login) {
+        int h = login.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * A held lock, released by close
+     */
+    public interface Guard extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final ReentrantReadWriteLock[] locks;
+    private final int mask;
+}
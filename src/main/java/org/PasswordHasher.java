@@ -0,0 +1,101 @@
+package org;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+
+/**
+ * Salted password hashing with PBKDF2-HMAC-SHA256 of the JDK.
+ * A hash is stored as $pbkdf2-sha256$[iterations]$[base64 salt]$[base64 key], so the cost can be raised
+ * without invalidating existing hashes. Passwords stored before hashing was introduced are kept in plaintext
+ * until they are verified and rehashed, see {@link #needsRehash(String)}
+ */
+public class PasswordHasher {
+
+    /**
+     * @param iterations the cost of a hash, every iteration is an HMAC-SHA256 computation
+     * @throws IllegalArgumentException if iterations is not positive or above {@link #MAX_ITERATIONS}
+     */
+    public PasswordHasher(int iterations) {
+        if(iterations <= 0 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Iterations should be from 1 to " + MAX_ITERATIONS);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return the hash of the password with a new random salt
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" +
+                base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Checks the password against a stored hash or a legacy plaintext password, in time independent
+     * of how much of them matches. Hashes with more than {@link #MAX_ITERATIONS} don't match any password,
+     * so that an imported hash can't keep a hashing thread busy
+     */
+    public boolean verify(String password, String stored) {
+        if(!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+                    stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if(parts.length != 3) {
+            return false;
+        }
+        try {
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            int cost = Integer.parseInt(parts[0]);
+            if(cost <= 0 || cost > MAX_ITERATIONS || salt.length == 0 || expected.length == 0) {
+                return false;
+            }
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, cost));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the stored password is in plaintext or hashed with a different cost
+     */
+    public boolean needsRehash(String stored) {
+        return !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    public static final int DEFAULT_ITERATIONS = 100000;
+    public static final int MAX_ITERATIONS = 10000000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+}
@@ -0,0 +1,205 @@
+package org;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Runs password hashing on a bounded pool of worker threads, so that bursts of expensive hashes queue up
+ * or get rejected instead of occupying every request thread, and remembers successful verifications for a short time.
+ * A remembered verification is bound to the stored hash and to a keyed digest of the password,
+ * so it is void as soon as the password changes, and the cache doesn't hold passwords in any usable form.
+ */
+public class PasswordService implements Closeable {
+
+    /**
+     * @param hasher the hashing scheme
+     * @param threads number of worker threads
+     * @param queueSize how many hashes may wait for a worker before new ones are rejected
+     * @param cacheTtlMillis how long a successful verification is remembered, 0 disables the cache
+     * @param cacheEntries maximum number of remembered verifications
+     */
+    public PasswordService(PasswordHasher hasher, int threads, int queueSize, long cacheTtlMillis, int cacheEntries) {
+        this.hasher = hasher;
+        this.unknownAccount = hasher.hash("");
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        this.cacheEntries = cacheEntries;
+        this.cache = new LinkedHashMap<String, Verification>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+                return size() > PasswordService.this.cacheEntries;
+            }
+        };
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    /**
+     * Creates the service from properties:
+     * usermanager.password.iterations - PBKDF2 iterations, {@link PasswordHasher#DEFAULT_ITERATIONS} by default
+     * usermanager.password.threads - hashing threads, the number of processors by default
+     * usermanager.password.queue - hashes waiting for a thread, 1024 by default
+     * usermanager.password.cacheTtlMillis - how long successful verifications are remembered, 60000 by default
+     * usermanager.password.cacheEntries - how many verifications are remembered, 10000 by default
+     * @param settings usually the system properties of the server
+     * @throws NumberFormatException if a setting is malformed
+     */
+    public static PasswordService create(Properties settings) {
+        return new PasswordService(
+                new PasswordHasher(Integer.parseInt(settings.getProperty("usermanager.password.iterations",
+                        String.valueOf(PasswordHasher.DEFAULT_ITERATIONS)))),
+                Integer.parseInt(settings.getProperty("usermanager.password.threads",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(settings.getProperty("usermanager.password.queue", "1024")),
+                Long.parseLong(settings.getProperty("usermanager.password.cacheTtlMillis", "60000")),
+                Integer.parseInt(settings.getProperty("usermanager.password.cacheEntries", "10000")));
+    }
+
+    /**
+     * Hashes the password, even one that looks like a hash, as clients may not choose what is stored
+     * @throws RejectedExecutionException if too many hashes are waiting for a worker
+     * @throws IOException if the waiting thread is interrupted
+     */
+    public String hash(String password) throws IOException {
+        return await(pool.submit(() -> hasher.hash(password)));
+    }
+
+    /**
+     * Hashes passwords of imported accounts in parallel, replacing them in place. Unlike {@link #hash(String)}
+     * it doesn't fail when the queue is full, the calling thread hashes the password itself then
+     * @param keepHashed whether passwords hashed already, by an export of the accounts, are kept; only for imports
+     *                   of an administrator, as anyone else could store hashes that are too expensive to verify
+     * @throws IOException if the waiting thread is interrupted
+     */
+    public void hashAll(List<Account> accounts, boolean keepHashed) throws IOException {
+        List<Future<String>> hashes = new ArrayList<>(accounts.size());
+        for(Account account : accounts) {
+            String password = account.getPassword();
+            if(keepHashed && PasswordHasher.isHashed(password)) {
+                hashes.add(CompletableFuture.completedFuture(password));
+                continue;
+            }
+            try {
+                hashes.add(pool.submit(() -> hasher.hash(password)));
+            } catch (RejectedExecutionException e) {
+                hashes.add(CompletableFuture.completedFuture(hasher.hash(password)));
+            }
+        }
+        for(int i = 0; i < accounts.size(); i++) {
+            accounts.get(i).setPassword(await(hashes.get(i)));
+        }
+    }
+
+    /**
+     * Checks the password of the account, answering from the cache of recent successful verifications if possible
+     * @param login of the account
+     * @param stored the stored hash, or null if there is no such account, which takes as long as a failed check
+     * @throws RejectedExecutionException if too many hashes are waiting for a worker
+     * @throws IOException if the waiting thread is interrupted
+     */
+    public boolean verify(String login, String password, String stored) throws IOException {
+        byte[] digest = digest(password);
+        if(stored != null && cacheTtlNanos > 0) {
+            Verification cached;
+            synchronized (cache) {
+                cached = cache.get(login);
+            }
+            if(cached != null && cached.stored.equals(stored) && System.nanoTime() - cached.time < cacheTtlNanos &&
+                    MessageDigest.isEqual(cached.digest, digest)) {
+                cacheHits.increment();
+                return true;
+            }
+        }
+        String against = stored != null ? stored : unknownAccount;
+        boolean valid = await(pool.submit(() -> hasher.verify(password, against))) && stored != null;
+        if(valid && cacheTtlNanos > 0) {
+            synchronized (cache) {
+                cache.put(login, new Verification(stored, digest, System.nanoTime()));
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @see PasswordHasher#needsRehash(String)
+     */
+    public boolean needsRehash(String stored) {
+        return hasher.needsRehash(stored);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private byte[] digest(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(cacheKey);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a password hash");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static class Verification {
+        Verification(String stored, byte[] digest, long time) {
+            this.stored = stored;
+            this.digest = digest;
+            this.time = time;
+        }
+
+        final String stored;
+        final byte[] digest;
+        final long time;
+    }
+
+    private final PasswordHasher hasher;
+    /**
+     * A hash to verify against when the account doesn't exist, so that the answer takes the same time
+     */
+    private final String unknownAccount;
+    private final ThreadPoolExecutor pool;
+    private final long cacheTtlNanos;
+    private final int cacheEntries;
+    private final LinkedHashMap<String, Verification> cache;
+    private final SecretKeySpec cacheKey;
+    private final LongAdder cacheHits = new LongAdder();
+}
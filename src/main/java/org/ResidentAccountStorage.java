@@ -0,0 +1,482 @@
+package org;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Keeps every account of another storage in memory in a compact form and serves all reads from it,
+ * while writes go to the underlying storage first. Account objects are only created for the callers.
+ *
+ * Accounts are numbered, and every number has a column entry: the offset of its strings in a shared byte arena,
+ * the birthday as an epoch day and a byte of flags with the sex and nulls. The login, the password and the name
+ * are kept in the arena one after another as UTF-8 after their varint lengths. Logins are found through
+ * an open-addressing table of numbers, so there are no per-account objects at all: about 25 bytes per account besides the strings,
+ * see {@link org.tools.HeapReport} for the comparison with Account objects in a map.
+ * The server keeps an {@link IndexedAccountStorage} over it, whose entries take about twice as much heap again.
+ * A changed account gets new strings at the end of the arena, and the arena is compacted when half of it is garbage.
+ * The arena is a single array, so the strings of all accounts should fit in 2 GB.
+ */
+public class ResidentAccountStorage extends AccountStorage {
+
+    /**
+     * Reads all accounts of the underlying storage into memory
+     * @param delegate the storage that actually keeps the accounts
+     * @throws IOException if the accounts can't be read
+     */
+    public ResidentAccountStorage(AccountStorage delegate) throws IOException {
+        this(delegate, 1);
+    }
+
+    /**
+     * @param loadThreads number of threads reading the accounts, see {@link AccountStorage#forEachAccount(AccountVisitor, int)}
+     * @throws IOException if the accounts can't be read
+     */
+    public ResidentAccountStorage(AccountStorage delegate, int loadThreads) throws IOException {
+        this.delegate = delegate;
+        delegate.forEachAccount(this::put, loadThreads);
+    }
+
+    @Override
+    public Account get(String login) throws IOException {
+        byte[] key = login.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int id = find(key, hash(key, 0, key.length));
+            if(id < 0) {
+                throw new UserNotFoundException(login);
+            }
+            return materialize(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void store(Account account) throws IOException {
+        try {
+            delegate.store(account);
+        } catch (IOException|RuntimeException e) {
+            refresh(account.getLogin());
+            throw e;
+        }
+        put(account);
+    }
+
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        try {
+            delegate.storeAll(accounts);
+        } catch (IOException|RuntimeException e) {
+            for(Account account : accounts) {
+                refresh(account.getLogin());
+            }
+            throw e;
+        }
+        for(Account account : accounts) {
+            put(account);
+        }
+    }
+
+    @Override
+    public void remove(String login) throws IOException {
+        try {
+            delegate.remove(login);
+        } catch (IOException|RuntimeException e) {
+            refresh(login);
+            throw e;
+        }
+        delete(login);
+    }
+
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        try {
+            delegate.rename(oldLogin, account);
+        } catch (IOException|RuntimeException e) {
+            refresh(oldLogin);
+            refresh(account.getLogin());
+            throw e;
+        }
+        if(!oldLogin.equals(account.getLogin())) {
+            delete(oldLogin);
+        }
+        put(account);
+    }
+
+    /**
+     * Visits the accounts from memory. They are created in small batches, and the visitor is called without locks,
+     * so it may change the storage
+     * @see AccountStorage#forEachAccount(AccountVisitor)
+     */
+    @Override
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        List<Account> batch = new ArrayList<>(VISIT_BATCH);
+        for(int start = 0; ; start += VISIT_BATCH) {
+            lock.readLock().lock();
+            try {
+                if(start >= count) {
+                    return;
+                }
+                for(int id = start; id < Math.min(start + VISIT_BATCH, count); id++) {
+                    if(offsets[id] >= 0) {
+                        batch.add(materialize(id));
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for(Account account : batch) {
+                visitor.visit(account);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Visits the accounts from memory in one thread, which is faster than handing them over to other threads
+     * @see AccountStorage#forEachAccount(AccountVisitor, int)
+     */
+    @Override
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        forEachAccount(visitor);
+    }
+
+    @Override
+    public ChangeLog getChangeLog() {
+        return delegate.getChangeLog();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of the arrays that keep the accounts, including their unused capacity
+     */
+    public long getResidentBytes() {
+        lock.readLock().lock();
+        try {
+            return arena.length + 4L * offsets.length + 4L * birthdays.length + flags.length + 4L * hashes.length +
+                    4L * table.length + 4L * free.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the memory agree with the underlying storage after a failed write
+     */
+    private void refresh(String login) throws IOException {
+        try {
+            put(delegate.get(login));
+        } catch (UserNotFoundException e) {
+            delete(login);
+        }
+    }
+
+    private void put(Account account) {
+        byte[] login = account.getLogin().getBytes(StandardCharsets.UTF_8);
+        byte[] password = account.getPassword() == null ? null : account.getPassword().getBytes(StandardCharsets.UTF_8);
+        byte[] name = account.getName() == null ? null : account.getName().getBytes(StandardCharsets.UTF_8);
+        int hash = hash(login, 0, login.length);
+        lock.writeLock().lock();
+        try {
+            int offset = append(login, password, name);
+            int id = find(login, hash);
+            if(id < 0) {
+                id = allocate();
+                hashes[id] = hash;
+                insert(id);
+                size++;
+            } else {
+                garbage += recordLength(offsets[id]);
+            }
+            offsets[id] = offset;
+            birthdays[id] = account.getBirthday() == null ? NO_BIRTHDAY : (int) account.getBirthday().toEpochDay();
+            flags[id] = (byte) ((account.getSex() == null ? 0 : account.getSex().ordinal() + 1) |
+                    (password == null ? NO_PASSWORD : 0) | (name == null ? NO_NAME : 0));
+            if(garbage > arenaSize / 2 && garbage > MIN_COMPACTION) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void delete(String login) {
+        byte[] key = login.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int hash = hash(key, 0, key.length);
+            int id = find(key, hash);
+            if(id < 0) {
+                return;
+            }
+            removeFromTable(id);
+            garbage += recordLength(offsets[id]);
+            offsets[id] = FREE;
+            if(freeCount == free.length) {
+                free = Arrays.copyOf(free, Math.max(16, free.length * 2));
+            }
+            free[freeCount++] = id;
+            size--;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Account materialize(int id) {
+        int offset = offsets[id];
+        int length = readLength(offset);
+        offset += lengthBytes(length);
+        String login = new String(arena, offset, length, StandardCharsets.UTF_8);
+        offset += length;
+        length = readLength(offset);
+        offset += lengthBytes(length);
+        String password = (flags[id] & NO_PASSWORD) != 0 ? null : new String(arena, offset, length, StandardCharsets.UTF_8);
+        offset += length;
+        length = readLength(offset);
+        offset += lengthBytes(length);
+        String name = (flags[id] & NO_NAME) != 0 ? null : new String(arena, offset, length, StandardCharsets.UTF_8);
+
+        Account account = new Account(login, password);
+        account.setName(name);
+        int sex = flags[id] & SEX_MASK;
+        account.setSex(sex == 0 ? null : SEXES[sex - 1]);
+        account.setBirthday(birthdays[id] == NO_BIRTHDAY ? null : LocalDate.ofEpochDay(birthdays[id]));
+        return account;
+    }
+
+    /**
+     * @return the number of the account with the login, or -1
+     */
+    private int find(byte[] login, int hash) {
+        int mask = table.length - 1;
+        for(int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if(hashes[id] == hash && loginEquals(id, login)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private boolean loginEquals(int id, byte[] login) {
+        int offset = offsets[id];
+        int length = readLength(offset);
+        if(length != login.length) {
+            return false;
+        }
+        offset += lengthBytes(length);
+        for(int i = 0; i < length; i++) {
+            if(arena[offset + i] != login[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int id) {
+        if(2 * (size + 1) > table.length) {
+            int[] old = table;
+            table = new int[old.length * 2];
+            for(int entry : old) {
+                if(entry != 0) {
+                    insert(entry - 1, table);
+                }
+            }
+        }
+        insert(id, table);
+    }
+
+    private void insert(int id, int[] table) {
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+        while(table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    /**
+     * Removes the number from the table, shifting back the entries after it, so that no tombstones are needed
+     */
+    private void removeFromTable(int id) {
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+        while(table[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = 0;
+        for(int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[table[next] - 1] & mask;
+            // the entry stays if its home slot lies cyclically after the hole and up to its place
+            boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if(!stays) {
+                table[slot] = table[next];
+                table[next] = 0;
+                slot = next;
+            }
+        }
+    }
+
+    private int allocate() {
+        if(freeCount > 0) {
+            return free[--freeCount];
+        }
+        if(count == offsets.length) {
+            int capacity = offsets.length * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            birthdays = Arrays.copyOf(birthdays, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        return count++;
+    }
+
+    /**
+     * @return the offset of the record with the strings in the arena
+     */
+    private int append(byte[] login, byte[] password, byte[] name) {
+        int length = recordSize(login) + recordSize(password) + recordSize(name);
+        ensureArena(length);
+        int offset = arenaSize;
+        arenaSize = write(name, write(password, write(login, arenaSize)));
+        return offset;
+    }
+
+    private void ensureArena(int length) {
+        if((long) arenaSize + length > MAX_ARENA) {
+            throw new IllegalStateException("Resident accounts don't fit in " + MAX_ARENA + " bytes");
+        }
+        if(arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, (int) Math.min(MAX_ARENA, Math.max(arenaSize + length, 2L * arena.length)));
+        }
+    }
+
+    /**
+     * Copies the records of the accounts into a new arena without the garbage
+     */
+    private void compact() {
+        byte[] old = arena;
+        arena = new byte[(int) Math.min(MAX_ARENA, (arenaSize - garbage) * 5 / 4 + 16)];
+        arenaSize = 0;
+        for(int id = 0; id < count; id++) {
+            if(offsets[id] >= 0) {
+                int length = recordLength(old, offsets[id]);
+                System.arraycopy(old, offsets[id], arena, arenaSize, length);
+                offsets[id] = arenaSize;
+                arenaSize += length;
+            }
+        }
+        garbage = 0;
+    }
+
+    private int write(byte[] value, int offset) {
+        int length = value == null ? 0 : value.length;
+        for(int rest = length; ; rest >>>= 7) {
+            if(rest < 0x80) {
+                arena[offset++] = (byte) rest;
+                break;
+            }
+            arena[offset++] = (byte) (0x80 | rest);
+        }
+        if(value != null) {
+            System.arraycopy(value, 0, arena, offset, length);
+        }
+        return offset + length;
+    }
+
+    private int recordLength(int offset) {
+        return recordLength(arena, offset);
+    }
+
+    private static int recordLength(byte[] arena, int start) {
+        int offset = start;
+        for(int i = 0; i < 3; i++) {
+            int length = readLength(arena, offset);
+            offset += lengthBytes(length) + length;
+        }
+        return offset - start;
+    }
+
+    private int readLength(int offset) {
+        return readLength(arena, offset);
+    }
+
+    /**
+     * Lengths are varints: 7 bits in every byte, lowest first, the high bit set in all bytes but the last
+     */
+    private static int readLength(byte[] arena, int offset) {
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = arena[offset++];
+            length |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return length;
+            }
+        }
+    }
+
+    private static int lengthBytes(int length) {
+        return length < 0x80 ? 1 : length < 0x4000 ? 2 : length < 0x200000 ? 3 : 4;
+    }
+
+    private static int recordSize(byte[] value) {
+        int length = value == null ? 0 : value.length;
+        return lengthBytes(length) + length;
+    }
+
+    /**
+     * FNV-1a of the bytes, with the bits spread so that the low ones pick table slots well
+     */
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811c9dc5;
+        for(int i = offset; i < offset + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final int FREE = -1;
+    private static final int NO_BIRTHDAY = Integer.MIN_VALUE;
+    private static final int SEX_MASK = 0x3;
+    private static final int NO_PASSWORD = 0x4;
+    private static final int NO_NAME = 0x8;
+    private static final Account.Sex[] SEXES = Account.Sex.values();
+    private static final long MAX_ARENA = Integer.MAX_VALUE - 8;
+    private static final long MIN_COMPACTION = 1 << 20;
+    private static final int VISIT_BATCH = 1024;
+
+    private final AccountStorage delegate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private byte[] arena = new byte[4096];
+    private int arenaSize = 0;
+    private long garbage = 0;
+    private int[] offsets = new int[64];
+    private int[] birthdays = new int[64];
+    private byte[] flags = new byte[64];
+    private int[] hashes = new int[64];
+    private int[] table = new int[128];
+    private int[] free = new int[0];
+    private int freeCount = 0;
+    private int count = 0;
+    private int size = 0;
+}
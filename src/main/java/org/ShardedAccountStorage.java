@@ -0,0 +1,408 @@
+package org;
+
+import org.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Spreads accounts over several storages, usually in directories on different disks.
+ * Every login belongs to the shard chosen by consistent hashing: each shard owns many points of a hash ring,
+ * which depend only on the directory of the shard, and a login goes to the owner of the first point after its hash.
+ * So when a shard is added, only the accounts that the new shard takes over change their place.
+ *
+ * Accounts found on another shard than their own, e.g. after a shard was added to the configuration,
+ * are moved in the background once the storage is opened, while it serves requests. Until the move is over
+ * an account missing on its shard is looked up on the others, and changes remove copies left on the others.
+ * A rename that moves an account to another shard renames it on its shard first and then moves it,
+ * so after a crash the account is found under one of the logins, and the move is completed on the next start.
+ */
+public class ShardedAccountStorage extends AccountStorage {
+
+    /**
+     * Opens the sharded storage and starts moving misplaced accounts to their shards
+     * @param shards storages of the shards by their directories, which place the shards on the hash ring
+     * @throws IllegalArgumentException if there are no shards
+     */
+    public ShardedAccountStorage(Map<String, AccountStorage> shards) {
+        if(shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards are given");
+        }
+        this.shards = new ArrayList<>(shards.values());
+        List<String> names = new ArrayList<>();
+        for(String directory : shards.keySet()) {
+            names.add(Paths.get(directory).normalize().toString());
+        }
+        this.ring = new Ring(names);
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "shard-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rebalancing = this.shards.size() > 1;
+        // the move has a thread of its own, as it waits for scans, which need all threads of the pool
+        this.rebalance = this.rebalancing ? CompletableFuture.runAsync(this::rebalance, runnable -> {
+            Thread thread = new Thread(runnable, "shard-rebalance");
+            thread.setDaemon(true);
+            thread.start();
+        }) : CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public Account get(String login) throws IOException {
+        AccountStorage shard = shardOf(login);
+        try {
+            return shard.get(login);
+        } catch (UserNotFoundException e) {
+            if(!rebalancing) {
+                throw e;
+            }
+        }
+        // the account may be on its way between the shards, a move holds the lock of its login
+        try (LoginLocks.Guard lock = moves.lockRead(login)) {
+            for(AccountStorage candidate : shards) {
+                try {
+                    return candidate.get(login);
+                } catch (UserNotFoundException e) {
+                    // not there either
+                }
+            }
+        }
+        throw new UserNotFoundException(login);
+    }
+
+    @Override
+    public void store(Account account) throws IOException {
+        try (LoginLocks.Guard lock = moves.lockWrite(account.getLogin())) {
+            AccountStorage shard = shardOf(account.getLogin());
+            shard.store(account);
+            removeCopies(account.getLogin(), shard);
+        }
+    }
+
+    /**
+     * Stores the accounts of every shard in parallel
+     * @see AccountStorage#storeAll(List)
+     */
+    @Override
+    public void storeAll(List<Account> accounts) throws IOException {
+        if(rebalancing) {
+            for(Account account : accounts) {
+                store(account);
+            }
+            return;
+        }
+        Map<AccountStorage, List<Account>> byShard = new HashMap<>();
+        for(Account account : accounts) {
+            byShard.computeIfAbsent(shardOf(account.getLogin()), shard -> new ArrayList<>()).add(account);
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for(Map.Entry<AccountStorage, List<Account>> batch : byShard.entrySet()) {
+            writes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    batch.getKey().storeAll(batch.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pool));
+        }
+        await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])));
+    }
+
+    @Override
+    public void remove(String login) throws IOException {
+        try (LoginLocks.Guard lock = moves.lockWrite(login)) {
+            AccountStorage shard = shardOf(login);
+            boolean found = true;
+            try {
+                shard.remove(login);
+            } catch (UserNotFoundException e) {
+                found = false;
+            }
+            if(removeCopies(login, shard) == 0 && !found) {
+                throw new UserNotFoundException(login);
+            }
+        }
+    }
+
+    /**
+     * Renames the account on the shard where it is, and moves it if the new login belongs to another shard
+     * @see AccountStorage#rename(String, Account)
+     */
+    @Override
+    public void rename(String oldLogin, Account account) throws IOException {
+        String newLogin = account.getLogin();
+        try (LoginLocks.Guard lock = moves.lockWrite(Arrays.asList(oldLogin, newLogin))) {
+            AccountStorage source = locate(oldLogin);
+            source.rename(oldLogin, account);
+            AccountStorage target = shardOf(newLogin);
+            if(target != source) {
+                target.store(account);
+                source.remove(newLogin);
+            }
+            removeCopies(newLogin, target);
+        }
+    }
+
+    @Override
+    public void forEachAccount(AccountVisitor visitor) throws IOException {
+        scans.readLock().lock();
+        try {
+            for(AccountStorage shard : shards) {
+                shard.forEachAccount(unique(shard, visitor));
+            }
+        } finally {
+            scans.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the shards in parallel, each of them with its share of the threads
+     * @see AccountStorage#forEachAccount(AccountVisitor, int)
+     */
+    @Override
+    public void forEachAccount(AccountVisitor visitor, int threads) throws IOException {
+        int perShard = Math.max(1, threads / shards.size());
+        scans.readLock().lock();
+        try {
+            List<CompletableFuture<Void>> reads = new ArrayList<>();
+            for(AccountStorage shard : shards) {
+                reads.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        shard.forEachAccount(unique(shard, visitor), perShard);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, pool));
+            }
+            await(CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])));
+        } finally {
+            scans.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits for the move of misplaced accounts and closes all shards
+     * @throws IOException if a shard can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            rebalance.join();
+        } catch (CompletionException e) {
+            // counted in the metrics, and thrown by awaitRebalance
+        }
+        pool.shutdown();
+        for(AccountStorage shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Waits until all accounts are on their shards
+     * @throws IOException if some account couldn't be moved
+     */
+    public void awaitRebalance() throws IOException {
+        await(rebalance);
+    }
+
+    public boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    /**
+     * @return number of accounts moved to their shards since the storage was opened
+     */
+    public long getMoved() {
+        return moved.sum();
+    }
+
+    /**
+     * @return the shard the login belongs to
+     */
+    AccountStorage shardOf(String login) {
+        return shards.get(ring.owner(login));
+    }
+
+    /**
+     * Moves every account found on another shard than its own. Moves wait for running scans of all accounts,
+     * so that a scan doesn't miss an account moved from a shard it hasn't read yet to one it has
+     */
+    private void rebalance() {
+        try {
+            for(AccountStorage shard : shards) {
+                shard.forEachLogin(login -> {
+                    if(!closed && shardOf(login) != shard) {
+                        move(login, shard);
+                    }
+                });
+            }
+            rebalancing = closed;
+        } catch (IOException|RuntimeException e) {
+            Metrics.SHARD_REBALANCE_FAILURES.increment();
+            throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+        }
+    }
+
+    private void move(String login, AccountStorage source) throws IOException {
+        // the scan lock comes first, so that requests for the login don't wait for a slow scan along with the move
+        scans.writeLock().lock();
+        try (LoginLocks.Guard lock = moves.lockWrite(login)) {
+            Account account;
+            try {
+                account = source.get(login);
+            } catch (UserNotFoundException e) {
+                // changed since it was listed
+                return;
+            }
+            shardOf(login).store(account);
+            source.remove(login);
+            moved.increment();
+            Metrics.SHARD_MOVED.increment();
+        } finally {
+            scans.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the shard that has the login, its own one if none has
+     */
+    private AccountStorage locate(String login) throws IOException {
+        AccountStorage shard = shardOf(login);
+        if(rebalancing && !has(shard, login)) {
+            for(AccountStorage other : shards) {
+                if(other != shard && has(other, login)) {
+                    return other;
+                }
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Removes copies of the login from other shards than its own one while accounts are moved
+     * @return number of removed copies
+     */
+    private int removeCopies(String login, AccountStorage shard) throws IOException {
+        int removed = 0;
+        if(rebalancing) {
+            for(AccountStorage other : shards) {
+                if(other != shard) {
+                    try {
+                        other.remove(login);
+                        removed++;
+                    } catch (UserNotFoundException e) {
+                        // no copy there
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Skips accounts of the shard that are not their own, if their own shard has them as well
+     */
+    private AccountVisitor unique(AccountStorage shard, AccountVisitor visitor) {
+        return account -> {
+            AccountStorage own = shardOf(account.getLogin());
+            if(own == shard || !has(own, account.getLogin())) {
+                visitor.visit(account);
+            }
+        };
+    }
+
+    private static boolean has(AccountStorage shard, String login) throws IOException {
+        try {
+            shard.get(login);
+            return true;
+        } catch (UserNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Points of the shards on the ring of 64-bit hashes
+     */
+    static class Ring {
+        Ring(List<String> shards) {
+            TreeMap<Long, Integer> owners = new TreeMap<>();
+            for(int shard = 0; shard < shards.size(); shard++) {
+                for(int i = 0; i < VIRTUAL_NODES; i++) {
+                    owners.put(hash(shards.get(shard) + "#" + i), shard);
+                }
+            }
+            points = new long[owners.size()];
+            this.owners = new int[owners.size()];
+            int i = 0;
+            for(Map.Entry<Long, Integer> point : owners.entrySet()) {
+                points[i] = point.getKey();
+                this.owners[i++] = point.getValue();
+            }
+        }
+
+        int owner(String login) {
+            int i = Arrays.binarySearch(points, hash(login));
+            if(i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+
+        /**
+         * 64-bit FNV-1a, followed by the finalizer of MurmurHash3 to spread the hashes of short similar strings
+         */
+        static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for(int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        private final long[] points;
+        private final int[] owners;
+    }
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final int LOCK_STRIPES = 1024;
+
+    private final List<AccountStorage> shards;
+    private final Ring ring;
+    private final ExecutorService pool;
+    private final LoginLocks moves = new LoginLocks(LOCK_STRIPES);
+    private final ReentrantReadWriteLock scans = new ReentrantReadWriteLock();
+    private volatile boolean rebalancing;
+    private volatile boolean closed = false;
+    private final CompletableFuture<Void> rebalance;
+    private final LongAdder moved = new LongAdder();
+}
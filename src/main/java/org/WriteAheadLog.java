@@ -0,0 +1,320 @@
+package org;
+
+import org.metrics.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+
+/**
+ * A write-ahead log of storage changes with group commit.
+ * Concurrent appends are queued and written by a single thread: it takes all queued records, waiting for more
+ * at most maxBatchDelay after the first one, writes them with one write and makes them durable with one fsync.
+ * An append returns only after its record is durable.
+ *
+ * Record layout: [int length][int crc32][byte type][short login length][login][payload],
+ * where length counts the bytes after the crc and the crc covers the same bytes.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * Opens the log file, creating it if needed. Records already in the file should be replayed before new appends
+     * @param file the log file
+     * @param maxBatchDelayMicros how long a batch may wait for more records, 0 to write whatever is queued at once
+     * @throws IOException if the file can't be opened
+     */
+    public WriteAheadLog(Path file, long maxBatchDelayMicros) throws IOException {
+        this.file = file;
+        this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.committer = new Thread(this::commitLoop, "wal-committer-" + file.getFileName());
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Reads the records of the log in order and cuts off a damaged or incomplete record at its end,
+     * which is what a crash during a write leaves behind
+     * @throws IOException if the file can't be read or the visitor fails
+     */
+    public void replay(RecordVisitor visitor) throws IOException {
+        long end = channel.size();
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            while(offset + HEADER_SIZE <= end) {
+                int length = in.readInt();
+                int expectedCrc = in.readInt();
+                if(length < 3 || offset + HEADER_SIZE + length > end) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                int loginLength = ((body[1] & 0xff) << 8) | (body[2] & 0xff);
+                if((int) crc.getValue() != expectedCrc || 3 + loginLength > length) {
+                    break;
+                }
+                String login = new String(body, 3, loginLength, StandardCharsets.UTF_8);
+                byte[] payload = new byte[length - 3 - loginLength];
+                System.arraycopy(body, 3 + loginLength, payload, 0, payload.length);
+                visitor.visit(body[0], login, payload);
+                offset += HEADER_SIZE + length;
+            }
+        }
+        if(offset < end) {
+            System.err.println("Truncating damaged tail of " + file + " at " + offset);
+            channel.truncate(offset);
+        }
+        size.set(offset);
+    }
+
+    /**
+     * Appends a record to the log and waits until it is durable
+     * @throws IOException if the record couldn't be written or synced, or the log is closed
+     * @throws IllegalArgumentException if the login is longer than 65535 bytes in UTF-8
+     */
+    public void append(byte type, String login, byte[] payload) throws IOException {
+        waitFor(enqueue(type, encodeLogin(login), payload));
+    }
+
+    /**
+     * Appends records of the same type to the log and waits until all of them are durable.
+     * The records are queued together, so they are usually written in a single batch
+     * @throws IOException if some record couldn't be written or synced, or the log is closed
+     * @throws IllegalArgumentException if a login is longer than 65535 bytes in UTF-8, then no record is written
+     */
+    public void appendAll(byte type, List<String> logins, List<byte[]> payloads) throws IOException {
+        List<byte[]> loginBytes = new ArrayList<>(logins.size());
+        for(String login : logins) {
+            loginBytes.add(encodeLogin(login));
+        }
+        List<Pending> pending = new ArrayList<>(logins.size());
+        for(int i = 0; i < logins.size(); i++) {
+            pending.add(enqueue(type, loginBytes.get(i), payloads.get(i)));
+        }
+        for(Pending p : pending) {
+            waitFor(p);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the login is too long for a record, which keeps its length in two bytes
+     */
+    private static byte[] encodeLogin(String login) {
+        byte[] loginBytes = login.getBytes(StandardCharsets.UTF_8);
+        if(loginBytes.length > MAX_LOGIN_BYTES) {
+            throw new IllegalArgumentException("Login is too long for a log record: " + loginBytes.length + " bytes");
+        }
+        return loginBytes;
+    }
+
+    private Pending enqueue(byte type, byte[] loginBytes, byte[] payload) throws IOException {
+        int length = 3 + loginBytes.length + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(length);
+        record.putInt(0);
+        record.put(type);
+        record.putShort((short) loginBytes.length);
+        record.put(loginBytes);
+        record.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        Pending pending = new Pending(record);
+        synchronized (queue) {
+            if(closed) {
+                throw new IOException("Write-ahead log " + file + " is closed");
+            }
+            queue.add(pending);
+        }
+        return pending;
+    }
+
+    private static void waitFor(Pending pending) throws IOException {
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Drops all records of the log. The caller must make sure that every change in the log is already durable
+     * in the storage and that no appends run concurrently
+     * @throws IOException if the file can't be truncated
+     */
+    public void truncate() throws IOException {
+        synchronized (channel) {
+            channel.truncate(0);
+            channel.force(true);
+            size.set(0);
+        }
+    }
+
+    /**
+     * @return size of the log file in bytes
+     */
+    public long size() {
+        return size.get();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    public long getFsyncNanos() {
+        return fsyncNanos.sum();
+    }
+
+    public long getMaxFsyncNanos() {
+        return maxFsyncNanos.get();
+    }
+
+    /**
+     * Writes the queued records and stops the committer thread
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            closed = true;
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while(!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while(batch.size() < MAX_BATCH_SIZE) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // the committer is only stopped through the closed flag
+            }
+            if(!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        for(int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).record;
+            bytes += buffers[i].remaining();
+        }
+        try {
+            synchronized (channel) {
+                channel.position(size.get());
+                long written = 0;
+                while(written < bytes) {
+                    written += channel.write(buffers);
+                }
+                long start = System.nanoTime();
+                channel.force(false);
+                long elapsed = System.nanoTime() - start;
+                fsyncNanos.add(elapsed);
+                maxFsyncNanos.accumulateAndGet(elapsed, Math::max);
+                Metrics.WAL_FSYNC_NANOS.add(elapsed);
+                Metrics.WAL_MAX_FSYNC_NANOS.accumulateAndGet(elapsed, Math::max);
+                size.addAndGet(bytes);
+            }
+            batches.increment();
+            records.add(batch.size());
+            maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+            Metrics.WAL_BATCHES.increment();
+            Metrics.WAL_RECORDS.add(batch.size());
+            Metrics.WAL_MAX_BATCH_SIZE.accumulateAndGet(batch.size(), Math::max);
+            for(Pending pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (IOException e) {
+            for(Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    public interface RecordVisitor {
+        void visit(byte type, String login, byte[] payload) throws IOException;
+    }
+
+    private static class Pending {
+        Pending(ByteBuffer record) {
+            this.record = record;
+        }
+
+        final ByteBuffer record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    /**
+     * The login of the record is the old one, the payload contains the account with the new login
+     */
+    public static final byte RENAME = 3;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int MAX_LOGIN_BYTES = 0xffff;
+
+    private final Path file;
+    private final long maxBatchDelayNanos;
+    private final FileChannel channel;
+    private final Thread committer;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+    private final AtomicLong size = new AtomicLong();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final LongAdder fsyncNanos = new LongAdder();
+    private final AtomicLong maxFsyncNanos = new AtomicLong();
+}
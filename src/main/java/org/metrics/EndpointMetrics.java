@@ -0,0 +1,67 @@
+package org.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Request counts by status code and latency histograms of a REST endpoint,
+ * for whole requests and for their parse, storage and serialize phases
+ */
+public class EndpointMetrics {
+
+    EndpointMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Starts timing a request, the returned timer should be finished exactly once
+     */
+    public RequestTimer start() {
+        return new RequestTimer(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    public LatencyHistogram getParse() {
+        return parse;
+    }
+
+    public LatencyHistogram getStorage() {
+        return storage;
+    }
+
+    public LatencyHistogram getSerialize() {
+        return serialize;
+    }
+
+    /**
+     * @return number of requests by status code
+     */
+    public Map<Integer, LongAdder> getStatuses() {
+        return statuses;
+    }
+
+    void record(int status, long nanos) {
+        LongAdder counter = statuses.get(status);
+        if(counter == null) {
+            counter = statuses.computeIfAbsent(status, s -> new LongAdder());
+        }
+        counter.increment();
+        total.record(nanos);
+    }
+
+    private final String name;
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram storage = new LatencyHistogram();
+    private final LatencyHistogram serialize = new LatencyHistogram();
+    private final ConcurrentHashMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+}
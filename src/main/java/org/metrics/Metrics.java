@@ -0,0 +1,168 @@
+package org.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+
+/**
+ * The registry of metrics of the application: REST endpoints and storage counters.
+ * Metrics are plain adders and histograms updated by the code that owns them,
+ * and are only read when they are exported, see {@link #writePrometheus(Writer)}
+ */
+public class Metrics {
+
+    /**
+     * @return metrics of the endpoint with the given name, created on the first call
+     */
+    public static EndpointMetrics endpoint(String name) {
+        return ENDPOINTS.computeIfAbsent(name, EndpointMetrics::new);
+    }
+
+    /**
+     * Registers the gauges of the concurrency limit of an endpoint, replacing the ones registered before
+     * @param limit how many requests the endpoint admits at once now
+     * @param inFlight how many requests are being served
+     */
+    public static void concurrency(String endpoint, IntSupplier limit, IntSupplier inFlight) {
+        CONCURRENCY.put(endpoint, new IntSupplier[] {limit, inFlight});
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format, durations in seconds
+     * @throws IOException if something is wrong with the writer
+     */
+    public static void writePrometheus(Writer w) throws IOException {
+        List<EndpointMetrics> endpoints = new ArrayList<>(new TreeMap<>(ENDPOINTS).values());
+
+        w.write("# HELP usermanager_requests_total Requests by endpoint and status code\n");
+        w.write("# TYPE usermanager_requests_total counter\n");
+        for(EndpointMetrics endpoint : endpoints) {
+            for(Map.Entry<Integer, LongAdder> status : new TreeMap<>(endpoint.getStatuses()).entrySet()) {
+                w.write("usermanager_requests_total{endpoint=\"" + endpoint.getName() + "\",status=\"" +
+                        status.getKey() + "\"} " + status.getValue().sum() + "\n");
+            }
+        }
+
+        w.write("# HELP usermanager_request_duration_seconds Request latency by endpoint and phase\n");
+        w.write("# TYPE usermanager_request_duration_seconds summary\n");
+        for(EndpointMetrics endpoint : endpoints) {
+            writeSummary(w, endpoint.getName(), "total", endpoint.getTotal());
+            writeSummary(w, endpoint.getName(), "parse", endpoint.getParse());
+            writeSummary(w, endpoint.getName(), "storage", endpoint.getStorage());
+            writeSummary(w, endpoint.getName(), "serialize", endpoint.getSerialize());
+        }
+
+        writeCounter(w, "usermanager_storage_read_bytes_total", "Bytes of accounts read from the storage", BYTES_READ);
+        writeCounter(w, "usermanager_storage_written_bytes_total", "Bytes of accounts written to the storage", BYTES_WRITTEN);
+        writeCounter(w, "usermanager_storage_file_opens_total", "Files opened by the storage", FILE_OPENS);
+        writeCounter(w, "usermanager_storage_corrupted_total", "Corrupted account records found", CORRUPTED);
+        writeCounter(w, "usermanager_shard_moved_total", "Accounts moved to their shards", SHARD_MOVED);
+        writeCounter(w, "usermanager_shard_rebalance_failures_total", "Moves of accounts to their shards given up",
+                SHARD_REBALANCE_FAILURES);
+        writeCounter(w, "usermanager_account_cache_hits_total", "Accounts read from the cache of the storage",
+                ACCOUNT_CACHE_HITS);
+        writeCounter(w, "usermanager_account_cache_misses_total", "Accounts not found in the cache of the storage",
+                ACCOUNT_CACHE_MISSES);
+        writeCounter(w, "usermanager_account_cache_evictions_total", "Accounts evicted from the cache of the storage",
+                ACCOUNT_CACHE_EVICTIONS);
+        writeCounter(w, "usermanager_wal_batches_total", "Batches of records written and synced by the write-ahead logs",
+                WAL_BATCHES);
+        writeCounter(w, "usermanager_wal_records_total", "Records written to the write-ahead logs", WAL_RECORDS);
+        writeGauge(w, "usermanager_wal_max_batch_size", "Most records written in a single batch", WAL_MAX_BATCH_SIZE.get());
+        w.write("# HELP usermanager_wal_fsync_seconds_total Time spent syncing the write-ahead logs\n");
+        w.write("# TYPE usermanager_wal_fsync_seconds_total counter\n");
+        w.write("usermanager_wal_fsync_seconds_total " + seconds(WAL_FSYNC_NANOS.sum()) + "\n");
+        writeGauge(w, "usermanager_wal_max_fsync_seconds", "Longest sync of a write-ahead log",
+                WAL_MAX_FSYNC_NANOS.get() / 1e9);
+        writeCounter(w, "usermanager_response_cache_hits_total", "GETs served from encoded responses",
+                RESPONSE_CACHE_HITS);
+        writeCounter(w, "usermanager_response_cache_misses_total", "GETs that encoded the account",
+                RESPONSE_CACHE_MISSES);
+        writeCounter(w, "usermanager_rate_limited_reads_total", "Reads rejected with 429 by the rate limit of a client",
+                RATE_LIMITED_READS);
+        writeCounter(w, "usermanager_rate_limited_writes_total", "Writes rejected with 429 by the rate limit of a client",
+                RATE_LIMITED_WRITES);
+        writeCounter(w, "usermanager_concurrency_rejected_total", "Requests rejected with 503 by concurrency limits",
+                CONCURRENCY_REJECTED);
+        writeCounter(w, "usermanager_bulk_failed_batches_total", "Batches of a bulk import that couldn't be stored",
+                BULK_FAILED_BATCHES);
+
+        Map<String, IntSupplier[]> concurrency = new TreeMap<>(CONCURRENCY);
+        w.write("# HELP usermanager_concurrency_limit Requests an endpoint admits at once\n");
+        w.write("# TYPE usermanager_concurrency_limit gauge\n");
+        for(Map.Entry<String, IntSupplier[]> endpoint : concurrency.entrySet()) {
+            w.write("usermanager_concurrency_limit{endpoint=\"" + endpoint.getKey() + "\"} " +
+                    endpoint.getValue()[0].getAsInt() + "\n");
+        }
+        w.write("# HELP usermanager_requests_in_flight Requests an endpoint is serving\n");
+        w.write("# TYPE usermanager_requests_in_flight gauge\n");
+        for(Map.Entry<String, IntSupplier[]> endpoint : concurrency.entrySet()) {
+            w.write("usermanager_requests_in_flight{endpoint=\"" + endpoint.getKey() + "\"} " +
+                    endpoint.getValue()[1].getAsInt() + "\n");
+        }
+        w.flush();
+    }
+
+    private static void writeSummary(Writer w, String endpoint, String phase, LatencyHistogram histogram)
+            throws IOException {
+        if(histogram.getCount() == 0) {
+            return;
+        }
+        String labels = "endpoint=\"" + endpoint + "\",phase=\"" + phase + "\"";
+        for(double quantile : QUANTILES) {
+            w.write("usermanager_request_duration_seconds{" + labels + ",quantile=\"" + quantile + "\"} " +
+                    seconds(histogram.getQuantileNanos(quantile)) + "\n");
+        }
+        w.write("usermanager_request_duration_seconds_sum{" + labels + "} " + seconds(histogram.getSumNanos()) + "\n");
+        w.write("usermanager_request_duration_seconds_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+
+    private static void writeCounter(Writer w, String name, String help, LongAdder counter) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " counter\n");
+        w.write(name + " " + counter.sum() + "\n");
+    }
+
+    private static void writeGauge(Writer w, String name, String help, Number value) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " gauge\n");
+        w.write(name + " " + value + "\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    public static final LongAdder BYTES_READ = new LongAdder();
+    public static final LongAdder BYTES_WRITTEN = new LongAdder();
+    public static final LongAdder FILE_OPENS = new LongAdder();
+    public static final LongAdder CORRUPTED = new LongAdder();
+    public static final LongAdder SHARD_MOVED = new LongAdder();
+    public static final LongAdder SHARD_REBALANCE_FAILURES = new LongAdder();
+    public static final LongAdder ACCOUNT_CACHE_HITS = new LongAdder();
+    public static final LongAdder ACCOUNT_CACHE_MISSES = new LongAdder();
+    public static final LongAdder ACCOUNT_CACHE_EVICTIONS = new LongAdder();
+    public static final LongAdder WAL_BATCHES = new LongAdder();
+    public static final LongAdder WAL_RECORDS = new LongAdder();
+    public static final AtomicLong WAL_MAX_BATCH_SIZE = new AtomicLong();
+    public static final LongAdder WAL_FSYNC_NANOS = new LongAdder();
+    public static final AtomicLong WAL_MAX_FSYNC_NANOS = new AtomicLong();
+    public static final LongAdder RESPONSE_CACHE_HITS = new LongAdder();
+    public static final LongAdder RESPONSE_CACHE_MISSES = new LongAdder();
+    public static final LongAdder RATE_LIMITED_READS = new LongAdder();
+    public static final LongAdder RATE_LIMITED_WRITES = new LongAdder();
+    public static final LongAdder CONCURRENCY_REJECTED = new LongAdder();
+    public static final LongAdder BULK_FAILED_BATCHES = new LongAdder();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final ConcurrentHashMap<String, EndpointMetrics> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, IntSupplier[]> CONCURRENCY = new ConcurrentHashMap<>();
+}
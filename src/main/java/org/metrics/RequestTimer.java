@@ -0,0 +1,68 @@
+package org.metrics;
+
+
+/**
+ * Times the phases of a single request. Every phase method adds the time since the previous mark to its phase,
+ * so a phase may be entered several times, and all phases are recorded when the request is finished
+ */
+public class RequestTimer {
+
+    RequestTimer(EndpointMetrics endpoint) {
+        this.endpoint = endpoint;
+        this.start = System.nanoTime();
+        this.mark = start;
+    }
+
+    /**
+     * Adds the time since the previous mark to the parse phase
+     */
+    public void parsed() {
+        parseNanos = Math.max(parseNanos, 0) + elapsed();
+    }
+
+    /**
+     * Adds the time since the previous mark to the storage phase
+     */
+    public void stored() {
+        storageNanos = Math.max(storageNanos, 0) + elapsed();
+    }
+
+    /**
+     * Adds the time since the previous mark to the serialize phase
+     */
+    public void serialized() {
+        serializeNanos = Math.max(serializeNanos, 0) + elapsed();
+    }
+
+    /**
+     * Records the phases that were entered, the whole request and its status code
+     */
+    public void finish(int status) {
+        if(parseNanos >= 0) {
+            endpoint.getParse().record(parseNanos);
+        }
+        if(storageNanos >= 0) {
+            endpoint.getStorage().record(storageNanos);
+        }
+        if(serializeNanos >= 0) {
+            endpoint.getSerialize().record(serializeNanos);
+        }
+        endpoint.record(status, System.nanoTime() - start);
+    }
+
+    private long elapsed() {
+        long now = System.nanoTime();
+        long elapsed = now - mark;
+        mark = now;
+        return elapsed;
+    }
+
+    private static final long NOT_ENTERED = -1;
+
+    private final EndpointMetrics endpoint;
+    private final long start;
+    private long mark;
+    private long parseNanos = NOT_ENTERED;
+    private long storageNanos = NOT_ENTERED;
+    private long serializeNanos = NOT_ENTERED;
+}
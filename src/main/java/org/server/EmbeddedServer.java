@@ -0,0 +1,259 @@
+package org.server;
+
+import org.AccountStorageFactory;
+import org.IndexedAccountStorage;
+import org.PasswordService;
+import org.services.AccountResource;
+import org.services.AdmissionFilter;
+import org.services.MetricsResource;
+import org.tools.IntegrityChecker;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.glassfish.jersey.internal.inject.AbstractBinder;
+import org.glassfish.jersey.jetty.JettyHttpContainer;
+import org.glassfish.jersey.process.internal.RequestScoped;
+import org.glassfish.jersey.server.ContainerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+
+/**
+ * Runs the REST API in an embedded Jetty without deploying the WAR.
+ * The resources are registered explicitly, so Jersey doesn't scan the classpath, and the slow parts of the startup,
+ * reading every account to build the indexes and preparing password hashing, run in parallel.
+ * The time from the start of the JVM until the server is ready and until the first request is served is reported.
+ *
+ * Usage: EmbeddedServer [--port 8080] [--host 0.0.0.0] [--dataPath ./data/] [--contextPath /api]
+ *                       [--minThreads 8] [--maxThreads 200] [--loadThreads <2 * processors>] [--checkData false]
+ * With '--checkData true' account files of the 'files' storage, in every directory if it is sharded,
+ * are checked before it is opened
+ * and bad ones are quarantined, see {@link IntegrityChecker}.
+ * Other settings are taken from the system properties, as in the WAR, see {@link AccountResource#AccountResource()}.
+ */
+public class EmbeddedServer {
+
+    public static void main(String[] args) throws Exception {
+        Properties settings = new Properties();
+        settings.putAll(System.getProperties());
+        for(int i = 0; i < args.length; i += 2) {
+            if(!args[i].startsWith("--") || i + 1 == args.length || !OPTIONS.contains(" " + args[i].substring(2) + " ")) {
+                System.err.println("Usage: EmbeddedServer [--port 8080] [--host 0.0.0.0] [--dataPath ./data/] " +
+                        "[--contextPath /api] [--minThreads 8] [--maxThreads 200] [--loadThreads <threads>] " +
+                        "[--checkData false]");
+                System.exit(2);
+            }
+            String option = args[i].substring(2);
+            settings.setProperty(option.equals("dataPath") ? "usermanager.dataPath" : option, args[i + 1]);
+        }
+
+        EmbeddedServer server = new EmbeddedServer(settings);
+        server.start();
+        System.out.printf("Serving %d accounts at port %d, ready %d ms after the JVM start%n",
+                server.accounts, server.getPort(), sinceJvmStart());
+        server.join();
+    }
+
+    /**
+     * @param settings options of the command line along with the storage settings, see {@link AccountStorageFactory}
+     * @throws NumberFormatException if a numeric setting is malformed
+     */
+    public EmbeddedServer(Properties settings) {
+        this.settings = settings;
+        int maxThreads = Integer.parseInt(settings.getProperty("maxThreads", "200"));
+        int minThreads = Integer.parseInt(settings.getProperty("minThreads", "8"));
+        this.loadThreads = Integer.parseInt(settings.getProperty("loadThreads",
+                String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+        this.server = new Server(new QueuedThreadPool(maxThreads, minThreads));
+        this.connector = new ServerConnector(server);
+        connector.setHost(settings.getProperty("host"));
+        connector.setPort(Integer.parseInt(settings.getProperty("port", "8080")));
+        server.addConnector(connector);
+    }
+
+    /**
+     * Checks the data directory if asked to, opens the storage, builds the indexes and starts accepting requests
+     * @throws IOException if the accounts can't be read
+     * @throws Exception if the server can't be started, e.g. the port is taken
+     */
+    public void start() throws Exception {
+        if(Boolean.parseBoolean(settings.getProperty("checkData", "false")) &&
+                settings.getProperty("usermanager.storage", "files").equals("files")) {
+            for(String directory : settings.getProperty("usermanager.dataPath", "./data/").split(",")) {
+                Path dataPath = Paths.get(directory.trim());
+                if(Files.isDirectory(dataPath)) {
+                    IntegrityChecker checker = new IntegrityChecker(AccountStorageFactory.getCodec(
+                            settings.getProperty("usermanager.encoding", "json")), true, loadThreads);
+                    checker.check(dataPath);
+                    checker.printSummary(System.out);
+                }
+            }
+        }
+
+        CompletableFuture<IndexedAccountStorage> storage = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new IndexedAccountStorage(AccountStorageFactory.create(settings), loadThreads);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        CompletableFuture<PasswordService> passwords = CompletableFuture.supplyAsync(() -> PasswordService.create(settings));
+
+        ResourceConfig config = new ResourceConfig();
+        config.property(ServerProperties.FEATURE_AUTO_DISCOVERY_DISABLE, true);
+        config.property(ServerProperties.METAINF_SERVICES_LOOKUP_DISABLE, true);
+        config.property(ServerProperties.WADL_FEATURE_DISABLE, true);
+        config.register(new MetricsResource());
+        config.register(new ServletRequestBinder());
+        config.register(new AdmissionFilter(settings));
+
+        IndexedAccountStorage accounts;
+        try {
+            accounts = storage.join();
+            this.storage = accounts;
+            this.passwords = passwords.join();
+            this.resource = new AccountResource(accounts, this.passwords, settings);
+            config.register(resource);
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        this.accounts = accounts.size();
+
+        ContextHandler context = new ContextHandler(settings.getProperty("contextPath", "/api"));
+        FirstRequestReporter reporter = new FirstRequestReporter();
+        ContextPathStripper stripper = new ContextPathStripper();
+        stripper.setHandler(ContainerFactory.createContainer(JettyHttpContainer.class, config));
+        reporter.setHandler(stripper);
+        context.setHandler(reporter);
+        server.setHandler(context);
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens to, which is chosen by the system if the port 0 was requested
+     */
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+    public void join() throws InterruptedException {
+        server.join();
+    }
+
+    /**
+     * Stops accepting requests, then stops the I/O and password hashing threads and closes the storage
+     * @throws Exception if the server fails to stop or the storage can't be closed
+     */
+    public void stop() throws Exception {
+        try {
+            server.stop();
+        } finally {
+            if(resource != null) {
+                resource.close();
+            }
+            if(passwords != null) {
+                passwords.close();
+            }
+            if(storage != null) {
+                storage.close();
+            }
+        }
+    }
+
+    private static long sinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Prints the time until the end of the first request, which is what a load balancer waiting for the server sees
+     */
+    private static class FirstRequestReporter extends HandlerWrapper {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException, ServletException {
+            super.handle(target, baseRequest, request, response);
+            if(!served.get() && served.compareAndSet(false, true)) {
+                System.out.printf("First request served %d ms after the JVM start%n", sinceJvmStart());
+            }
+        }
+
+        private final AtomicBoolean served = new AtomicBoolean();
+    }
+
+    /**
+     * Removes the context path from the request URI while Jersey reads it. The Jetty container of Jersey 2.26
+     * prepends its base URI, which already ends with the context path, to the whole request URI,
+     * so under any context path but the root nothing matched and every request got 404
+     */
+    private static class ContextPathStripper extends HandlerWrapper {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException, ServletException {
+            String contextPath = baseRequest.getContextPath();
+            HttpURI uri = baseRequest.getHttpURI();
+            if(contextPath == null || contextPath.isEmpty() || !uri.getPath().startsWith(contextPath)) {
+                super.handle(target, baseRequest, request, response);
+                return;
+            }
+            HttpURI stripped = new HttpURI(uri);
+            stripped.setPath(uri.getPath().substring(contextPath.length()));
+            baseRequest.setHttpURI(stripped);
+            try {
+                super.handle(target, baseRequest, request, response);
+            } finally {
+                baseRequest.setHttpURI(uri);
+            }
+        }
+    }
+
+    /**
+     * Makes the request of Jetty injectable as HttpServletRequest, as it is in the WAR, e.g. for the address
+     * of the client; Jersey's container only binds it as a Jetty Request.
+     * It is looked up on the thread that handles the request, before the request is suspended
+     */
+    private static class ServletRequestBinder extends AbstractBinder {
+        @Override
+        protected void configure() {
+            bindFactory((Supplier<HttpServletRequest>) () -> HttpConnection.getCurrentConnection().getHttpChannel()
+                    .getRequest())
+                    .to(HttpServletRequest.class)
+                    .proxy(true)
+                    .proxyForSameScope(false)
+                    .in(RequestScoped.class);
+        }
+    }
+
+    private static final String OPTIONS = " port host dataPath contextPath minThreads maxThreads loadThreads checkData ";
+
+    private final Properties settings;
+    private final int loadThreads;
+    private final Server server;
+    private final ServerConnector connector;
+    private int accounts;
+    private IndexedAccountStorage storage;
+    private PasswordService passwords;
+    private AccountResource resource;
+}
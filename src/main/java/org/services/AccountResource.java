@@ -1,115 +1,769 @@
 package org.services;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 import org.Account;
 import org.AccountJsonSerializer;
+import org.AccountQuery;
+import org.AccountSnapshot;
 import org.AccountStorage;
+import org.AccountStorageFactory;
+import org.AccountValidator;
+import org.ChangeLog;
+import org.IndexedAccountStorage;
+import org.IoExecutor;
+import org.LoginLocks;
+import org.PasswordService;
+import org.metrics.EndpointMetrics;
+import org.metrics.Metrics;
+import org.metrics.RequestTimer;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
  * A resource that provides a user with a REST interface for the account storage
+ * Requests to the same account are serialized with per-login locks, requests to different accounts run in parallel.
+ * A rename locks both the old and the new login, so nobody sees the account missing under both of them.
+ * Requests for single accounts are suspended and handled on the I/O threads of an {@link IoExecutor},
+ * so a slow disk doesn't hold the threads of the server; when too many of them wait for the storage,
+ * new ones are answered with 503 at once.
  */
 @Path("/accounts")
 @Singleton
 public class AccountResource {
 
     /**
-     * Initializes the storage at the data directory of the server base
+     * Initializes the storage at the data directory of the server base.
+     * The storage can be tuned with system properties, see {@link AccountStorageFactory},
+     * and so can the rules for account descriptions, see {@link AccountValidator},
+     * and password hashing, see {@link PasswordService#create}, I/O threads, see {@link IoExecutor#create},
+     * and the cache of encoded accounts, see {@link #AccountResource(AccountStorage, PasswordService, Properties)}
      *
      * @throws IOException from storage creation
      */
     public AccountResource() throws IOException{
-        accounts = new AccountStorage("./data/");
+        this(AccountStorageFactory.create(System.getProperties()), PasswordService.create(System.getProperties()),
+                System.getProperties());
+        this.owner = true;
+    }
+
+    /**
+     * @param accounts the storage to serve accounts from, passwords are hashed with the default settings
+     * @throws IOException if the accounts can't be read to build the indexes
+     */
+    public AccountResource(AccountStorage accounts) throws IOException {
+        this(accounts, PasswordService.create(new Properties()));
+    }
+
+    /**
+     * @param accounts the storage to serve accounts from, it is wrapped into an {@link IndexedAccountStorage}
+     *                 for searches unless it is one already
+     * @param passwords hashes passwords of created and updated accounts and verifies them
+     * @throws IOException if the accounts can't be read to build the indexes
+     */
+    public AccountResource(AccountStorage accounts, PasswordService passwords) throws IOException {
+        this(accounts, passwords, new Properties());
+    }
+
+    /**
+     * @param accounts the storage to serve accounts from, it is wrapped into an {@link IndexedAccountStorage}
+     *                 for searches unless it is one already
+     * @param passwords hashes passwords of created and updated accounts and verifies them
+     * @param settings number of I/O threads and the length of their queue, see {@link IoExecutor#create},
+     *                 the rules for account descriptions, see {@link AccountValidator},
+     *                 usermanager.responseCache.maxBytes - memory for encoded JSON of recently requested
+     *                 accounts, 0 disables the cache, 64 MB by default, usermanager.snapshot.bytesPerSecond -
+     *                 how fast snapshots read accounts, see {@link #writeSnapshot(OutputStream)}, 32 MB by default,
+     *                 and usermanager.admin.token - the bearer token for the export and snapshot of accounts with
+     *                 their password hashes, both are disabled without it
+     * @throws IOException if the accounts can't be read to build the indexes
+     * @throws NumberFormatException if a setting is malformed
+     */
+    public AccountResource(AccountStorage accounts, PasswordService passwords, Properties settings)
+            throws IOException {
+        this.accounts = accounts instanceof IndexedAccountStorage ? (IndexedAccountStorage) accounts
+                : new IndexedAccountStorage(accounts);
+        this.passwords = passwords;
+        this.validator = new AccountValidator(settings);
+        this.io = IoExecutor.create(settings);
+        this.responses = new ResponseCache(Long.parseLong(settings.getProperty("usermanager.responseCache.maxBytes",
+                String.valueOf(64 * 1024 * 1024))));
+        this.snapshotRate = Long.parseLong(settings.getProperty("usermanager.snapshot.bytesPerSecond",
+                String.valueOf(32 * 1024 * 1024)));
+        String token = settings.getProperty("usermanager.admin.token", "");
+        this.adminToken = token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops the I/O threads after the queued requests. The storage and the password service are closed too
+     * if the resource has created them, otherwise they stay open
+     * @throws IOException if the storage can't be closed
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        io.close();
+        if(owner) {
+            passwords.close();
+            accounts.close();
+        }
     }
 
     /**
-     * POST method, that creates a record for an account which JSON description lies in the stream
+     * Asynchronous form of {@link #createAccount(InputStream)}
+     */
+    @POST
+    @Consumes("application/json")
+    public void createAccount(InputStream is, @Suspended AsyncResponse response) {
+        handle(response, CREATE_METRICS, () -> createAccount(is));
+    }
+
+    /**
+     * POST method, that creates a record for an account which JSON description lies in the stream.
+     * The password is stored as a salted hash
      * @return * Response 201 'CREATED' in case of success
      *          * Response 415 'UNSUPPORTED MEDIA TYPE' in case of invalid JSON description in the stream
+     *            or a login reserved for the other endpoints, like '_bulk'
      *          * Response 500 'INTERNAL SERVER ERROR' in case of I/O error(for example if 'data' dir does not exist)
+     *          * Response 503 'SERVICE UNAVAILABLE' if too many passwords are being hashed
      */
-    @POST
-    @Consumes("application/json")
     public Response createAccount(InputStream is) {
+        RequestTimer timer = CREATE_METRICS.start();
+        Response response = Response.serverError().build();
         try {
-            Account account = AccountJsonSerializer.createFromJSON(is);
-            accounts.store(account);
-            return Response.created(URI.create("/accounts/" + account.getLogin())).build();
+            Account account = AccountJsonSerializer.createFromJSON(is, validator);
+            checkNotReserved(account.getLogin());
+            account.setPassword(passwords.hash(account.getPassword()));
+            timer.parsed();
+            try (LoginLocks.Guard lock = locks.lockWrite(account.getLogin())) {
+                accounts.store(account);
+                changed(account.getLogin());
+            }
+            timer.stored();
+            response = Response.created(URI.create("/accounts/" + account.getLogin()))
+                    .header(HttpHeaders.ETAG, IndexedAccountStorage.computeETag(account))
+                    .build();
 
         } catch (IOException e) {
             System.err.println(e);
-            return Response.serverError().build();
 
         } catch (AccountJsonSerializer.InvalidDescription|IllegalArgumentException e) {
-            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).entity(e.getMessage()).build();
+            response = Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).entity(e.getMessage()).build();
+        } catch (RejectedExecutionException e) {
+            response = overloaded("Too many passwords are being hashed, retry later");
+        } finally {
+            timer.finish(response.getStatus());
         }
+        return response;
     }
 
     /**
-     * GET method, that returns a JSON representation of an account with the login specified in the path
-     * @return a steam containing a JSON object
-     * @throws NotFoundException, status code 404, 'NOT FOUND' if an account with given login does not exist in current 'data' dir
+     * POST method, that creates accounts from JSON descriptions in the stream, see {@link #importAccounts(InputStream)}.
+     * Passwords that are hashed already, as in an export, are stored as they are only for an administrator
+     * @param authorization 'Bearer ' and the token of usermanager.admin.token, or null to hash every password
+     * @return a stream with a JSON object for every non-empty line of the input
+     * @throws WebApplicationException with status 401, 'UNAUTHORIZED' if the token is wrong
+     *                                  with status 403, 'FORBIDDEN' if a token is given but none is configured
+     */
+    @POST
+    @Path("_bulk")
+    @Consumes({"application/x-ndjson", "application/json"})
+    @Produces("application/x-ndjson")
+    public StreamingOutput importAccounts(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization,
+                                         InputStream is) {
+        if(authorization == null) {
+            return importAccounts(is);
+        }
+        authorizeAdmin(authorization);
+        return importAccounts(is, true);
+    }
+
+    /**
+     * Creates accounts from JSON descriptions in the stream, one description per line (NDJSON), hashing every password.
+     * The stream is read line by line while the response is written, and accounts are stored in batches
+     * @return a stream with a JSON object for every non-empty line of the input, in the same order:
+     *          "line" - number of the line, starting with 1
+     *          "status" - 201 if the account is created, 415 if the description is invalid,
+     *                     500 if the batch with the account couldn't be stored
+     *          "login" of the created account or "error" message
+     */
+    public StreamingOutput importAccounts(InputStream is) {
+        return importAccounts(is, false);
+    }
+
+    private StreamingOutput importAccounts(InputStream is, boolean keepHashed) {
+        return new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+                JsonGenerator results = JSON.createGenerator(new BufferedOutputStream(outputStream));
+                List<BulkLine> batch = new ArrayList<>(BULK_BATCH_SIZE);
+                int lineNumber = 0;
+                String line;
+                while((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if(line.trim().isEmpty()) {
+                        continue;
+                    }
+                    BulkLine result = new BulkLine(lineNumber);
+                    try {
+                        Account account = AccountJsonSerializer.createFromJSON(
+                                new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)), validator);
+                        checkNotReserved(account.getLogin());
+                        result.account = account;
+                    } catch (IOException|AccountJsonSerializer.InvalidDescription|IllegalArgumentException e) {
+                        result.status = Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode();
+                        result.error = e.getMessage();
+                    }
+                    batch.add(result);
+                    if(batch.size() == BULK_BATCH_SIZE) {
+                        storeBatch(batch, results, keepHashed);
+                    }
+                }
+                storeBatch(batch, results, keepHashed);
+                results.close();
+            }
+        };
+    }
+
+    /**
+     * GET method, that returns JSON representations of all accounts with their password hashes, see
+     * {@link #exportAccounts()}, to an administrator
+     * @param authorization 'Bearer ' and the token of usermanager.admin.token
+     * @return a stream of JSON objects
+     * @throws WebApplicationException with status 401, 'UNAUTHORIZED' if the token is missing or wrong
+     *                                  with status 403, 'FORBIDDEN' if no token is configured
+     */
+    @GET
+    @Path("_export")
+    @Produces("application/x-ndjson")
+    public StreamingOutput exportAccounts(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        authorizeAdmin(authorization);
+        return exportAccounts();
+    }
+
+    /**
+     * Returns JSON representations of all accounts, one per line (NDJSON).
+     * Accounts are read and written one by one, so the memory used doesn't depend on the number of accounts
+     * @return a stream of JSON objects
+     */
+    public StreamingOutput exportAccounts() {
+        return new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                OutputStream buffered = new BufferedOutputStream(outputStream, 64 * 1024);
+                accounts.forEachAccount(account -> {
+                    AccountJsonSerializer.toJSON(account, buffered);
+                    buffered.write('\n');
+                });
+                buffered.flush();
+            }
+        };
+    }
+
+    /**
+     * GET method, that streams to an administrator a snapshot of all accounts with their password hashes as they
+     * were at one moment, while they keep changing, see {@link #writeSnapshot(OutputStream)}.
+     * It is restored into a new data directory with {@link org.tools.SnapshotRestorer}
+     * @param authorization 'Bearer ' and the token of usermanager.admin.token
+     * @return a gzip-compressed stream, see {@link AccountSnapshot}
+     * @throws WebApplicationException with status 401, 'UNAUTHORIZED' if the token is missing or wrong
+     *                                  with status 403, 'FORBIDDEN' if no token is configured
+     */
+    @GET
+    @Path("_snapshot")
+    @Produces("application/gzip")
+    public Response getSnapshot(@HeaderParam(HttpHeaders.AUTHORIZATION) String authorization) {
+        authorizeAdmin(authorization);
+        StreamingOutput snapshot = new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                writeSnapshot(outputStream);
+            }
+        };
+        return Response.ok(snapshot)
+                .header("Content-Disposition", "attachment; filename=\"accounts-" + System.currentTimeMillis() +
+                        AccountSnapshot.EXTENSION + "\"")
+                .build();
+    }
+
+    /**
+     * Writes a snapshot of all accounts without stopping the changes. The accounts are copied one by one at the rate
+     * of usermanager.snapshot.bytesPerSecond, so that the snapshot doesn't take the disk from the requests,
+     * and the accounts changed meanwhile are copied again, a few rounds until there are only a few of them.
+     * These are copied with all logins locked, which takes as long as reading them from the storage,
+     * and the snapshot holds the accounts as they were at that moment.
+     * @param os the stream to write the compressed snapshot to, it is not closed
+     * @return the counts and times of the snapshot
+     * @throws IOException if the accounts can't be read or written to the stream
+     */
+    public AccountSnapshot writeSnapshot(OutputStream os) throws IOException {
+        Set<String> changes = ConcurrentHashMap.newKeySet();
+        snapshots.add(changes);
+        try {
+            AccountSnapshot.Writer snapshot = new AccountSnapshot.Writer(os, snapshotRate);
+            accounts.forEachAccount(snapshot::write);
+            snapshot.startChanges();
+            for(int round = 0; round < SNAPSHOT_ROUNDS && changes.size() > SNAPSHOT_LOCKED_CHANGES; round++) {
+                for(String login : new ArrayList<>(changes)) {
+                    // a change after this copies the login once more
+                    changes.remove(login);
+                    Account account;
+                    try (LoginLocks.Guard lock = locks.lockRead(login)) {
+                        account = find(login);
+                    }
+                    writeChange(snapshot, login, account);
+                }
+            }
+
+            Map<String, Account> last = new HashMap<>();
+            long time;
+            try (LoginLocks.Guard lock = locks.lockAll()) {
+                for(String login : changes) {
+                    last.put(login, find(login));
+                }
+                time = System.currentTimeMillis();
+            }
+            for(Map.Entry<String, Account> change : last.entrySet()) {
+                writeChange(snapshot, change.getKey(), change.getValue());
+            }
+            return snapshot.finish(time);
+        } finally {
+            snapshots.removeIf(running -> running == changes);
+        }
+    }
+
+    /**
+     * GET method, that returns changes of accounts after the given sequence number, waiting for the next change
+     * if there are none yet (long polling). A consumer passes the "last" number of a response to the next request
+     * to follow the changes without gaps. The request doesn't hold a server thread while it waits
+     * @param since the last sequence number the consumer has seen, 0 to read from the first change
+     * @param limit maximum number of changes in the response, from 1 to 10000
+     * @param wait seconds to wait for a change before an empty response is returned, from 0 to 60
+     * @return a stream containing a JSON object with an array of "changes" and the "last" sequence number,
+     *          each change has a "seq", a "time" in milliseconds, a "type" ('created', 'updated', 'renamed' or
+     *          'deleted'), a "login", an "oldLogin" if renamed and the public "account" unless deleted
+     * @throws WebApplicationException with status 400, 'BAD REQUEST' if a parameter is out of range
+     *                                  with status 501, 'NOT IMPLEMENTED' if changes are not recorded,
+     *                                  see {@link AccountStorageFactory}
+     *                                  with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
+     */
+    @GET
+    @Path("_changes")
+    @Produces("application/json")
+    public void getChanges(@DefaultValue("0") @QueryParam("since") long since,
+                           @DefaultValue("1000") @QueryParam("limit") int limit,
+                           @DefaultValue("30") @QueryParam("wait") int wait,
+                           @Suspended AsyncResponse response) {
+        ChangeLog changes = accounts.getChangeLog();
+        if(changes == null || since < 0 || limit < 1 || limit > MAX_CHANGES || wait < 0 || wait > MAX_CHANGES_WAIT) {
+            response.resume(changes == null
+                    ? new WebApplicationException("Changes are not recorded", Response.Status.NOT_IMPLEMENTED)
+                    : new WebApplicationException("Parameters are out of range", Response.Status.BAD_REQUEST));
+            return;
+        }
+        if(wait == 0 || changes.getLastSeq() > since) {
+            resumeWithChanges(response, since, limit);
+            return;
+        }
+        AtomicReference<Runnable> stopWaiting = new AtomicReference<>(() -> {});
+        response.setTimeout(wait, TimeUnit.SECONDS);
+        response.setTimeoutHandler(expired -> {
+            // the waiter is dropped, so an idle log doesn't collect the requests that have timed out
+            stopWaiting.get().run();
+            resumeWithChangesLater(expired, since, limit);
+        });
+        // the appending thread only hands the request over, the changes are read on an I/O thread
+        stopWaiting.set(changes.onAppended(since, () -> resumeWithChangesLater(response, since, limit)));
+        if(response.isDone()) {
+            stopWaiting.get().run();
+        }
+    }
+
+    /**
+     * Reads changes after the given sequence number without waiting, see {@link #getChanges(long, int, int, AsyncResponse)}
      * @throws WebApplicationException with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
      */
+    public StreamingOutput getChanges(long since, int limit) {
+        ChangeLog changes = accounts.getChangeLog();
+        List<ChangeLog.Change> found;
+        try {
+            found = changes.read(since, limit);
+        } catch (IOException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
+        }
+        long last = found.isEmpty() ? Math.min(since, changes.getLastSeq()) : found.get(found.size() - 1).getSeq();
+        return new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                JsonGenerator json = JSON.createGenerator(new BufferedOutputStream(outputStream, 64 * 1024));
+                json.writeStartObject();
+                json.writeArrayFieldStart("changes");
+                for(ChangeLog.Change change : found) {
+                    json.writeStartObject();
+                    json.writeNumberField("seq", change.getSeq());
+                    json.writeNumberField("time", change.getTime());
+                    json.writeStringField("type", change.getType().name().toLowerCase());
+                    json.writeStringField("login", change.getLogin());
+                    if(change.getOldLogin() != null) {
+                        json.writeStringField("oldLogin", change.getOldLogin());
+                    }
+                    if(change.getAccount() != null) {
+                        // stored as encoded JSON, copied as is
+                        json.writeFieldName("account");
+                        json.writeRawValue(new String(change.getAccount(), StandardCharsets.UTF_8));
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                json.writeNumberField("last", last);
+                json.writeEndObject();
+                json.close();
+            }
+        };
+    }
+
+    /**
+     * GET method, that returns a page of accounts matching all given conditions, see
+     * {@link IndexedAccountStorage#search(AccountQuery, String, int)} for the order of accounts
+     * @param namePrefix case sensitive prefix of the name
+     * @param bornAfter the birthday should be later than this date, yyyy-MM-dd
+     * @param bornBefore the birthday should be earlier than this date, yyyy-MM-dd
+     * @param sex 'Male' or 'Female'
+     * @param cursor "next" of the previous page with the same conditions, omitted for the first page
+     * @param limit maximum number of accounts in the page, from 1 to 1000
+     * @return a stream containing a JSON object with an array of "accounts" and the "next" cursor,
+     *          which is absent on the last page
+     * @throws WebApplicationException with status 400, 'BAD REQUEST' if a parameter is malformed
+     *                                  with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
+     */
+    @GET
+    @Produces("application/json")
+    public StreamingOutput findAccounts(@QueryParam("namePrefix") String namePrefix,
+                                        @QueryParam("bornAfter") String bornAfter,
+                                        @QueryParam("bornBefore") String bornBefore,
+                                        @QueryParam("sex") String sex,
+                                        @QueryParam("cursor") String cursor,
+                                        @DefaultValue("100") @QueryParam("limit") int limit) {
+        AccountQuery query = new AccountQuery();
+        IndexedAccountStorage.Page page;
+        try {
+            query.setNamePrefix(namePrefix);
+            query.setBornAfter(bornAfter == null ? null : LocalDate.parse(bornAfter));
+            query.setBornBefore(bornBefore == null ? null : LocalDate.parse(bornBefore));
+            query.setSex(sex == null ? null : Account.Sex.valueOf(sex));
+            if(limit > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("Limit should not exceed " + MAX_PAGE_SIZE);
+            }
+            page = accounts.search(query, cursor, limit);
+        } catch (DateTimeParseException|IllegalArgumentException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.BAD_REQUEST);
+        }
+
+        List<Account> found = new ArrayList<>(page.getLogins().size());
+        try {
+            for(String login : page.getLogins()) {
+                try (LoginLocks.Guard lock = locks.lockRead(login)) {
+                    Account account = accounts.get(login);
+                    // the account could change after the search
+                    if(query.matches(account)) {
+                        found.add(account);
+                    }
+                } catch (AccountStorage.UserNotFoundException e) {
+                    // removed after the search
+                }
+            }
+        } catch (IOException e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
+        }
+
+        return new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                OutputStream buffered = new BufferedOutputStream(outputStream);
+                buffered.write("{\"accounts\":[".getBytes(StandardCharsets.UTF_8));
+                for(int i = 0; i < found.size(); i++) {
+                    if(i > 0) {
+                        buffered.write(',');
+                    }
+                    AccountJsonSerializer.toPublicJSON(found.get(i), buffered);
+                }
+                buffered.write(']');
+                if(page.getNext() != null) {
+                    // cursors are url-safe base64 and need no escaping
+                    buffered.write((",\"next\":\"" + page.getNext() + "\"").getBytes(StandardCharsets.UTF_8));
+                }
+                buffered.write('}');
+                buffered.flush();
+            }
+        };
+    }
+
+    /**
+     * Asynchronous form of {@link #getAccount(String, String, String)}
+     */
     @GET
     @Path("{login}")
     @Produces("application/json")
-    public StreamingOutput getAccount(@PathParam("login") String login) {
+    public void getAccount(@PathParam("login") String login,
+                           @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+                           @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                           @Suspended AsyncResponse response) {
+        handle(response, GET_METRICS, () -> getAccount(login, ifNoneMatch, acceptEncoding));
+    }
+
+    /**
+     * @see #getAccount(String, String, String)
+     */
+    public Response getAccount(String login, String ifNoneMatch) {
+        return getAccount(login, ifNoneMatch, null);
+    }
+
+    /**
+     * GET method, that returns a JSON representation of an account with the login specified in the path
+     * along with its ETag. The encoded JSON of recently requested accounts is cached, so a repeated request
+     * neither reads nor encodes the account
+     * @param ifNoneMatch ETags the client already has, if the current one is among them the account is not read at all
+     * @param acceptEncoding if it accepts gzip, the JSON is sent compressed when that makes it smaller
+     * @return * Response 200 'OK' with a steam containing a JSON object
+     *          * Response 304 'NOT MODIFIED' if the account has the ETag from If-None-Match
+     * @throws NotFoundException, status code 404, 'NOT FOUND' if an account with given login does not exist in current 'data' dir
+     * @throws WebApplicationException with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
+     */
+    public Response getAccount(String login, String ifNoneMatch, String acceptEncoding) {
+        RequestTimer timer = GET_METRICS.start();
         try {
-            Account account = accounts.get(login);
-            return new StreamingOutput() {
+            Account account = null;
+            String etag;
+            ResponseCache.Entry encoded;
+            try (LoginLocks.Guard lock = locks.lockRead(login)) {
+                etag = accounts.getETag(login);
+                if(etag != null && ifNoneMatch != null && matchesETag(ifNoneMatch, etag)) {
+                    timer.stored();
+                    timer.finish(Response.Status.NOT_MODIFIED.getStatusCode());
+                    return Response.notModified().header(HttpHeaders.ETAG, etag).build();
+                }
+                encoded = responses.get(login, etag);
+                if(encoded == null) {
+                    account = accounts.get(login);
+                }
+            }
+            timer.stored();
+            if(encoded == null) {
+                ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+                AccountJsonSerializer.toPublicJSON(account, json);
+                encoded = responses.put(login, etag, json.toByteArray());
+            }
+            byte[] gzip = acceptsGzip(acceptEncoding) ? responses.gzip(login, encoded) : null;
+            byte[] body = gzip != null ? gzip : encoded.json;
+            timer.serialized();
+            Response.ResponseBuilder response = Response.ok(new StreamingOutput() {
                 public void write(OutputStream outputStream) throws IOException,
                         WebApplicationException {
-                    AccountJsonSerializer.toJSON(account, outputStream);
+                    int status = STATUS_ERROR;
+                    try {
+                        outputStream.write(body);
+                        status = STATUS_OK;
+                    } finally {
+                        timer.finish(status);
+                    }
                 }
-            };
+            }).header(HttpHeaders.ETAG, etag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if(gzip != null) {
+                response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            return response.build();
 
         } catch (AccountStorage.UserNotFoundException e) {
+            timer.finish(STATUS_NOT_FOUND);
             throw new NotFoundException("User "+login+" does not exist");
 
         } catch (IOException e) {
+            timer.finish(STATUS_ERROR);
             throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
 
         }
     }
 
+    /**
+     * Asynchronous form of {@link #updateAccount(String, String, InputStream)}
+     */
+    @PUT
+    @Path("{login}")
+    @Consumes("application/json")
+    public void updateAccount(@PathParam("login") String login,
+                              @HeaderParam(HttpHeaders.IF_MATCH) String ifMatch,
+                              InputStream is,
+                              @Suspended AsyncResponse response) {
+        handle(response, UPDATE_METRICS, () -> updateAccount(login, ifMatch, is));
+    }
+
     /**
      * PUT method that updates an account data with values provided in the JSON object which lies in the stream
      * @param login of the account to be updated
+     * @param ifMatch if present, the account is updated only if its current ETag is among these
      * @param is containing partial JSON description of an account
+     * @return Response 204 'NO CONTENT' with the new ETag of the account
      * @throws NotFoundException, status code 404, 'NOT FOUND' if an account with given login does not exist in current 'data' dir
      * @throws WebApplicationException with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
      *                                  with status 415, 'UNSUPPORTED MEDIA TYPE', if the account description is incorrect
+     *                                  with status 412, 'PRECONDITION FAILED', if the account was changed since
+     *                                  the client got it (its ETag doesn't match If-Match)
      */
-    @PUT
-    @Path("{login}")
-    @Consumes("application/json")
-    public void updateAccount(@PathParam("login") String login,
-                               InputStream is) {
+    public Response updateAccount(String login, String ifMatch, InputStream is) {
+        RequestTimer timer = UPDATE_METRICS.start();
+        int status = STATUS_ERROR;
         try {
-            Account current = accounts.get(login);
-            String oldLogin = current.getLogin();
-            AccountJsonSerializer.updateFromJSON(current, is);
-            if(!oldLogin.equals(current.getLogin())) {
-                accounts.remove(oldLogin);
+            byte[] update = readAll(is);
+            // hash a new password before taking the locks
+            Account changes = new Account(null, null);
+            AccountJsonSerializer.updateFromJSON(changes, new ByteArrayInputStream(update), validator);
+            String password = changes.getPassword() == null ? null : passwords.hash(changes.getPassword());
+            timer.parsed();
+            String newLogin = login;
+            while(true) {
+                try (LoginLocks.Guard lock = locks.lockWrite(Arrays.asList(login, newLogin))) {
+                    Account current = accounts.get(login);
+                    String oldLogin = current.getLogin();
+                    if(ifMatch != null && !matchesETag(ifMatch, accounts.getETag(login))) {
+                        status = Response.Status.PRECONDITION_FAILED.getStatusCode();
+                        throw new WebApplicationException("Account " + login + " has changed",
+                                Response.Status.PRECONDITION_FAILED);
+                    }
+                    timer.stored();
+                    AccountJsonSerializer.updateFromJSON(current, new ByteArrayInputStream(update), validator);
+                    if(password != null) {
+                        current.setPassword(password);
+                    }
+                    timer.parsed();
+                    if(!current.getLogin().equals(newLogin)) {
+                        // the account is renamed, lock the new login as well and start over
+                        newLogin = current.getLogin();
+                        checkNotReserved(newLogin);
+                        continue;
+                    }
+                    accounts.rename(oldLogin, current);
+                    changed(oldLogin);
+                    changed(current.getLogin());
+                    timer.stored();
+                    status = STATUS_NO_CONTENT;
+                    return Response.noContent().header(HttpHeaders.ETAG, accounts.getETag(current.getLogin())).build();
+                }
             }
-            accounts.store(current);
 
         } catch (AccountStorage.UserNotFoundException e) {
+            status = STATUS_NOT_FOUND;
             throw new NotFoundException("User "+login+" does not exist");
         } catch (IOException e) {
             throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
-        } catch (AccountJsonSerializer.InvalidDescription e) {
+        } catch (AccountJsonSerializer.InvalidDescription|IllegalArgumentException e) {
+            status = Response.Status.UNSUPPORTED_MEDIA_TYPE.getStatusCode();
             throw new WebApplicationException(e.getMessage(), Response.Status.UNSUPPORTED_MEDIA_TYPE);
+        } catch (RejectedExecutionException e) {
+            status = STATUS_UNAVAILABLE;
+            throw new WebApplicationException(overloaded("Too many passwords are being hashed, retry later"));
+        } finally {
+            timer.finish(status);
+        }
+    }
+
+    /**
+     * Asynchronous form of {@link #verifyPassword(String, InputStream)}, so that the request thread doesn't wait
+     * for the hash
+     */
+    @POST
+    @Path("{login}/verify")
+    @Consumes("application/json")
+    public void verifyPassword(@PathParam("login") String login, InputStream is, @Suspended AsyncResponse response) {
+        handle(response, VERIFY_METRICS, () -> verifyPassword(login, is));
+    }
+
+    /**
+     * POST method, that checks the password of an account. Successful checks are remembered for a short time,
+     * and passwords stored with an outdated cost or in plaintext are rehashed after a successful check
+     * @param is containing a JSON object with the "password" field
+     * @return * Response 204 'NO CONTENT' if the password is right
+     *          * Response 401 'UNAUTHORIZED' if the password is wrong or there is no such account
+     *          * Response 415 'UNSUPPORTED MEDIA TYPE' if the password is missing
+     *          * Response 503 'SERVICE UNAVAILABLE' if too many passwords are being hashed
+     * @throws WebApplicationException with status 500, 'INTERNAL SERVER ERROR' if I/O error occures
+     */
+    public Response verifyPassword(String login, InputStream is) {
+        RequestTimer timer = VERIFY_METRICS.start();
+        Response response = Response.serverError().build();
+        try {
+            Account credentials = new Account(null, null);
+            AccountJsonSerializer.updateFromJSON(credentials, is, validator);
+            String password = credentials.getPassword();
+            if(password == null) {
+                response = Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE)
+                        .entity("The password is missing").build();
+                return response;
+            }
+            timer.parsed();
+
+            String stored;
+            try (LoginLocks.Guard lock = locks.lockRead(login)) {
+                stored = accounts.get(login).getPassword();
+            } catch (AccountStorage.UserNotFoundException e) {
+                stored = null;
+            }
+            timer.stored();
+            boolean valid = passwords.verify(login, password, stored);
+            timer.parsed();
+            if(valid && passwords.needsRehash(stored)) {
+                rehash(login, stored, passwords.hash(password));
+                timer.stored();
+            }
+            response = Response.status(valid ? Response.Status.NO_CONTENT : Response.Status.UNAUTHORIZED).build();
+
+        } catch (IOException e) {
+            // answered with 500, which the metrics of the endpoint count
+
+        } catch (AccountJsonSerializer.InvalidDescription|IllegalArgumentException e) {
+            response = Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).entity(e.getMessage()).build();
+        } catch (RejectedExecutionException e) {
+            response = overloaded("Too many passwords are being hashed, retry later");
+        } finally {
+            timer.finish(response.getStatus());
         }
+        return response;
+    }
+
+    /**
+     * Asynchronous form of {@link #deleteAccount(String)}
+     */
+    @DELETE
+    @Path("{login}")
+    public void deleteAccount(@PathParam("login") String login, @Suspended AsyncResponse response) {
+        handle(response, DELETE_METRICS, () -> {
+            deleteAccount(login);
+            return Response.noContent().build();
+        });
     }
 
     /**
@@ -117,18 +771,300 @@ public class AccountResource {
      * @throws NotFoundException if the account is not in the storage
      * @throws WebApplicationException with status 500, 'INTERNAL SERVER ERROR' if I/O error occurs
      */
-    @DELETE
-    @Path("{login}")
-    public void deleteAccount(@PathParam("login") String login) {
-        try {
+    public void deleteAccount(String login) {
+        RequestTimer timer = DELETE_METRICS.start();
+        int status = STATUS_ERROR;
+        try (LoginLocks.Guard lock = locks.lockWrite(login)) {
             accounts.remove(login);
+            changed(login);
+            timer.stored();
+            status = STATUS_NO_CONTENT;
 
         } catch (AccountStorage.UserNotFoundException e) {
+            status = STATUS_NOT_FOUND;
             throw new NotFoundException("User "+login+" does not exist");
         } catch (IOException e) {
             throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
+        } finally {
+            timer.finish(status);
+        }
+    }
+
+    /**
+     * Drops the encoded response of the changed login and has running snapshots copy it again.
+     * Called after every change of an account, with its login locked for writing
+     */
+    private void changed(String login) {
+        responses.invalidate(login);
+        for(Set<String> changes : snapshots) {
+            changes.add(login);
         }
     }
 
-    private AccountStorage accounts;
+    /**
+     * @return the account, null if there is none
+     */
+    private Account find(String login) throws IOException {
+        try {
+            return accounts.get(login);
+        } catch (AccountStorage.UserNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void writeChange(AccountSnapshot.Writer snapshot, String login, Account account)
+            throws IOException {
+        if(account == null) {
+            snapshot.writeDeleted(login);
+        } else {
+            snapshot.write(account);
+        }
+    }
+
+    /**
+     * Replaces the stored password with a new hash of it, unless it has changed since it was verified
+     */
+    private void rehash(String login, String verified, String hash) throws IOException {
+        try (LoginLocks.Guard lock = locks.lockWrite(login)) {
+            Account account = accounts.get(login);
+            if(account.getPassword().equals(verified)) {
+                account.setPassword(hash);
+                accounts.store(account);
+                changed(login);
+            }
+        } catch (AccountStorage.UserNotFoundException e) {
+            // removed in the meantime
+        }
+    }
+
+    /**
+     * @param header value of If-Match or If-None-Match: '*' or a list of ETags, weak ones are compared as strong
+     * @param etag the current quoted ETag, null if there is no account
+     */
+    private static boolean matchesETag(String header, String etag) {
+        if(etag == null) {
+            return false;
+        }
+        for(String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the handler on an I/O thread and resumes the request with its response or exception,
+     * or answers 503 at once if too many requests are waiting for the storage
+     */
+    private void handle(AsyncResponse response, EndpointMetrics metrics, Callable<Response> handler) {
+        try {
+            io.submit(handler).whenComplete((result, error) -> {
+                if(error == null) {
+                    response.resume(result);
+                } else {
+                    response.resume(error instanceof CompletionException ? error.getCause() : error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.start().finish(STATUS_UNAVAILABLE);
+            response.resume(overloaded("Too many requests are waiting for the storage, retry later"));
+        }
+    }
+
+    /**
+     * Resumes the request with changes on an I/O thread, or with 503 if too many operations wait for one
+     */
+    private void resumeWithChangesLater(AsyncResponse response, long since, int limit) {
+        try {
+            io.submit(() -> {
+                resumeWithChanges(response, since, limit);
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            response.resume(overloaded("Too many requests are waiting for the storage, retry later"));
+        }
+    }
+
+    /**
+     * Resumes the request with the changes, unless it has been resumed already by a timeout or a change
+     */
+    private void resumeWithChanges(AsyncResponse response, long since, int limit) {
+        if(response.isDone()) {
+            return;
+        }
+        try {
+            response.resume(getChanges(since, limit));
+        } catch (WebApplicationException e) {
+            response.resume(e);
+        }
+    }
+
+    /**
+     * @return whether the value of Accept-Encoding allows gzip, explicitly or with '*'
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return false;
+        }
+        for(String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if(name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                return parameters.length < 2 || !parameters[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets through requests with the bearer token of usermanager.admin.token, comparing it in constant time
+     * @throws WebApplicationException with status 401 or 403, see {@link #exportAccounts(String)}
+     */
+    private void authorizeAdmin(String authorization) {
+        if(adminToken == null) {
+            throw new WebApplicationException("Accounts with password hashes are not served without " +
+                    "usermanager.admin.token", Response.Status.FORBIDDEN);
+        }
+        byte[] token = authorization != null && authorization.startsWith(BEARER)
+                ? authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if(!MessageDigest.isEqual(adminToken, token)) {
+            throw new WebApplicationException(Response.status(Response.Status.UNAUTHORIZED)
+                    .header(HttpHeaders.WWW_AUTHENTICATE, "Bearer")
+                    .entity("The admin token is missing or wrong")
+                    .build());
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the login is a path of another endpoint, e.g. '_bulk', as GET, PUT
+     *                                  and DELETE couldn't reach such an account
+     */
+    private static void checkNotReserved(String login) {
+        if(RESERVED_LOGINS.contains(login)) {
+            throw new IllegalArgumentException("Invalid login: '" + login + "' is reserved");
+        }
+    }
+
+    private static Response overloaded(String reason) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", "1")
+                .entity(reason)
+                .build();
+    }
+
+    /**
+     * Hashes passwords and stores valid accounts of the batch at once, writes results of all its lines and clears it.
+     * If hashing or storing fails, all valid accounts of the batch are reported with status 500
+     * @param keepHashed whether passwords hashed already are stored as they are, see {@link PasswordService#hashAll}
+     * @throws IOException if the results can't be written
+     */
+    private void storeBatch(List<BulkLine> batch, JsonGenerator results, boolean keepHashed) throws IOException {
+        List<Account> valid = new ArrayList<>(batch.size());
+        for(BulkLine line : batch) {
+            if(line.account != null) {
+                valid.add(line.account);
+            }
+        }
+        String storageError = null;
+        try {
+            passwords.hashAll(valid, keepHashed);
+            List<String> logins = new ArrayList<>(valid.size());
+            for(Account account : valid) {
+                logins.add(account.getLogin());
+            }
+            try (LoginLocks.Guard lock = locks.lockWrite(logins)) {
+                accounts.storeAll(valid);
+                for(String login : logins) {
+                    changed(login);
+                }
+            }
+        } catch (IOException|RuntimeException e) {
+            // reported on every line of the batch, so the client knows which ones to send again
+            Metrics.BULK_FAILED_BATCHES.increment();
+            storageError = String.valueOf(e.getMessage());
+        }
+
+        for(BulkLine line : batch) {
+            results.writeStartObject();
+            results.writeNumberField("line", line.number);
+            if(line.account != null && storageError == null) {
+                results.writeNumberField("status", Response.Status.CREATED.getStatusCode());
+                results.writeStringField("login", line.account.getLogin());
+            } else if(line.account != null) {
+                results.writeNumberField("status", Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+                results.writeStringField("error", storageError);
+            } else {
+                results.writeNumberField("status", line.status);
+                results.writeStringField("error", line.error);
+            }
+            results.writeEndObject();
+            results.writeRaw('\n');
+        }
+        results.flush();
+        batch.clear();
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+
+    private static class BulkLine {
+        BulkLine(int number) {
+            this.number = number;
+        }
+
+        final int number;
+        Account account;
+        int status;
+        String error;
+    }
+
+    private static final EndpointMetrics CREATE_METRICS = Metrics.endpoint("createAccount");
+    private static final EndpointMetrics GET_METRICS = Metrics.endpoint("getAccount");
+    private static final EndpointMetrics UPDATE_METRICS = Metrics.endpoint("updateAccount");
+    private static final EndpointMetrics DELETE_METRICS = Metrics.endpoint("deleteAccount");
+    private static final EndpointMetrics VERIFY_METRICS = Metrics.endpoint("verifyPassword");
+    private static final int STATUS_OK = Response.Status.OK.getStatusCode();
+    private static final int STATUS_NO_CONTENT = Response.Status.NO_CONTENT.getStatusCode();
+    private static final int STATUS_NOT_FOUND = Response.Status.NOT_FOUND.getStatusCode();
+    private static final int STATUS_ERROR = Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+    private static final int STATUS_UNAVAILABLE = Response.Status.SERVICE_UNAVAILABLE.getStatusCode();
+    private static final int BULK_BATCH_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_CHANGES = 10000;
+    private static final int MAX_CHANGES_WAIT = 60;
+    private static final int LOCK_STRIPES = 1024;
+    private static final int SNAPSHOT_ROUNDS = 10;
+    private static final int SNAPSHOT_LOCKED_CHANGES = 100;
+    private static final String BEARER = "Bearer ";
+    private static final Set<String> RESERVED_LOGINS = new HashSet<>(Arrays.asList(
+            "_bulk", "_export", "_snapshot", "_changes"));
+    private static final JsonFactory JSON = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .setRootValueSeparator(null);
+
+    private IndexedAccountStorage accounts;
+    private final PasswordService passwords;
+    private final AccountValidator validator;
+    private final IoExecutor io;
+    private final ResponseCache responses;
+    private final LoginLocks locks = new LoginLocks(LOCK_STRIPES);
+    private final long snapshotRate;
+    private final byte[] adminToken;
+    private boolean owner;
+    /**
+     * Logins changed since running snapshots copied them
+     */
+    private final List<Set<String>> snapshots = new CopyOnWriteArrayList<>();
 }
@@ -0,0 +1,212 @@
+package org.services;
+
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.metrics.Metrics;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Admission control in front of {@link AccountResource}: every client has a budget of reads and a budget of writes,
+ * see {@link RateLimiter}, and requests beyond them are answered with 429 and the seconds until the next one
+ * is allowed in Retry-After; every endpoint has a limit of requests in flight that follows the latency
+ * of the storage, see {@link ConcurrencyLimit}, and requests beyond it are answered with 503 at once,
+ * before their bodies are read. Rejections are counted in {@link Metrics} along with the current limits.
+ * A request leaves the concurrency limit when Jersey finishes it, whether it was answered, failed or resumed
+ * later, so even unmapped exceptions don't leak its permit.
+ * Both are off unless configured, so the filter only looks up the endpoint of a request.
+ */
+@Provider
+public class AdmissionFilter implements ContainerRequestFilter, ApplicationEventListener {
+
+    /**
+     * Takes the settings from the system properties, see {@link #AdmissionFilter(Properties)}
+     */
+    public AdmissionFilter() {
+        this(System.getProperties());
+    }
+
+    /**
+     * @param settings usermanager.limits.readRate, usermanager.limits.writeRate - requests per second a client
+     *                 may read (GET) and change accounts, 0 (default) for no limit;
+     *                 usermanager.limits.readBurst, usermanager.limits.writeBurst - requests a client may send
+     *                 at once after being idle, a second's worth by default;
+     *                 usermanager.limits.clients - clients that have budgets of their own, 100000 by default;
+     *                 usermanager.limits.clientHeader - the header that names the client, e.g. X-Forwarded-For
+     *                 behind a proxy, the remote address identifies it by default;
+     *                 usermanager.limits.trustedProxies - how many proxies append to the client header, 1 by default,
+     *                 the client is the address added by the farthest of them, as the rest of it is up to the client;
+     *                 usermanager.limits.concurrency - 'true' limits requests in flight at every endpoint;
+     *                 usermanager.limits.concurrency.initial, usermanager.limits.concurrency.min,
+     *                 usermanager.limits.concurrency.max - bounds of the limit, 64, 4 and 1024 by default;
+     *                 usermanager.limits.concurrency.tolerance - how many times slower than without queueing requests
+     *                 may get before the limit is reduced, 2 by default
+     * @throws NumberFormatException if a setting is malformed
+     * @throws IllegalArgumentException if a setting is out of its range
+     */
+    public AdmissionFilter(Properties settings) {
+        double readRate = Double.parseDouble(settings.getProperty("usermanager.limits.readRate", "0"));
+        double writeRate = Double.parseDouble(settings.getProperty("usermanager.limits.writeRate", "0"));
+        this.rates = readRate == 0 && writeRate == 0 ? null : new RateLimiter(
+                readRate, Integer.parseInt(settings.getProperty("usermanager.limits.readBurst",
+                        String.valueOf((int) Math.ceil(readRate)))),
+                writeRate, Integer.parseInt(settings.getProperty("usermanager.limits.writeBurst",
+                        String.valueOf((int) Math.ceil(writeRate)))),
+                Integer.parseInt(settings.getProperty("usermanager.limits.clients", "100000")));
+        this.clientHeader = settings.getProperty("usermanager.limits.clientHeader");
+        this.trustedProxies = Integer.parseInt(settings.getProperty("usermanager.limits.trustedProxies", "1"));
+        if(trustedProxies < 1) {
+            throw new IllegalArgumentException("usermanager.limits.trustedProxies should be positive");
+        }
+        this.concurrency = Boolean.parseBoolean(settings.getProperty("usermanager.limits.concurrency", "false"));
+        this.initialLimit = Integer.parseInt(settings.getProperty("usermanager.limits.concurrency.initial", "64"));
+        this.minLimit = Integer.parseInt(settings.getProperty("usermanager.limits.concurrency.min", "4"));
+        this.maxLimit = Integer.parseInt(settings.getProperty("usermanager.limits.concurrency.max", "1024"));
+        this.tolerance = Double.parseDouble(settings.getProperty("usermanager.limits.concurrency.tolerance", "2"));
+        if(concurrency) {
+            // bad bounds fail the startup rather than the first request
+            new ConcurrencyLimit(initialLimit, minLimit, maxLimit, tolerance);
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        if(resource.getResourceClass() != AccountResource.class) {
+            return;
+        }
+        String endpoint = resource.getResourceMethod().getName();
+        if(rates != null) {
+            boolean write = !request.getMethod().equals(HttpMethod.GET)
+                    && !request.getMethod().equals(HttpMethod.HEAD);
+            long wait = rates.acquire(client(request), write, System.nanoTime());
+            if(wait > 0) {
+                (write ? Metrics.RATE_LIMITED_WRITES : Metrics.RATE_LIMITED_READS).increment();
+                Metrics.endpoint(endpoint).start().finish(STATUS_TOO_MANY_REQUESTS);
+                request.abortWith(Response.status(STATUS_TOO_MANY_REQUESTS)
+                        .header("Retry-After", (wait + 999_999_999) / 1_000_000_000)
+                        .entity("Too many requests from the client, retry later")
+                        .build());
+                return;
+            }
+        }
+        if(concurrency && !endpoint.equals(LONG_POLL_ENDPOINT)) {
+            ConcurrencyLimit limit = limit(endpoint);
+            if(!limit.tryAcquire()) {
+                Metrics.CONCURRENCY_REJECTED.increment();
+                Metrics.endpoint(endpoint).start().finish(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+                request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                        .header("Retry-After", "1")
+                        .entity("Too many requests are being served, retry later")
+                        .build());
+                return;
+            }
+            request.setProperty(ADMITTED, new Admission(limit, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    /**
+     * @return a listener that releases the permit of an admitted request once it is finished, null if
+     *         concurrency isn't limited
+     */
+    @Override
+    public RequestEventListener onRequest(RequestEvent start) {
+        if(!concurrency) {
+            return null;
+        }
+        return event -> {
+            if(event.getType() == RequestEvent.Type.FINISHED) {
+                Object admission = event.getContainerRequest().getProperty(ADMITTED);
+                if(admission != null) {
+                    event.getContainerRequest().removeProperty(ADMITTED);
+                    ((Admission) admission).limit.release(System.nanoTime() - ((Admission) admission).start);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the current concurrency limit of the endpoint, null if concurrency isn't limited
+     */
+    public ConcurrencyLimit getConcurrencyLimit(String endpoint) {
+        return concurrency ? limit(endpoint) : null;
+    }
+
+    private ConcurrencyLimit limit(String endpoint) {
+        ConcurrencyLimit limit = limits.get(endpoint);
+        if(limit == null) {
+            limit = limits.computeIfAbsent(endpoint, e -> {
+                ConcurrencyLimit created = new ConcurrencyLimit(initialLimit, minLimit, maxLimit, tolerance);
+                Metrics.concurrency(e, created::getLimit, created::getInFlight);
+                return created;
+            });
+        }
+        return limit;
+    }
+
+    /**
+     * @return the address of the client header added by the farthest trusted proxy, counted from the right,
+     *         if the header is configured and present, the remote address otherwise
+     */
+    private String client(ContainerRequestContext request) {
+        if(clientHeader != null) {
+            String value = request.getHeaderString(clientHeader);
+            if(value != null) {
+                int end = value.length();
+                int start = value.lastIndexOf(',', end - 1) + 1;
+                for(int hop = 1; hop < trustedProxies && start > 0; hop++) {
+                    end = start - 1;
+                    start = value.lastIndexOf(',', end - 1) + 1;
+                }
+                return value.substring(start, end).trim();
+            }
+        }
+        return servletRequest.getRemoteAddr();
+    }
+
+    private static class Admission {
+        Admission(ConcurrencyLimit limit, long start) {
+            this.limit = limit;
+            this.start = start;
+        }
+
+        final ConcurrencyLimit limit;
+        final long start;
+    }
+
+    private static final int STATUS_TOO_MANY_REQUESTS = 429;
+    private static final String ADMITTED = AdmissionFilter.class.getName() + ".admitted";
+    /**
+     * Waits for changes for up to a minute, so its latency tells nothing about the storage
+     */
+    private static final String LONG_POLL_ENDPOINT = "getChanges";
+
+    private final RateLimiter rates;
+    private final String clientHeader;
+    private final int trustedProxies;
+    private final boolean concurrency;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final ConcurrentHashMap<String, ConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    @Context
+    private ResourceInfo resource;
+    @Context
+    private HttpServletRequest servletRequest;
+}
@@ -0,0 +1,106 @@
+package org.services;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A limit of requests in flight at an endpoint that follows the latency of the storage, like the gradient limit
+ * of Netflix's concurrency-limits. Latencies of finished requests are averaged over windows, and every window
+ * the limit is scaled by the ratio of the lowest average seen, the latency without queueing, to the current one,
+ * allowing some slowdown, plus the square root of the limit as room for a queue.
+ * So the limit grows while more requests don't slow the storage down, and shrinks once they wait for each other.
+ */
+public class ConcurrencyLimit {
+
+    /**
+     * @param initial the limit until latencies are known
+     * @param min the lowest limit, so the endpoint can measure its latency while the storage is slow
+     * @param max the highest limit
+     * @param tolerance how many times slower than without queueing requests may get before the limit is reduced
+     * @throws IllegalArgumentException if the limits are not ordered or the tolerance is below 1
+     */
+    public ConcurrencyLimit(int initial, int min, int max, double tolerance) {
+        if(min < 1 || initial < min || max < initial || tolerance < 1) {
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max and tolerance >= 1");
+        }
+        this.limit = initial;
+        this.estimate = initial;
+        this.min = min;
+        this.max = max;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return whether the request may start, if so {@link #release(long)} should be called when it ends
+     */
+    public boolean tryAcquire() {
+        while(true) {
+            int current = inFlight.get();
+            if(current >= limit) {
+                return false;
+            }
+            if(inFlight.compareAndSet(current, current + 1)) {
+                if(current + 1 > peak) {
+                    peak = current + 1;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a request admitted by {@link #tryAcquire()} and adjusts the limit at the end of a window
+     * @param nanos how long the request took
+     */
+    public void release(long nanos) {
+        inFlight.decrementAndGet();
+        synchronized(this) {
+            windowNanos += Math.max(nanos, 0);
+            if(++windowSamples < WINDOW_SAMPLES) {
+                return;
+            }
+            double average = (double) windowNanos / windowSamples;
+            if(average < lowest) {
+                lowest = average;
+            } else {
+                // the storage may have become slower for good, so the old minimum is slowly forgotten
+                lowest += (average - lowest) * DRIFT;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * lowest / average));
+            if(gradient < 1.0 || peak * 2 >= limit) {
+                // an idle endpoint has no reason to grow
+                double target = estimate * gradient + Math.sqrt(estimate);
+                // grows gradually but backs off at once, as queues build up fast
+                estimate = target < estimate ? target : estimate * (1 - SMOOTHING) + target * SMOOTHING;
+                estimate = Math.max(min, Math.min(max, estimate));
+                limit = (int) estimate;
+            }
+            windowNanos = 0;
+            windowSamples = 0;
+            peak = inFlight.get();
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private static final int WINDOW_SAMPLES = 50;
+    private static final double DRIFT = 0.002;
+    private static final double SMOOTHING = 0.2;
+
+    private final int min;
+    private final int max;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    private volatile int peak;
+    private double estimate;
+    private double lowest = Double.MAX_VALUE;
+    private long windowNanos;
+    private int windowSamples;
+}
@@ -0,0 +1,39 @@
+package org.services;
+
+import org.metrics.Metrics;
+
+import javax.inject.Singleton;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A resource that exposes the metrics of the application for a Prometheus scraper
+ */
+@Path("/metrics")
+@Singleton
+public class MetricsResource {
+
+    /**
+     * GET method, that returns request counts, latencies and storage counters, see {@link Metrics}
+     * @return a stream in the Prometheus text format
+     */
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public StreamingOutput getMetrics() {
+        return new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException, WebApplicationException {
+                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                Metrics.writePrometheus(writer);
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package org.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Token buckets of clients, with separate budgets for reads and writes.
+ * A bucket is kept as the time when it will be full again, as in the generic cell rate algorithm,
+ * so taking a token is a single compare-and-set and a full bucket is the same as no bucket at all:
+ * buckets of clients that have been idle long enough to refill are dropped when there are too many clients.
+ * Clients beyond the limit, while all known ones are busy, share overflow buckets by the hash of their names,
+ * so a flood of new clients can't take the budget of all others.
+ */
+public class RateLimiter {
+
+    /**
+     * @param readRate reads per second a client may make, 0 for no limit
+     * @param readBurst reads a client may make at once after it has been idle
+     * @param writeRate writes per second a client may make, 0 for no limit
+     * @param writeBurst writes a client may make at once after it has been idle
+     * @param maxClients how many clients have buckets of their own
+     * @throws IllegalArgumentException if a rate or burst is negative or a burst of a limited rate is 0
+     */
+    public RateLimiter(double readRate, int readBurst, double writeRate, int writeBurst, int maxClients) {
+        if(readRate < 0 || writeRate < 0 || readBurst < 0 || writeBurst < 0 ||
+                (readRate > 0 && readBurst == 0) || (writeRate > 0 && writeBurst == 0)) {
+            throw new IllegalArgumentException("Rates and bursts should be positive");
+        }
+        this.readInterval = readRate > 0 ? (long) (1e9 / readRate) : 0;
+        this.readTolerance = readInterval * readBurst;
+        this.writeInterval = writeRate > 0 ? (long) (1e9 / writeRate) : 0;
+        this.writeTolerance = writeInterval * writeBurst;
+        this.maxClients = maxClients;
+        long now = System.nanoTime();
+        for(int i = 0; i < overflow.length; i++) {
+            overflow[i] = new Buckets(now);
+        }
+    }
+
+    /**
+     * Takes a token from the read or the write bucket of the client
+     * @param now the current time of {@link System#nanoTime()}
+     * @return 0 if the request is admitted, otherwise nanoseconds until the bucket will have a token
+     */
+    public long acquire(String client, boolean write, long now) {
+        long interval = write ? writeInterval : readInterval;
+        if(interval == 0) {
+            return 0;
+        }
+        long tolerance = write ? writeTolerance : readTolerance;
+        Buckets buckets = buckets(client, now);
+        AtomicLong bucket = write ? buckets.write : buckets.read;
+        while(true) {
+            long full = bucket.get();
+            long next = Math.max(full - now, 0) + interval;
+            if(next > tolerance) {
+                return next - tolerance;
+            }
+            if(bucket.compareAndSet(full, now + next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return number of clients that have buckets
+     */
+    public int getClients() {
+        return clients.size();
+    }
+
+    private Buckets buckets(String client, long now) {
+        Buckets buckets = clients.get(client);
+        if(buckets != null) {
+            return buckets;
+        }
+        if(clients.size() >= maxClients) {
+            long last = lastSweep.get();
+            if(now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+                clients.values().removeIf(b -> b.read.get() - now <= 0 && b.write.get() - now <= 0);
+            }
+            if(clients.size() >= maxClients) {
+                return overflow[(client.hashCode() & Integer.MAX_VALUE) % overflow.length];
+            }
+        }
+        return clients.computeIfAbsent(client, c -> new Buckets(now));
+    }
+
+    private static class Buckets {
+        Buckets(long now) {
+            this.read = new AtomicLong(now);
+            this.write = new AtomicLong(now);
+        }
+
+        /**
+         * Times when the buckets will be full
+         */
+        final AtomicLong read;
+        final AtomicLong write;
+    }
+
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int OVERFLOW_BUCKETS = 1024;
+
+    private final long readInterval;
+    private final long readTolerance;
+    private final long writeInterval;
+    private final long writeTolerance;
+    private final int maxClients;
+    private final ConcurrentHashMap<String, Buckets> clients = new ConcurrentHashMap<>();
+    private final Buckets[] overflow = new Buckets[OVERFLOW_BUCKETS];
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_INTERVAL_NANOS);
+}
@@ -0,0 +1,149 @@
+package org.services;
+
+import org.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Encoded JSON representations of recently requested accounts, so that a repeated GET is a single buffer write.
+ * Every entry is bound to the ETag of the account it was encoded from and is ignored once the ETag changes,
+ * changes of accounts also drop their entries at once to free the memory.
+ * The gzip variant of an entry is compressed on the first request that accepts it and kept along with the plain one,
+ * unless compression doesn't make it smaller.
+ * The least recently used entries are evicted when the encoded bytes exceed the budget.
+ */
+class ResponseCache {
+
+    /**
+     * @param maxBytes memory budget for the encoded representations, 0 disables the cache
+     */
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the entry of the login encoded from the account with the ETag, or null
+     */
+    Entry get(String login, String etag) {
+        if(maxBytes == 0) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(login);
+            if(entry != null && entry.etag.equals(etag)) {
+                Metrics.RESPONSE_CACHE_HITS.increment();
+                return entry;
+            }
+        }
+        Metrics.RESPONSE_CACHE_MISSES.increment();
+        return null;
+    }
+
+    /**
+     * Caches the representation of the account with the ETag, unless it alone exceeds the budget
+     * @param etag of the account, null if it is unknown, then the entry is not cached
+     * @return the new entry, which is returned even if it is not cached
+     */
+    Entry put(String login, String etag, byte[] json) {
+        Entry entry = new Entry(etag, json);
+        if(maxBytes == 0 || etag == null || json.length > maxBytes) {
+            return entry;
+        }
+        synchronized (entries) {
+            Entry old = entries.put(login, entry);
+            if(old != null) {
+                bytes -= old.size();
+            }
+            bytes += entry.size();
+            evict();
+        }
+        return entry;
+    }
+
+    void invalidate(String login) {
+        if(maxBytes == 0) {
+            return;
+        }
+        synchronized (entries) {
+            Entry old = entries.remove(login);
+            if(old != null) {
+                bytes -= old.size();
+            }
+        }
+    }
+
+    /**
+     * Compresses the entry if it has no gzip variant yet, and accounts for the variant in the budget if it is cached
+     * @return the gzip variant, or null if compression doesn't make the representation smaller
+     */
+    byte[] gzip(String login, Entry entry) {
+        if(entry.gzip == null) {
+            byte[] compressed = compress(entry.json);
+            synchronized (entries) {
+                // the variant is set under the lock, so that the size of a cached entry changes with the budget
+                if(entry.gzip == null) {
+                    entry.gzip = compressed.length < entry.json.length ? compressed : NOT_SMALLER;
+                    if(entries.get(login) == entry) {
+                        bytes += entry.gzip.length;
+                        evict();
+                    }
+                }
+            }
+        }
+        return entry.gzip == NOT_SMALLER ? null : entry.gzip;
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while(bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    private static byte[] compress(byte[] json) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(json.length);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(os) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return os.toByteArray();
+    }
+
+    static class Entry {
+        Entry(String etag, byte[] json) {
+            this.etag = etag;
+            this.json = json;
+        }
+
+        /**
+         * @return bytes held by the entry, the key and the object headers aside
+         */
+        int size() {
+            byte[] compressed = gzip;
+            return json.length + (compressed == null ? 0 : compressed.length);
+        }
+
+        final String etag;
+        final byte[] json;
+        volatile byte[] gzip;
+    }
+
+    private static final byte[] NOT_SMALLER = new byte[0];
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+}
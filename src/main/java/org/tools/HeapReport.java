@@ -0,0 +1,128 @@
+package org.tools;
+
+import org.Account;
+import org.AccountStorage;
+import org.IndexedAccountStorage;
+import org.PasswordHasher;
+import org.ResidentAccountStorage;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Measures the heap taken by synthetic accounts kept as Account objects in a HashMap by login, the way
+ * the cache holds them, and kept by a {@link ResidentAccountStorage}, and prints both per million accounts.
+ * The server keeps the search indexes of an {@link IndexedAccountStorage} over either of them,
+ * which has objects for every account, so their heap is measured as well and added to the resident one.
+ * Accounts have short logins and names and hashed passwords, like the real ones.
+ * Run it with a heap big enough for the map, e.g. -Xmx2g for a million accounts.
+ *
+ * Usage: HeapReport [number of accounts, 1000000 by default]
+ */
+public class HeapReport {
+
+    public static void main(String[] args) throws IOException {
+        new HeapReport(args.length > 0 ? Integer.parseInt(args[0]) : 1000000).print(System.out);
+    }
+
+    public HeapReport(int accounts) {
+        this.accounts = accounts;
+        this.passwordHash = new PasswordHasher(1000).hash("password");
+    }
+
+    /**
+     * Builds both representations one after another, then the indexes over the resident one,
+     * and prints the heap used by each
+     * @throws IOException never, the resident storage writes to nowhere
+     */
+    public void print(PrintStream out) throws IOException {
+        long before = usedHeap();
+        Map<String, Account> map = new HashMap<>();
+        for(int i = 0; i < accounts; i++) {
+            Account account = account(i);
+            map.put(account.getLogin(), account);
+        }
+        long mapBytes = usedHeap() - before;
+        int mapSize = map.size();
+        map = null;
+
+        before = usedHeap();
+        ResidentAccountStorage resident = new ResidentAccountStorage(new NullStorage());
+        List<Account> batch = new ArrayList<>(BATCH_SIZE);
+        for(int i = 0; i < accounts; i++) {
+            batch.add(account(i));
+            if(batch.size() == BATCH_SIZE || i == accounts - 1) {
+                resident.storeAll(batch);
+                batch.clear();
+            }
+        }
+        long residentBytes = usedHeap() - before;
+
+        before = usedHeap();
+        IndexedAccountStorage indexed = new IndexedAccountStorage(resident);
+        long indexBytes = usedHeap() - before;
+
+        double millions = accounts / 1e6;
+        out.printf("%d accounts, passwords hashed to %d characters%n", accounts, passwordHash.length());
+        out.printf("HashMap<String, Account>: %.1f MB per million accounts, %d bytes per account%n",
+                mapBytes / 1e6 / millions, mapBytes / Math.max(1, mapSize));
+        out.printf("ResidentAccountStorage:   %.1f MB per million accounts, %d bytes per account " +
+                        "(arrays %.1f MB per million)%n", residentBytes / 1e6 / millions,
+                residentBytes / Math.max(1, resident.size()), resident.getResidentBytes() / 1e6 / millions);
+        out.printf("IndexedAccountStorage:    %.1f MB per million accounts, %d bytes per account " +
+                "(over either form)%n", indexBytes / 1e6 / millions, indexBytes / Math.max(1, indexed.size()));
+        out.printf("Resident with indexes:    %.1f MB per million accounts, %d bytes per account%n",
+                (residentBytes + indexBytes) / 1e6 / millions, (residentBytes + indexBytes) / Math.max(1, indexed.size()));
+    }
+
+    private Account account(int i) {
+        String suffix = Integer.toString(i, 36);
+        // a distinct hash of the usual length
+        Account account = new Account("user" + i,
+                passwordHash.substring(0, passwordHash.length() - suffix.length()) + suffix);
+        account.setName("Name" + i);
+        account.setSex(i % 2 == 0 ? Account.Sex.Male : Account.Sex.Female);
+        account.setBirthday(LocalDate.ofEpochDay(i % 20000));
+        return account;
+    }
+
+    private static long usedHeap() {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Has no accounts and accepts all changes without keeping them
+     */
+    private static class NullStorage extends AccountStorage {
+        @Override
+        public void store(Account account) {
+        }
+
+        @Override
+        public void storeAll(List<Account> accounts) {
+        }
+
+        @Override
+        public void forEachAccount(AccountVisitor visitor) {
+        }
+
+        @Override
+        public void forEachAccount(AccountVisitor visitor, int threads) {
+        }
+    }
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final int accounts;
+    private final String passwordHash;
+}
@@ -0,0 +1,296 @@
+package org.tools;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.AccountCodec;
+import org.AccountJsonSerializer;
+import org.AccountStorageFactory;
+import org.AccountValidator;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Checks every account file of a file-per-login data directory: the file should contain a complete and valid
+ * account description (JSON ones are checked with the {@link AccountValidator#DEFAULT} rules the storage reads with),
+ * and the login in it should match the file name. Bad files are moved to the '.quarantine' subdirectory,
+ * where the storage doesn't see them, instead of failing the requests that hit them.
+ *
+ * Files are checked on a fork-join pool: the directory is listed in batches, which are split between the threads.
+ * Only a few batches are in flight at a time, so the memory used doesn't depend on the number of files.
+ * The server should be stopped while the directory is checked, or the check should run before the storage is opened.
+ *
+ * Usage: IntegrityChecker <data dir> [json|binary encoding] [--dry-run]
+ * With --dry-run, given before or after the encoding, bad files are only reported.
+ */
+public class IntegrityChecker {
+
+    public static void main(String[] args) throws IOException {
+        String encoding = null;
+        boolean dryRun = false;
+        boolean malformed = args.length < 1;
+        for(int i = 1; i < args.length; i++) {
+            if(args[i].equals("--dry-run")) {
+                dryRun = true;
+            } else if(encoding == null && !args[i].startsWith("--")) {
+                encoding = args[i];
+            } else {
+                malformed = true;
+            }
+        }
+        if(malformed) {
+            System.err.println("Usage: IntegrityChecker <data dir> [json|binary encoding] [--dry-run]");
+            System.exit(2);
+        }
+        AccountCodec codec = AccountStorageFactory.getCodec(encoding == null ? "json" : encoding);
+
+        IntegrityChecker checker = new IntegrityChecker(codec, !dryRun, Runtime.getRuntime().availableProcessors());
+        checker.check(Paths.get(args[0]));
+        checker.printSummary(System.out);
+        if(checker.getCorrupted() + checker.getMismatched() + checker.getUnreadable() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param codec encoding of the files
+     * @param quarantine whether bad files should be moved to the '.quarantine' subdirectory or only reported
+     * @param threads number of checking threads
+     */
+    public IntegrityChecker(AccountCodec codec, boolean quarantine, int threads) {
+        this.codec = codec;
+        this.quarantine = quarantine;
+        this.threads = threads;
+    }
+
+    /**
+     * Checks every account file of the directory. Problems of single files are counted and reported to stderr
+     * @throws IOException if the directory can't be read or a bad file can't be moved
+     */
+    public void check(Path directory) throws IOException {
+        long start = System.nanoTime();
+        Path quarantineDirectory = directory.resolve(QUARANTINE_DIRECTORY);
+        if(quarantine) {
+            Files.createDirectories(quarantineDirectory);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Semaphore batches = new Semaphore(threads * 4);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + codec.getExtension())) {
+            Path[] batch = new Path[BATCH_SIZE];
+            int size = 0;
+            for(Path file : files) {
+                batch[size++] = file;
+                if(size == BATCH_SIZE) {
+                    submit(pool, batches, new CheckTask(batch, 0, size, quarantineDirectory, failure, batches));
+                    batch = new Path[BATCH_SIZE];
+                    size = 0;
+                }
+            }
+            if(size > 0) {
+                submit(pool, batches, new CheckTask(batch, 0, size, quarantineDirectory, failure, batches));
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            nanos += System.nanoTime() - start;
+        }
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Prints the counts of checked and bad files and the throughput of the check
+     */
+    public void printSummary(PrintStream out) {
+        double seconds = nanos / 1e9;
+        double megabytes = bytes.sum() / (1024.0 * 1024.0);
+        out.printf("Checked %d files (%.1f MB) in %.1f s, %.0f files/s, %.1f MB/s%n",
+                getChecked(), megabytes, seconds, getChecked() / seconds, megabytes / seconds);
+        out.printf("%d valid, %d corrupted, %d with a wrong login, %d unreadable, %d quarantined%n",
+                getValid(), getCorrupted(), getMismatched(), getUnreadable(), getQuarantined());
+    }
+
+    /**
+     * @return a description of what is wrong with the file content, null if it is a valid account with the login
+     */
+    private String validate(String login, byte[] content) {
+        String found;
+        if(codec == AccountCodec.JSON) {
+            JsonNode root;
+            try {
+                root = MAPPER.readTree(content);
+            } catch (JsonProcessingException e) {
+                return "malformed JSON: " + e.getOriginalMessage();
+            } catch (IOException e) {
+                return "malformed JSON: " + e.getMessage();
+            }
+            if(root == null || !root.isObject()) {
+                return "not a JSON object";
+            }
+            try {
+                AccountJsonSerializer.validateJsonAsFullAccount(root, AccountValidator.DEFAULT);
+            } catch (AccountJsonSerializer.InvalidDescription e) {
+                return String.join("; ", e.getViolations());
+            }
+            found = root.get("login").asText();
+        } else {
+            try {
+                found = codec.read(new ByteArrayInputStream(content)).getLogin();
+            } catch (IOException|IllegalArgumentException|AccountJsonSerializer.InvalidDescription e) {
+                return "can't be decoded: " + e.getMessage();
+            }
+        }
+        return found.equals(login) ? null : WRONG_LOGIN + found;
+    }
+
+    private static void submit(ForkJoinPool pool, Semaphore batches, CheckTask task) throws IOException {
+        try {
+            batches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking files");
+        }
+        pool.execute(task);
+    }
+
+    private void checkFile(Path file, Path quarantineDirectory) throws IOException {
+        String name = file.getFileName().toString();
+        String login = name.substring(0, name.length() - codec.getExtension().length());
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            System.err.println("Can't read " + file + ": " + e);
+            unreadable.increment();
+            return;
+        }
+        checked.increment();
+        bytes.add(content.length);
+        String problem = validate(login, content);
+        if(problem == null) {
+            valid.increment();
+            return;
+        }
+        if(problem.startsWith(WRONG_LOGIN)) {
+            mismatched.increment();
+        } else {
+            corrupted.increment();
+        }
+        if(!quarantine) {
+            System.err.println(file + ": " + problem);
+            return;
+        }
+        Path target = quarantineDirectory.resolve(name);
+        for(int i = 1; Files.exists(target); i++) {
+            target = quarantineDirectory.resolve(name + "." + i);
+        }
+        Files.move(file, target);
+        quarantined.increment();
+        System.err.println(file + ": " + problem + ", moved to " + target);
+    }
+
+    public long getChecked() {
+        return checked.sum();
+    }
+
+    public long getValid() {
+        return valid.sum();
+    }
+
+    public long getCorrupted() {
+        return corrupted.sum();
+    }
+
+    public long getMismatched() {
+        return mismatched.sum();
+    }
+
+    public long getUnreadable() {
+        return unreadable.sum();
+    }
+
+    public long getQuarantined() {
+        return quarantined.sum();
+    }
+
+    /**
+     * Checks a range of a batch, splitting it between the threads of the pool
+     */
+    private class CheckTask extends RecursiveAction {
+        CheckTask(Path[] files, int start, int end, Path quarantineDirectory,
+                  AtomicReference<IOException> failure, Semaphore batches) {
+            this.files = files;
+            this.start = start;
+            this.end = end;
+            this.quarantineDirectory = quarantineDirectory;
+            this.failure = failure;
+            this.batches = batches;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if(end - start > SPLIT_SIZE) {
+                    int middle = (start + end) >>> 1;
+                    invokeAll(new CheckTask(files, start, middle, quarantineDirectory, failure, null),
+                            new CheckTask(files, middle, end, quarantineDirectory, failure, null));
+                    return;
+                }
+                for(int i = start; i < end && failure.get() == null; i++) {
+                    try {
+                        checkFile(files[i], quarantineDirectory);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            } finally {
+                // only the task of the whole batch holds a permit
+                if(batches != null) {
+                    batches.release();
+                }
+            }
+        }
+
+        private final Path[] files;
+        private final int start;
+        private final int end;
+        private final Path quarantineDirectory;
+        private final AtomicReference<IOException> failure;
+        private final Semaphore batches;
+    }
+
+    public static final String QUARANTINE_DIRECTORY = ".quarantine";
+    private static final int BATCH_SIZE = 4096;
+    private static final int SPLIT_SIZE = 64;
+    private static final String WRONG_LOGIN = "contains another login: ";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final AccountCodec codec;
+    private final boolean quarantine;
+    private final int threads;
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder valid = new LongAdder();
+    private final LongAdder corrupted = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final LongAdder unreadable = new LongAdder();
+    private final LongAdder quarantined = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private long nanos = 0;
+}
@@ -0,0 +1,73 @@
+package org.tools;
+
+import org.AccountSnapshot;
+import org.AccountStorage;
+import org.AccountStorageFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+
+/**
+ * Restores a snapshot of accounts, see {@link AccountSnapshot}, into new data directories.
+ * The storage is configured with the system properties, as the server's, see {@link AccountStorageFactory},
+ * except that the accounts are neither cached nor recorded as changes while they are restored.
+ *
+ * Usage: SnapshotRestorer <snapshot file> <data dir, or comma-separated dirs of shards> [threads]
+ * The directories should not have accounts yet; 2 * processors threads store accounts by default.
+ */
+public class SnapshotRestorer {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: SnapshotRestorer <snapshot file> <data dir> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        Properties settings = new Properties();
+        settings.putAll(System.getProperties());
+        settings.setProperty("usermanager.dataPath", args[1]);
+
+        long start = System.nanoTime();
+        AccountSnapshot snapshot = restore(Paths.get(args[0]), settings, threads);
+        System.out.printf("Restored %d accounts and %d changes as of %s in %.1f s%n", snapshot.getAccounts(),
+                snapshot.getChanges(), Instant.ofEpochMilli(snapshot.getTime()), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Creates the storage described by the settings and stores the accounts of the snapshot in it
+     * @param threads how many threads store accounts
+     * @return the counts and times of the snapshot
+     * @throws IOException if a data directory has accounts already, the snapshot is malformed or incomplete
+     *                     or the accounts can't be stored
+     */
+    public static AccountSnapshot restore(Path file, Properties settings, int threads) throws IOException {
+        for(String directory : settings.getProperty("usermanager.dataPath", "./data/").split(",")) {
+            Path dataPath = Paths.get(directory.trim());
+            if(Files.isDirectory(dataPath)) {
+                try (Stream<Path> files = Files.list(dataPath)) {
+                    if(files.anyMatch(f -> !f.getFileName().toString().startsWith("."))) {
+                        throw new IOException(dataPath + " is not empty, restore into a new directory");
+                    }
+                }
+            }
+        }
+        Properties restore = new Properties();
+        restore.putAll(settings);
+        restore.setProperty("usermanager.cache.maxEntries", "0");
+        restore.setProperty("usermanager.resident", "false");
+        restore.setProperty("usermanager.changes", "false");
+        try (AccountStorage storage = AccountStorageFactory.create(restore);
+             InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            return AccountSnapshot.restore(is, storage, threads);
+        }
+    }
+}
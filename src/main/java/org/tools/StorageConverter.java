@@ -0,0 +1,90 @@
+package org.tools;
+
+import org.Account;
+import org.AccountCodec;
+import org.AccountJsonSerializer;
+import org.AccountStorageFactory;
+
+import java.io.*;
+import java.nio.file.*;
+
+
+/**
+ * Offline converter of a file-per-login data directory from one encoding to another,
+ * e.g. from the JSON files written by earlier versions to the compact binary format.
+ * The server should be stopped while the directory is converted.
+ *
+ * Usage: StorageConverter <source dir> <target dir> [json|binary source encoding] [json|binary target encoding] [--delete]
+ * By default JSON files are converted to binary ones. With --delete the source files are removed after conversion.
+ * Files that can't be read are reported and left as they are.
+ */
+public class StorageConverter {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: StorageConverter <source dir> <target dir> " +
+                    "[json|binary source encoding] [json|binary target encoding] [--delete]");
+            System.exit(2);
+        }
+        AccountCodec from = AccountStorageFactory.getCodec(args.length > 2 ? args[2] : "json");
+        AccountCodec to = AccountStorageFactory.getCodec(args.length > 3 ? args[3] : "binary");
+        boolean delete = args.length > 4 && args[4].equals("--delete");
+
+        long start = System.nanoTime();
+        StorageConverter converter = new StorageConverter(from, to, delete);
+        converter.convert(Paths.get(args[0]), Paths.get(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Converted %d accounts in %.1f s, %d files failed%n",
+                converter.getConverted(), seconds, converter.getFailed());
+    }
+
+    public StorageConverter(AccountCodec from, AccountCodec to, boolean deleteSource) {
+        this.from = from;
+        this.to = to;
+        this.deleteSource = deleteSource;
+    }
+
+    /**
+     * Converts every account file in the source directory and writes the result to the target directory.
+     * The directory is read lazily, so its size is not limited by the memory.
+     * @throws IOException if a directory can't be read or a converted file can't be written
+     */
+    public void convert(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(source, "*" + from.getExtension())) {
+            for(Path file : files) {
+                Account account;
+                try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+                    account = from.read(is);
+                } catch (IOException|IllegalArgumentException|AccountJsonSerializer.InvalidDescription e) {
+                    System.err.println("Skipping " + file + ": " + e.getMessage());
+                    failed++;
+                    continue;
+                }
+                Path converted = target.resolve(account.getLogin() + to.getExtension());
+                try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(converted))) {
+                    to.write(account, os);
+                }
+                if(deleteSource && !converted.equals(file)) {
+                    Files.delete(file);
+                }
+                this.converted++;
+            }
+        }
+    }
+
+    public long getConverted() {
+        return converted;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    private final AccountCodec from;
+    private final AccountCodec to;
+    private final boolean deleteSource;
+    private long converted = 0;
+    private long failed = 0;
+}
@@ -0,0 +1,64 @@
+import org.Account;
+import org.AccountBinarySerializer;
+import org.AccountJsonSerializer;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+public class AccountBinarySerializerTest {
+
+    /**
+     * Tests that an account is read back from its binary record unchanged
+     * @throws IOException
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        Account account = AccountJsonSerializerTest.getDefaultAccount();
+        account.setName("\u0410\u043d\u043e\u043d\u0438\u043c");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountBinarySerializer.toBinary(account, os);
+
+        Account read = AccountBinarySerializer.createFromBinary(new ByteArrayInputStream(os.toByteArray()));
+        assert read.equals(account);
+    }
+
+    /**
+     * Shows that InvalidDescription is thrown when the record is cut off
+     * @throws IOException
+     */
+    @Test(expectedExceptions = AccountJsonSerializer.InvalidDescription.class)
+    public void truncatedRead() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountBinarySerializer.toBinary(AccountJsonSerializerTest.getDefaultAccount(), os);
+        byte[] record = os.toByteArray();
+
+        AccountBinarySerializer.createFromBinary(new ByteArrayInputStream(Arrays.copyOf(record, record.length - 3)));
+    }
+
+    /**
+     * Shows that InvalidDescription is thrown when the record has an unknown version
+     * @throws IOException
+     */
+    @Test(expectedExceptions = AccountJsonSerializer.InvalidDescription.class)
+    public void unknownVersionRead() throws IOException {
+        AccountBinarySerializer.createFromBinary(new ByteArrayInputStream(new byte[] {42, 0, 0}));
+    }
+
+    /**
+     * Shows that InvalidDescription is thrown when the birthday is out of the range of dates
+     * @throws IOException
+     */
+    @Test(expectedExceptions = AccountJsonSerializer.InvalidDescription.class)
+    public void invalidBirthdayRead() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountBinarySerializer.toBinary(AccountJsonSerializerTest.getDefaultAccount(), os);
+        byte[] record = os.toByteArray();
+        Arrays.fill(record, record.length - 5, record.length - 1, (byte) 0x7f);
+
+        AccountBinarySerializer.createFromBinary(new ByteArrayInputStream(record));
+    }
+}
@@ -4,10 +4,12 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.Account;
 import org.AccountJsonSerializer;
+import org.AccountValidator;
 import org.eclipse.jetty.io.WriterOutputStream;
 import org.testng.annotations.Test;
 import java.io.*;
 import java.time.LocalDate;
+import java.util.Properties;
 
 
 
@@ -65,6 +67,22 @@ public class AccountJsonSerializerTest {
         assert a.getLogin().equals("user1234");
     }
 
+    /**
+     * Shows that an invalid description doesn't change the account, even if its valid fields come first
+     * @throws IOException
+     */
+    @Test
+    public void wrongUpdateKeepsAccount() throws IOException {
+        InputStream is = new ByteArrayInputStream("{\"name\":\"Changed\",\"extra\":[1,{}],\"sex\":\"Unknown\"}".getBytes());
+        Account a = getDefaultAccount();
+        try {
+            AccountJsonSerializer.updateFromJSON(a, is);
+            assert false;
+        } catch (AccountJsonSerializer.InvalidDescription e) {
+            assert a.equals(getDefaultAccount());
+        }
+    }
+
     /**
      * Shows that Invalid Description is thrown when JSON object is incomplete or empty
      * @throws IOException
@@ -134,4 +152,53 @@ public class AccountJsonSerializerTest {
         JsonNode root = mapper.readTree(writer.toString());
         AccountJsonSerializer.validateJsonAsFullAccount(root);
     }
+
+    /**
+     * Shows that all violations of a description are reported at once, including missing fields
+     * @throws IOException
+     */
+    @Test
+    public void allViolationsReported() throws IOException {
+        InputStream is = new ByteArrayInputStream(
+                "{\"login\":\"lo g in\",\"birthday\":\"2000-02-30\",\"sex\":\"Undefined\"}".getBytes());
+        try {
+            AccountJsonSerializer.createFromJSON(is);
+            assert false;
+        } catch (AccountJsonSerializer.InvalidDescription e) {
+            assert e.getViolations().size() == 4;
+            assert e.getViolations().get(3).equals("Some fields are missing: password, name");
+        }
+    }
+
+    /**
+     * Tests rules configured with properties
+     * @throws IOException
+     */
+    @Test
+    public void configuredRules() throws IOException {
+        Properties rules = new Properties();
+        rules.setProperty("usermanager.validation.login.charset", "a-z");
+        rules.setProperty("usermanager.validation.login.maxLength", "8");
+        rules.setProperty("usermanager.validation.birthday.min", "1900-01-01");
+        rules.setProperty("usermanager.validation.birthday.max", "today");
+        AccountValidator validator = new AccountValidator(rules);
+
+        assert validator.isValidLogin("user");
+        assert !validator.isValidLogin("user1234");
+        assert !validator.isValidLogin("username_");
+        assert validator.parseBirthday("2000-01-01").equals(LocalDate.of(2000, 1, 1));
+        assert validator.parseBirthday("1899-12-31") == null;
+        assert validator.parseBirthday(LocalDate.now().plusDays(2).toString()) == null;
+        assert validator.parseSex("Female") == Account.Sex.Female;
+        assert !AccountValidator.DEFAULT.isValidLogin(new String(new char[AccountValidator.MAX_LOGIN_LENGTH + 1])
+                .replace('\0', 'a'));
+
+        ObjectNode account = getDefaultAccountNode();
+        try {
+            AccountJsonSerializer.createFromJSON(new ByteArrayInputStream(account.toString().getBytes()), validator);
+            assert false;
+        } catch (AccountJsonSerializer.InvalidDescription e) {
+            assert e.getViolations().size() == 1 && e.getViolations().get(0).startsWith("Invalid login");
+        }
+    }
 }
@@ -0,0 +1,487 @@
+import org.Account;
+import org.AccountStorage;
+import org.ChangeLog;
+import org.ChangeLogAccountStorage;
+import org.PasswordHasher;
+import org.PasswordService;
+import org.metrics.Metrics;
+import org.services.AccountResource;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+
+public class AccountResourceTest {
+
+    static AccountResource getResource() throws IOException {
+        return new AccountResource(getStorage(), getPasswords());
+    }
+
+    /**
+     * Cheap hashing, so that tests with many updates run fast
+     */
+    static PasswordService getPasswords() {
+        return new PasswordService(HASHER, 2, 100, 60000, 100);
+    }
+
+    static AccountStorage getStorage() throws IOException {
+        return new AccountStorage(Files.createTempDirectory("accounts").toString() + "/");
+    }
+
+    static void put(AccountResource resource, String login, String json) {
+        resource.updateAccount(login, null, new ByteArrayInputStream(json.getBytes()));
+    }
+
+    static String getJson(String login) {
+        return "{\"login\":\"" + login + "\",\"password\":\"qwerty\",\"name\":\"Anonymous\"," +
+                "\"sex\":\"Male\",\"birthday\":\"2000-01-01\"}";
+    }
+
+    /**
+     * Tests that bulk import reports every line and exported accounts match the imported ones
+     * @throws IOException
+     */
+    @Test
+    public void bulkImportAndExport() throws IOException {
+        AccountResource resource = getResource();
+        String body = getJson("first") + "\n\n" + "{\"login\":\"bad login\"}\n" + getJson("second") + "\n";
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        resource.importAccounts(new ByteArrayInputStream(body.getBytes())).write(results);
+
+        String[] lines = results.toString().split("\n");
+        assert lines.length == 3;
+        assert lines[0].equals("{\"line\":1,\"status\":201,\"login\":\"first\"}");
+        assert lines[1].startsWith("{\"line\":3,\"status\":415");
+        assert lines[2].equals("{\"line\":4,\"status\":201,\"login\":\"second\"}");
+
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        resource.exportAccounts().write(export);
+        String exported = export.toString();
+        assert exported.split("\n").length == 2;
+        assert exported.contains("\"login\":\"first\"") && exported.contains("\"login\":\"second\"");
+    }
+
+    /**
+     * A batch the storage fails to store with an unchecked exception is reported line by line, not cut short
+     * @throws IOException
+     */
+    @Test
+    public void bulkImportFailure() throws IOException {
+        AccountStorage failing = new AccountStorage(Files.createTempDirectory("accounts").toString() + "/") {
+            @Override
+            public void storeAll(List<Account> accounts) {
+                throw new IllegalStateException("No room for accounts");
+            }
+        };
+        AccountResource resource = new AccountResource(failing, getPasswords());
+        String body = getJson("first") + "\n{\"login\":\"bad login\"}\n";
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        resource.importAccounts(new ByteArrayInputStream(body.getBytes())).write(results);
+
+        String[] lines = results.toString().split("\n");
+        assert lines.length == 2;
+        assert lines[0].equals("{\"line\":1,\"status\":500,\"error\":\"No room for accounts\"}");
+        assert lines[1].startsWith("{\"line\":2,\"status\":415");
+    }
+
+    /**
+     * Export and snapshot, which carry password hashes, are served only with the configured admin token
+     * @throws IOException
+     */
+    @Test
+    public void hashesForAdminsOnly() throws IOException {
+        assert adminStatus(getResource(), "Bearer secret") == 403;
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.admin.token", "secret");
+        AccountResource resource = new AccountResource(getStorage(), getPasswords(), settings);
+        assert adminStatus(resource, null) == 401 && adminStatus(resource, "Bearer wrong") == 401;
+        assert adminStatus(resource, "Bearer secret") == 200;
+        assert resource.getSnapshot("Bearer secret").getStatus() == 200;
+    }
+
+    /**
+     * A hash in a bulk import is hashed again like any password, and is kept as it is only for an administrator
+     * @throws IOException
+     */
+    @Test
+    public void bulkHashesForAdminsOnly() throws IOException {
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.admin.token", "secret");
+        AccountStorage storage = getStorage();
+        AccountResource resource = new AccountResource(storage, getPasswords(), settings);
+        String planted = new PasswordHasher(1000).hash("qwerty");
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        resource.importAccounts(null, new ByteArrayInputStream(getJson("user").replace("qwerty", planted)
+                .getBytes())).write(results);
+        assert !storage.get("user").getPassword().equals(planted);
+
+        resource.importAccounts("Bearer secret", new ByteArrayInputStream(getJson("admin").replace("qwerty", planted)
+                .getBytes())).write(results);
+        assert storage.get("admin").getPassword().equals(planted);
+        try {
+            resource.importAccounts("Bearer wrong", new ByteArrayInputStream(getJson("other").getBytes()));
+            assert false;
+        } catch (WebApplicationException e) {
+            assert e.getResponse().getStatus() == 401;
+        }
+    }
+
+    /**
+     * Logins that are paths of other endpoints can't be created, imported or renamed to
+     * @throws IOException
+     */
+    @Test
+    public void reservedLogins() throws IOException {
+        AccountResource resource = getResource();
+        assert resource.createAccount(new ByteArrayInputStream(getJson("_bulk").getBytes())).getStatus() == 415;
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        resource.importAccounts(new ByteArrayInputStream(getJson("_export").getBytes())).write(results);
+        assert results.toString().startsWith("{\"line\":1,\"status\":415");
+
+        resource.createAccount(new ByteArrayInputStream(getJson("user").getBytes()));
+        try {
+            put(resource, "user", "{\"login\":\"_changes\"}");
+            assert false;
+        } catch (WebApplicationException e) {
+            assert e.getResponse().getStatus() == 415;
+        }
+        assert resource.getAccount("user", null).getStatus() == 200;
+    }
+
+    private static int adminStatus(AccountResource resource, String authorization) {
+        try {
+            resource.exportAccounts(authorization);
+            return 200;
+        } catch (WebApplicationException e) {
+            return e.getResponse().getStatus();
+        }
+    }
+
+    /**
+     * Concurrent updates of different fields of the same account must not overwrite each other,
+     * and an account renamed back and forth must end up under exactly one login
+     * @throws Exception
+     */
+    @Test
+    public void concurrentUpdates() throws Exception {
+        AccountStorage storage = getStorage();
+        AccountResource resource = new AccountResource(storage, getPasswords());
+        resource.createAccount(new ByteArrayInputStream(getJson("shared").getBytes()));
+        resource.createAccount(new ByteArrayInputStream(getJson("ping").getBytes()));
+
+        int updates = 500;
+        String[] fields = {"name", "password"};
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> tasks = new ArrayList<>();
+        for(String field : fields) {
+            tasks.add(pool.submit(() -> {
+                for(int i = 1; i <= updates; i++) {
+                    put(resource, "shared", "{\"" + field + "\":\"" + field + i + "\"}");
+                }
+                return null;
+            }));
+        }
+        tasks.add(pool.submit(() -> {
+            for(int i = 0; i < updates; i++) {
+                put(resource, i % 2 == 0 ? "ping" : "pong", "{\"login\":\"" + (i % 2 == 0 ? "pong" : "ping") + "\"}");
+            }
+            return null;
+        }));
+        tasks.add(pool.submit(() -> {
+            for(int i = 0; i < updates; i++) {
+                exists(resource, "ping");
+                exists(resource, "shared");
+            }
+            return null;
+        }));
+        for(Future<?> task : tasks) {
+            task.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        Account shared = storage.get("shared");
+        assert shared.getName().equals("name" + updates);
+        assert HASHER.verify("password" + updates, shared.getPassword());
+        assert exists(resource, "ping") && !exists(resource, "pong");
+    }
+
+    private static boolean exists(AccountResource resource, String login) {
+        try {
+            resource.getAccount(login, null);
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tests that search pages follow each other through cursors and malformed parameters are rejected
+     * @throws IOException
+     */
+    @Test
+    public void findAccounts() throws IOException {
+        AccountResource resource = getResource();
+        for(int i = 0; i < 5; i++) {
+            resource.createAccount(new ByteArrayInputStream(getJson("user" + i).getBytes()));
+        }
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        resource.findAccounts("Anon", null, "2001-01-01", "Male", null, 3).write(first);
+        String page = first.toString();
+        assert page.startsWith("{\"accounts\":[{\"login\":\"user0\"");
+        assert page.contains("\"next\":\"");
+
+        String cursor = page.substring(page.indexOf("\"next\":\"") + 8, page.length() - 2);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        resource.findAccounts("Anon", null, "2001-01-01", "Male", cursor, 3).write(second);
+        assert second.toString().contains("\"login\":\"user3\"") && second.toString().contains("\"login\":\"user4\"");
+        assert !second.toString().contains("next");
+
+        try {
+            resource.findAccounts(null, "yesterday", null, null, null, 10);
+            assert false;
+        } catch (WebApplicationException e) {
+            assert e.getResponse().getStatus() == 400;
+        }
+    }
+
+    /**
+     * Passwords are hashed, never returned, and checked by the verify endpoint
+     * @throws IOException
+     */
+    @Test
+    public void verifyPassword() throws IOException {
+        AccountStorage storage = getStorage();
+        AccountResource resource = new AccountResource(storage, getPasswords());
+        resource.createAccount(new ByteArrayInputStream(getJson("secret").getBytes()));
+        assert PasswordHasher.isHashed(storage.get("secret").getPassword());
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        read(resource, "secret", json);
+        assert !json.toString().contains("password");
+
+        assert verify(resource, "secret", "qwerty") == 204;
+        assert verify(resource, "secret", "qwerty") == 204;
+        assert verify(resource, "secret", "wrong") == 401;
+        assert verify(resource, "nobody", "qwerty") == 401;
+        put(resource, "secret", "{\"password\":\"changed\"}");
+        assert verify(resource, "secret", "qwerty") == 401;
+        assert verify(resource, "secret", "changed") == 204;
+    }
+
+    private static void read(AccountResource resource, String login, OutputStream os) throws IOException {
+        ((StreamingOutput) resource.getAccount(login, null).getEntity()).write(os);
+    }
+
+    /**
+     * Tests that a known ETag answers GET with 304 and a stale one fails PUT with 412
+     * @throws IOException
+     */
+    @Test
+    public void conditionalRequests() throws IOException {
+        AccountResource resource = getResource();
+        Response created = resource.createAccount(new ByteArrayInputStream(getJson("tagged").getBytes()));
+        String etag = created.getHeaderString(HttpHeaders.ETAG);
+        Response response = resource.getAccount("tagged", null);
+        assert response.getStatus() == 200 && etag.equals(response.getHeaderString(HttpHeaders.ETAG));
+        assert resource.getAccount("tagged", "\"other\", W/" + etag).getStatus() == 304;
+        assert resource.getAccount("tagged", "\"other\"").getStatus() == 200;
+
+        String changed = resource.updateAccount("tagged", etag,
+                new ByteArrayInputStream("{\"name\":\"Changed\"}".getBytes())).getHeaderString(HttpHeaders.ETAG);
+        assert !changed.equals(etag);
+        try {
+            resource.updateAccount("tagged", etag, new ByteArrayInputStream("{\"name\":\"Lost\"}".getBytes()));
+            assert false;
+        } catch (WebApplicationException e) {
+            assert e.getResponse().getStatus() == 412;
+        }
+        assert resource.getAccount("tagged", changed).getStatus() == 304;
+    }
+
+    /**
+     * Repeated GETs are served from the cached JSON until the account changes, compressed if the client accepts gzip
+     * @throws IOException
+     */
+    @Test
+    public void responseCache() throws IOException {
+        AccountResource resource = getResource();
+        StringBuilder name = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            name.append("Long Name ");
+        }
+        resource.createAccount(new ByteArrayInputStream(getJson("cached").getBytes()));
+        put(resource, "cached", "{\"name\":\"" + name + "\"}");
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        read(resource, "cached", plain);
+
+        long hits = Metrics.RESPONSE_CACHE_HITS.sum();
+        Response compressed = resource.getAccount("cached", null, "deflate, gzip;q=0.5");
+        assert "gzip".equals(compressed.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        ((StreamingOutput) compressed.getEntity()).write(gzip);
+        assert gzip.size() < plain.size();
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+            int b;
+            while((b = is.read()) != -1) {
+                unzipped.write(b);
+            }
+        }
+        assert unzipped.toString().equals(plain.toString());
+        assert resource.getAccount("cached", null, "gzip;q=0").getHeaderString(HttpHeaders.CONTENT_ENCODING) == null;
+        assert Metrics.RESPONSE_CACHE_HITS.sum() - hits == 2;
+
+        put(resource, "cached", "{\"name\":\"Short\"}");
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        read(resource, "cached", changed);
+        assert changed.toString().contains("\"Short\"");
+    }
+
+    /**
+     * Suspended requests are resumed with the response of the handler or with its exception
+     * @throws Exception
+     */
+    @Test
+    public void asyncRequests() throws Exception {
+        AccountResource resource = getResource();
+        ResumedResponse created = new ResumedResponse();
+        resource.createAccount(new ByteArrayInputStream(getJson("async").getBytes()), created);
+        assert ((Response) created.result.get(10, TimeUnit.SECONDS)).getStatus() == 201;
+
+        ResumedResponse found = new ResumedResponse();
+        resource.getAccount("async", null, null, found);
+        assert ((Response) found.result.get(10, TimeUnit.SECONDS)).getStatus() == 200;
+
+        ResumedResponse missing = new ResumedResponse();
+        resource.deleteAccount("missing", missing);
+        assert missing.result.get(10, TimeUnit.SECONDS) instanceof NotFoundException;
+    }
+
+    /**
+     * Tests that every change is reported in order and that a waiting request is resumed by the next change
+     * @throws Exception
+     */
+    @Test
+    public void changes() throws Exception {
+        String directory = Files.createTempDirectory("changes").toString() + "/";
+        AccountResource resource = new AccountResource(new ChangeLogAccountStorage(new AccountStorage(directory),
+                new ChangeLog(Paths.get(directory, ChangeLog.FILE), true)), getPasswords());
+        resource.createAccount(new ByteArrayInputStream(getJson("changed").getBytes()));
+        put(resource, "changed", "{\"name\":\"Changed\"}");
+        put(resource, "changed", "{\"login\":\"renamed\"}");
+        resource.deleteAccount("renamed");
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        resource.getChanges(0, 100).write(all);
+        String json = all.toString();
+        assert json.indexOf("\"created\"") < json.indexOf("\"updated\"");
+        assert json.indexOf("\"updated\"") < json.indexOf("\"renamed\"");
+        assert json.indexOf("\"renamed\"") < json.indexOf("\"deleted\"");
+        assert json.contains("\"oldLogin\":\"changed\"") && json.contains("\"name\":\"Changed\"");
+        assert !json.contains("qwerty") && json.endsWith("\"last\":4}");
+
+        ResumedResponse waiting = new ResumedResponse();
+        resource.getChanges(4, 100, 10, waiting);
+        assert !waiting.isDone();
+        resource.createAccount(new ByteArrayInputStream(getJson("next").getBytes()));
+        ByteArrayOutputStream next = new ByteArrayOutputStream();
+        ((StreamingOutput) waiting.result.get(10, TimeUnit.SECONDS)).write(next);
+        assert next.toString().contains("\"seq\":5,") && next.toString().endsWith("\"last\":5}");
+    }
+
+    private static class ResumedResponse implements AsyncResponse {
+        @Override
+        public boolean resume(Object response) {
+            return result.complete(response);
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            return result.complete(response);
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return !result.isDone();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return result.isDone();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            return Collections.emptyMap();
+        }
+
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+    }
+
+    private static int verify(AccountResource resource, String login, String password) {
+        String body = "{\"password\":\"" + password + "\"}";
+        return resource.verifyPassword(login, new ByteArrayInputStream(body.getBytes())).getStatus();
+    }
+
+    private static final PasswordHasher HASHER = new PasswordHasher(100);
+}
@@ -0,0 +1,158 @@
+import org.Account;
+import org.AccountSnapshot;
+import org.AccountStorage;
+import org.services.AccountResource;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.NotFoundException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class AccountSnapshotTest {
+
+    /**
+     * A restored snapshot has the same accounts with the same password hashes
+     * @throws IOException
+     */
+    @Test
+    public void roundTrip() throws IOException {
+        AccountStorage storage = AccountResourceTest.getStorage();
+        AccountResource resource = new AccountResource(storage, AccountResourceTest.getPasswords());
+        int count = 500;
+        for(int i = 0; i < count; i++) {
+            resource.createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("user" + i).getBytes()));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountSnapshot written = resource.writeSnapshot(bytes);
+        assert written.getAccounts() == count && written.getChanges() == 0;
+
+        AccountStorage restored = AccountResourceTest.getStorage();
+        AccountSnapshot read = AccountSnapshot.restore(new ByteArrayInputStream(bytes.toByteArray()), restored, 4);
+        assert read.getAccounts() == count && read.getTime() == written.getTime();
+        for(int i = 0; i < count; i++) {
+            assert restored.get("user" + i).equals(storage.get("user" + i));
+        }
+    }
+
+    /**
+     * Accounts renamed back and forth while a slow snapshot is taken are restored under exactly one of their logins,
+     * as they were at a single moment
+     * @throws Exception
+     */
+    @Test
+    public void consistentWhileWriting() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.snapshot.bytesPerSecond", "20000");
+        AccountResource resource = new AccountResource(AccountResourceTest.getStorage(),
+                AccountResourceTest.getPasswords(), settings);
+        int pairs = 200;
+        for(int i = 0; i < pairs; i++) {
+            resource.createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("a" + i).getBytes()));
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch started = new CountDownLatch(2);
+        List<Future<?>> renames = new ArrayList<>();
+        for(int thread = 0; thread < 2; thread++) {
+            int first = thread;
+            renames.add(pool.submit(() -> {
+                while(!done.get()) {
+                    for(int i = first; i < pairs && !done.get(); i += 2) {
+                        rename(resource, "a" + i, "b" + i);
+                        started.countDown();
+                    }
+                }
+                return null;
+            }));
+        }
+        assert started.await(60, TimeUnit.SECONDS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AccountSnapshot written;
+        try {
+            written = resource.writeSnapshot(bytes);
+        } finally {
+            done.set(true);
+        }
+        for(Future<?> rename : renames) {
+            rename.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        assert written.getChanges() > 0;
+
+        AccountStorage restored = AccountResourceTest.getStorage();
+        AccountSnapshot.restore(new ByteArrayInputStream(bytes.toByteArray()), restored, 4);
+        for(int i = 0; i < pairs; i++) {
+            assert exists(restored, "a" + i) != exists(restored, "b" + i);
+        }
+    }
+
+    /**
+     * A snapshot cut short is not restored as if it were complete
+     * @throws IOException
+     */
+    @Test
+    public void incompleteRejected() throws IOException {
+        AccountResource resource = AccountResourceTest.getResource();
+        resource.createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("user").getBytes()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        resource.writeSnapshot(bytes);
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 8);
+        try {
+            AccountSnapshot.restore(new ByteArrayInputStream(truncated), AccountResourceTest.getStorage(), 2);
+            assert false;
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A snapshot is not restored over existing accounts
+     * @throws IOException
+     */
+    @Test
+    public void nonEmptyRejected() throws IOException {
+        AccountResource resource = AccountResourceTest.getResource();
+        resource.createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("user").getBytes()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        resource.writeSnapshot(bytes);
+        AccountStorage existing = AccountResourceTest.getStorage();
+        new AccountResource(existing, AccountResourceTest.getPasswords())
+                .createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("other").getBytes()));
+        try {
+            AccountSnapshot.restore(new ByteArrayInputStream(bytes.toByteArray()), existing, 2);
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains("other");
+        }
+    }
+
+    private static void rename(AccountResource resource, String first, String second) {
+        try {
+            AccountResourceTest.put(resource, first, "{\"login\":\"" + second + "\"}");
+        } catch (NotFoundException e) {
+            AccountResourceTest.put(resource, second, "{\"login\":\"" + first + "\"}");
+        }
+    }
+
+    private static boolean exists(AccountStorage storage, String login) throws IOException {
+        try {
+            Account account = storage.get(login);
+            return account.getLogin().equals(login);
+        } catch (AccountStorage.UserNotFoundException e) {
+            return false;
+        }
+    }
+}
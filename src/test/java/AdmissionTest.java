@@ -0,0 +1,212 @@
+import load.HttpTarget;
+import org.Account;
+import org.AccountStorage;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.services.AccountResource;
+import org.services.AdmissionFilter;
+import org.services.ConcurrencyLimit;
+import org.services.RateLimiter;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+public class AdmissionTest {
+
+    /**
+     * A client gets its burst at once and then tokens at its rate, reads and writes separately,
+     * other clients have budgets of their own
+     */
+    @Test
+    public void tokenBuckets() {
+        RateLimiter limiter = new RateLimiter(10, 2, 1, 1, 1000);
+        long now = System.nanoTime();
+        assert limiter.acquire("a", false, now) == 0 && limiter.acquire("a", false, now) == 0;
+        long wait = limiter.acquire("a", false, now);
+        assert wait == TimeUnit.MILLISECONDS.toNanos(100);
+        assert limiter.acquire("a", false, now + wait) == 0;
+
+        assert limiter.acquire("a", true, now) == 0;
+        assert limiter.acquire("a", true, now + 1) == TimeUnit.SECONDS.toNanos(1) - 1;
+        assert limiter.acquire("b", true, now) == 0 && limiter.acquire("b", false, now) == 0;
+    }
+
+    /**
+     * Clients beyond the limit share overflow buckets, so many new clients don't starve each other, until
+     * the buckets of idle clients have refilled and are dropped
+     */
+    @Test
+    public void idleClientsDropped() {
+        RateLimiter limiter = new RateLimiter(1, 1, 1, 1, 2);
+        long now = System.nanoTime();
+        assert limiter.acquire("a", false, now) == 0 && limiter.acquire("b", false, now) == 0;
+        int admitted = 0;
+        for(int i = 0; i < 100; i++) {
+            if(limiter.acquire("new" + i, false, now) == 0) {
+                admitted++;
+            }
+        }
+        assert admitted > 80 && limiter.acquire("new0", false, now) > 0;
+        assert limiter.getClients() == 2;
+
+        long later = now + TimeUnit.SECONDS.toNanos(5);
+        assert limiter.acquire("new0", false, later) == 0;
+        assert limiter.getClients() == 1;
+    }
+
+    /**
+     * The limit grows while the latency stays low under load and falls close to the minimum once requests get
+     * much slower
+     */
+    @Test
+    public void concurrencyFollowsLatency() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(16, 2, 64, 2);
+        int admitted = 0;
+        while(limit.tryAcquire()) {
+            admitted++;
+        }
+        assert admitted == 16 && limit.getInFlight() == 16;
+        for(int i = 0; i < admitted; i++) {
+            limit.release(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        for(int round = 0; round < 200; round++) {
+            saturate(limit, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assert limit.getLimit() == 64;
+
+        for(int round = 0; round < 100; round++) {
+            saturate(limit, TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        assert limit.getLimit() < 8 && limit.getInFlight() == 0;
+    }
+
+    /**
+     * The embedded server answers writes of a client beyond its budget with 429 and Retry-After,
+     * counts them in the metrics, and still serves reads
+     * @throws Exception if the server can't be started
+     */
+    @Test
+    public void tooManyRequests() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.limits.writeRate", "0.1");
+        settings.setProperty("usermanager.limits.writeBurst", "2");
+        settings.setProperty("usermanager.limits.concurrency", "true");
+        try (HttpTarget target = HttpTarget.startServer(settings)) {
+            String root = target.getRoot();
+            for(int i = 0; i < 2; i++) {
+                assert request(root + "/accounts/missing" + i, "DELETE").getResponseCode() != 429;
+            }
+            HttpURLConnection rejected = request(root + "/accounts/missing", "DELETE");
+            assert rejected.getResponseCode() == 429;
+            int retryAfter = Integer.parseInt(rejected.getHeaderField("Retry-After"));
+            assert retryAfter > 0 && retryAfter <= 10;
+            assert request(root + "/accounts/missing", "GET").getResponseCode() != 429;
+
+            HttpURLConnection metrics = request(root + "/metrics", "GET");
+            try (InputStream is = metrics.getInputStream()) {
+                String text = new Scanner(is, StandardCharsets.UTF_8.name()).useDelimiter("\\A").next();
+                assert text.contains("usermanager_rate_limited_writes_total 1");
+                assert text.contains("usermanager_requests_total{endpoint=\"deleteAccount\",status=\"429\"} 1");
+                assert text.contains("usermanager_concurrency_limit{endpoint=\"getAccount\"}");
+            }
+        }
+    }
+
+    /**
+     * Behind a proxy the client is the address the proxy appended, so addresses the client puts before it
+     * don't give it new budgets
+     * @throws Exception if the server can't be started
+     */
+    @Test
+    public void forwardedClients() throws Exception {
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.limits.writeRate", "0.1");
+        settings.setProperty("usermanager.limits.writeBurst", "1");
+        settings.setProperty("usermanager.limits.clientHeader", "X-Forwarded-For");
+        try (HttpTarget target = HttpTarget.startServer(settings)) {
+            String url = target.getRoot() + "/accounts/missing";
+            assert request(url, "DELETE", "spoofed1, 10.0.0.1").getResponseCode() != 429;
+            assert request(url, "DELETE", "spoofed2, 10.0.0.1").getResponseCode() == 429;
+            assert request(url, "DELETE", "spoofed3, 10.0.0.2").getResponseCode() != 429;
+        }
+    }
+
+    /**
+     * A request that fails with an exception no mapper handles still gives its permit back
+     * @throws Exception if Jersey can't be set up
+     */
+    @Test
+    public void permitsReleasedOnFailure() throws Exception {
+        AccountStorage failing = new AccountStorage(Files.createTempDirectory("accounts").toString() + "/") {
+            @Override
+            public Account get(String login) {
+                throw new IllegalStateException("Storage is broken");
+            }
+        };
+        Properties settings = new Properties();
+        settings.setProperty("usermanager.limits.concurrency", "true");
+        settings.setProperty("usermanager.limits.concurrency.initial", "4");
+        settings.setProperty("usermanager.limits.concurrency.min", "4");
+        AdmissionFilter filter = new AdmissionFilter(settings);
+        ResourceConfig config = new ResourceConfig();
+        config.register(new AccountResource(failing, AccountResourceTest.getPasswords()));
+        config.register(filter);
+        ApplicationHandler handler = new ApplicationHandler(config);
+        for(int i = 0; i < 10; i++) {
+            ContainerRequest request = new ContainerRequest(URI.create("/"), URI.create("/accounts/user/verify"),
+                    "POST", null, new MapPropertiesDelegate());
+            request.header(HttpHeaders.CONTENT_TYPE, "application/json");
+            request.setEntityStream(new ByteArrayInputStream("{\"password\":\"qwerty\"}".getBytes()));
+            try {
+                assert handler.apply(request).get().getStatus() != 503;
+            } catch (ExecutionException e) {
+                // the exception is left to the container
+            }
+        }
+        // verification is asynchronous, the permit is released once the request finishes after its response
+        for(int i = 0; i < 100 && filter.getConcurrencyLimit("verifyPassword").getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assert filter.getConcurrencyLimit("verifyPassword").getInFlight() == 0;
+    }
+
+    private static void saturate(ConcurrencyLimit limit, long nanos) {
+        int admitted = 0;
+        while(limit.tryAcquire()) {
+            admitted++;
+        }
+        for(int i = 0; i < admitted; i++) {
+            limit.release(nanos);
+        }
+    }
+
+    private static HttpURLConnection request(String url, String method) throws IOException {
+        return request(url, method, null);
+    }
+
+    private static HttpURLConnection request(String url, String method, String forwardedFor) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        if(forwardedFor != null) {
+            connection.setRequestProperty("X-Forwarded-For", forwardedFor);
+        }
+        connection.getResponseCode();
+        return connection;
+    }
+}
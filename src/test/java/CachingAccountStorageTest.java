@@ -0,0 +1,76 @@
+import org.Account;
+import org.AccountStorage;
+import org.CachingAccountStorage;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+
+public class CachingAccountStorageTest {
+
+    static AccountStorage getTempStorage() throws IOException {
+        return new AccountStorage(Files.createTempDirectory("accounts").toString() + "/");
+    }
+
+    /**
+     * Tests that the second read of an account is served from memory
+     * @throws IOException
+     */
+    @Test
+    public void hitAfterMiss() throws IOException {
+        AccountStorage disk = getTempStorage();
+        disk.store(AccountJsonSerializerTest.getDefaultAccount());
+        CachingAccountStorage cache = new CachingAccountStorage(disk, 10);
+
+        cache.get("user1234");
+        Account a = cache.get("user1234");
+        assert a.equals(AccountJsonSerializerTest.getDefaultAccount());
+        assert cache.getMisses() == 1;
+        assert cache.getHits() == 1;
+    }
+
+    /**
+     * Shows that modifying a returned account doesn't change the cached one
+     * @throws IOException
+     */
+    @Test
+    public void returnsCopies() throws IOException {
+        CachingAccountStorage cache = new CachingAccountStorage(getTempStorage(), 10);
+        cache.store(AccountJsonSerializerTest.getDefaultAccount());
+
+        cache.get("user1234").setName("Changed");
+        assert cache.get("user1234").getName().equals("Anonymous");
+    }
+
+    /**
+     * Tests that the least recently used account is evicted when the cache is full
+     * @throws IOException
+     */
+    @Test
+    public void eviction() throws IOException {
+        CachingAccountStorage cache = new CachingAccountStorage(getTempStorage(), 2);
+        for(String login : new String[] {"first", "second", "third"}) {
+            Account a = AccountJsonSerializerTest.getDefaultAccount();
+            a.setLogin(login);
+            cache.store(a);
+        }
+        assert cache.size() == 2;
+        assert cache.getEvictions() == 1;
+
+        cache.get("first");
+        assert cache.getMisses() == 1;
+    }
+
+    /**
+     * Shows that a removed account is not served from the cache
+     * @throws IOException
+     */
+    @Test(expectedExceptions = AccountStorage.UserNotFoundException.class)
+    public void removeInvalidates() throws IOException {
+        CachingAccountStorage cache = new CachingAccountStorage(getTempStorage(), 10);
+        cache.store(AccountJsonSerializerTest.getDefaultAccount());
+        cache.remove("user1234");
+        cache.get("user1234");
+    }
+}
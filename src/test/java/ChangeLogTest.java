@@ -0,0 +1,121 @@
+import org.ChangeLog;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ChangeLogTest {
+
+    /**
+     * Tests reading from any sequence number, also after reopening a log with a torn record at its end
+     * @throws IOException
+     */
+    @Test
+    public void readAfterReopen() throws IOException {
+        Path file = Files.createTempDirectory("changes").resolve(ChangeLog.FILE);
+        ChangeLog changes = new ChangeLog(file, false);
+        for(int i = 1; i <= 3000; i++) {
+            assert changes.append(ChangeLog.Type.CREATED, "user" + i, null, ("{\"n\":" + i + "}").getBytes()) == i;
+        }
+        changes.append(ChangeLog.Type.RENAMED, "renamed", "user1", "{}".getBytes());
+        changes.append(ChangeLog.Type.DELETED, "renamed", null, null);
+        changes.close();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        changes = new ChangeLog(file, true);
+        assert changes.getLastSeq() == 3001;
+        List<ChangeLog.Change> read = changes.read(2047, 10);
+        assert read.size() == 10 && read.get(0).getSeq() == 2048 && read.get(0).getLogin().equals("user2048");
+        assert new String(read.get(0).getAccount()).equals("{\"n\":2048}");
+        read = changes.read(3000, 10);
+        assert read.size() == 1 && read.get(0).getType() == ChangeLog.Type.RENAMED;
+        assert read.get(0).getOldLogin().equals("user1");
+
+        assert changes.append(ChangeLog.Type.DELETED, "renamed", null, null) == 3002;
+        assert changes.read(3001, 10).get(0).getAccount() == null;
+        changes.close();
+    }
+
+    /**
+     * Tests that a batch gets consecutive sequence numbers and is durable, readable and awaited as a whole
+     * @throws IOException
+     */
+    @Test
+    public void appendAll() throws IOException {
+        Path file = Files.createTempDirectory("changes").resolve(ChangeLog.FILE);
+        ChangeLog changes = new ChangeLog(file, true);
+        changes.append(ChangeLog.Type.CREATED, "first", null, "{}".getBytes());
+        AtomicInteger appended = new AtomicInteger();
+        changes.onAppended(1, appended::incrementAndGet);
+        assert changes.appendAll(Collections.emptyList(), Collections.emptyList(), Collections.emptyList()) == 1;
+        assert appended.get() == 0;
+
+        long last = changes.appendAll(Arrays.asList(ChangeLog.Type.UPDATED, ChangeLog.Type.CREATED),
+                Arrays.asList("first", "second"), Arrays.asList("{\"n\":1}".getBytes(), "{\"n\":2}".getBytes()));
+        assert last == 3 && appended.get() == 1 && changes.getLastSeq() == 3;
+        List<ChangeLog.Change> read = changes.read(1, 10);
+        assert read.size() == 2 && read.get(0).getType() == ChangeLog.Type.UPDATED;
+        assert read.get(1).getSeq() == 3 && read.get(1).getLogin().equals("second");
+        changes.close();
+
+        changes = new ChangeLog(file, true);
+        assert changes.getLastSeq() == 3;
+        changes.close();
+    }
+
+    /**
+     * Tests that a removed listener is not called, and that a registered one is called once by the next append
+     * @throws IOException
+     */
+    @Test
+    public void listenersRemovable() throws IOException {
+        ChangeLog changes = new ChangeLog(Files.createTempDirectory("changes").resolve(ChangeLog.FILE), true);
+        changes.append(ChangeLog.Type.CREATED, "first", null, "{}".getBytes());
+        AtomicInteger called = new AtomicInteger();
+        AtomicInteger removed = new AtomicInteger();
+        changes.onAppended(0, called::incrementAndGet);
+        assert called.get() == 1;
+        changes.onAppended(1, called::incrementAndGet);
+        changes.onAppended(1, removed::incrementAndGet).run();
+        assert called.get() == 1;
+        changes.append(ChangeLog.Type.UPDATED, "first", null, "{}".getBytes());
+        changes.append(ChangeLog.Type.UPDATED, "first", null, "{}".getBytes());
+        assert called.get() == 2 && removed.get() == 0;
+        changes.close();
+    }
+
+    /**
+     * A login longer than a record can hold is rejected, along with the rest of its batch
+     * @throws IOException
+     */
+    @Test
+    public void longLoginRejected() throws IOException {
+        ChangeLog changes = new ChangeLog(Files.createTempDirectory("changes").resolve(ChangeLog.FILE), true);
+        String login = new String(new char[0x10000]).replace('\0', 'a');
+        try {
+            changes.append(ChangeLog.Type.RENAMED, "user", login, "{}".getBytes());
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            changes.appendAll(Arrays.asList(ChangeLog.Type.CREATED, ChangeLog.Type.CREATED), Arrays.asList("user", login),
+                    Arrays.asList("{}".getBytes(), "{}".getBytes()));
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assert changes.getLastSeq() == 0 && changes.read(0, 10).isEmpty();
+        changes.close();
+    }
+}
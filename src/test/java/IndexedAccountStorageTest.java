@@ -0,0 +1,138 @@
+import org.Account;
+import org.AccountQuery;
+import org.AccountStorage;
+import org.IndexedAccountStorage;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class IndexedAccountStorageTest {
+
+    static IndexedAccountStorage getStorage() throws IOException {
+        return new IndexedAccountStorage(new AccountStorage(Files.createTempDirectory("indexed").toString() + "/"));
+    }
+
+    static Account getAccount(String login, String name, int year, Account.Sex sex) {
+        Account account = LogStructuredAccountStorageTest.getAccount(login);
+        account.setName(name);
+        account.setBirthday(LocalDate.of(year, 1, 1));
+        account.setSex(sex);
+        return account;
+    }
+
+    static List<String> searchAll(IndexedAccountStorage storage, AccountQuery query, int limit) {
+        List<String> logins = new ArrayList<>();
+        String cursor = null;
+        do {
+            IndexedAccountStorage.Page page = storage.search(query, cursor, limit);
+            assert page.getLogins().size() <= limit;
+            logins.addAll(page.getLogins());
+            cursor = page.getNext();
+        } while(cursor != null);
+        return logins;
+    }
+
+    /**
+     * Tests every kind of search walked page by page, with the indexes updated by stores, renames and removes
+     * @throws IOException
+     */
+    @Test
+    public void search() throws IOException {
+        IndexedAccountStorage storage = getStorage();
+        for(int i = 0; i < 20; i++) {
+            storage.store(getAccount("user" + i, (i % 2 == 0 ? "Anna" : "Boris") + i, 1980 + i,
+                    i % 3 == 0 ? Account.Sex.Female : Account.Sex.Male));
+        }
+        storage.remove("user2");
+        storage.rename("user4", getAccount("renamed", "Anna4", 1984, Account.Sex.Male));
+
+        AccountQuery byName = new AccountQuery();
+        byName.setNamePrefix("Anna1");
+        assert searchAll(storage, byName, 2).toString().equals("[user10, user12, user14, user16, user18]");
+
+        AccountQuery byBirthday = new AccountQuery();
+        byBirthday.setBornAfter(LocalDate.of(1981, 6, 1));
+        byBirthday.setBornBefore(LocalDate.of(1986, 1, 1));
+        assert searchAll(storage, byBirthday, 1).toString().equals("[user3, renamed, user5]");
+
+        AccountQuery bySex = new AccountQuery();
+        bySex.setSex(Account.Sex.Female);
+        assert searchAll(storage, bySex, 3).toString().equals("[user0, user3, user6, user9, user12, user15, user18]");
+
+        bySex.setNamePrefix("Boris");
+        assert searchAll(storage, bySex, 3).toString().equals("[user15, user3, user9]");
+        assert searchAll(storage, new AccountQuery(), 7).size() == 19;
+    }
+
+    /**
+     * Tests that the indexes are rebuilt from the accounts on disk
+     * @throws IOException
+     */
+    @Test
+    public void rebuild() throws IOException {
+        String dir = Files.createTempDirectory("indexed").toString() + "/";
+        IndexedAccountStorage storage = new IndexedAccountStorage(new AccountStorage(dir));
+        storage.store(getAccount("first", "Anna", 1990, Account.Sex.Female));
+        storage.store(getAccount("second", "Boris", 1991, Account.Sex.Male));
+
+        storage = new IndexedAccountStorage(new AccountStorage(dir));
+        AccountQuery query = new AccountQuery();
+        query.setSex(Account.Sex.Male);
+        assert storage.size() == 2;
+        assert storage.search(query, null, 10).getLogins().toString().equals("[second]");
+    }
+
+    /**
+     * A torn account file is skipped, by one reading thread and by several, instead of failing the whole rebuild
+     * @throws IOException
+     */
+    @Test
+    public void tornFileSkipped() throws IOException {
+        String dir = Files.createTempDirectory("indexed").toString() + "/";
+        IndexedAccountStorage storage = new IndexedAccountStorage(new AccountStorage(dir));
+        storage.store(getAccount("first", "Anna", 1990, Account.Sex.Female));
+        Files.write(Paths.get(dir, "torn.json"), "{\"login\":\"torn\",\"na".getBytes());
+
+        assert new IndexedAccountStorage(new AccountStorage(dir)).size() == 1;
+        assert new IndexedAccountStorage(new AccountStorage(dir), 4).size() == 1;
+    }
+
+    /**
+     * A cursor of one kind of search can't be used for another
+     * @throws IOException
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void foreignCursor() throws IOException {
+        IndexedAccountStorage storage = getStorage();
+        storage.store(getAccount("first", "Anna", 1990, Account.Sex.Female));
+        storage.store(getAccount("second", "Boris", 1991, Account.Sex.Male));
+        String cursor = storage.search(new AccountQuery(), null, 1).getNext();
+        AccountQuery query = new AccountQuery();
+        query.setNamePrefix("A");
+        storage.search(query, cursor, 1);
+    }
+
+    /**
+     * Indexes built by several reading threads are the same as the ones built by one
+     * @throws IOException
+     */
+    @Test
+    public void parallelLoad() throws IOException {
+        IndexedAccountStorage storage = getStorage();
+        for(int i = 0; i < 500; i++) {
+            storage.store(getAccount("user" + i, "Name" + i, 1950 + i % 50, Account.Sex.values()[i % 2]));
+        }
+        IndexedAccountStorage loaded = new IndexedAccountStorage(storage, 8);
+        assert loaded.size() == 500;
+        AccountQuery query = new AccountQuery();
+        query.setBornAfter(LocalDate.of(1970, 1, 1));
+        query.setSex(Account.Sex.Female);
+        assert searchAll(loaded, query, 7).equals(searchAll(storage, query, 1000));
+    }
+}
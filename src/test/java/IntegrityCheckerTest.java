@@ -0,0 +1,63 @@
+import org.AccountCodec;
+import org.AccountJsonSerializer;
+import org.AccountStorage;
+import org.AccountValidator;
+import org.tools.IntegrityChecker;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+
+public class IntegrityCheckerTest {
+
+    /**
+     * Valid files stay, malformed ones and ones with another login are moved to the quarantine,
+     * where the storage doesn't see them
+     * @throws IOException
+     */
+    @Test
+    public void quarantine() throws IOException {
+        Path dir = Files.createTempDirectory("checked");
+        AccountStorage storage = new AccountStorage(dir.toString() + "/");
+        for(int i = 0; i < 1000; i++) {
+            storage.store(LogStructuredAccountStorageTest.getAccount("user" + i));
+        }
+        Files.write(dir.resolve("torn.json"), "{\"login\":\"torn\",\"na".getBytes());
+        Files.write(dir.resolve("empty.json"), new byte[0]);
+        Files.copy(dir.resolve("user1.json"), dir.resolve("copy.json"));
+
+        IntegrityChecker checker = new IntegrityChecker(AccountCodec.JSON, true, 4);
+        checker.check(dir);
+        assert checker.getChecked() == 1003 && checker.getValid() == 1000;
+        assert checker.getCorrupted() == 2 && checker.getMismatched() == 1 && checker.getQuarantined() == 3;
+        assert Files.exists(dir.resolve(IntegrityChecker.QUARANTINE_DIRECTORY).resolve("copy.json"));
+        assert !Files.exists(dir.resolve("torn.json"));
+
+        int[] accounts = {0};
+        storage.forEachAccount(account -> accounts[0]++);
+        assert accounts[0] == 1000;
+    }
+
+    /**
+     * Files are checked with the rules the storage reads them with, whatever rules the API is configured with
+     * @throws IOException
+     */
+    @Test
+    public void defaultRules() throws IOException {
+        Path dir = Files.createTempDirectory("checked");
+        new AccountStorage(dir.toString() + "/").store(LogStructuredAccountStorageTest.getAccount("user"));
+        Properties strict = new Properties();
+        strict.setProperty("usermanager.validation.login.maxLength", "2");
+        AccountJsonSerializer.setValidator(new AccountValidator(strict));
+        try {
+            IntegrityChecker checker = new IntegrityChecker(AccountCodec.JSON, false, 1);
+            checker.check(dir);
+            assert checker.getValid() == 1 && checker.getCorrupted() == 0;
+        } finally {
+            AccountJsonSerializer.setValidator(AccountValidator.DEFAULT);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import org.Account;
+import org.AccountStorage;
+import org.IoExecutor;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.*;
+
+
+public class IoExecutorTest {
+
+    /**
+     * Operations complete their futures on the I/O threads, and failures complete them exceptionally
+     * @throws Exception
+     */
+    @Test
+    public void futures() throws Exception {
+        AccountStorage storage = AccountResourceTest.getStorage();
+        IoExecutor async = new IoExecutor(2, 10);
+        Account account = LogStructuredAccountStorageTest.getAccount("async");
+        async.submit(() -> {
+            storage.store(account);
+            return null;
+        }).get(10, TimeUnit.SECONDS);
+        assert async.submit(() -> storage.get("async")).get(10, TimeUnit.SECONDS).equals(account);
+        try {
+            async.submit(() -> {
+                storage.remove("missing");
+                return null;
+            }).get(10, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof AccountStorage.UserNotFoundException;
+        }
+        async.close();
+
+        IoExecutor inline = new IoExecutor(0, 0);
+        assert inline.submit(() -> storage.get("async")).isDone();
+    }
+
+    /**
+     * Operations beyond the queue are rejected at once instead of waiting
+     * @throws Exception
+     */
+    @Test
+    public void boundedQueue() throws Exception {
+        AccountStorage storage = AccountResourceTest.getStorage();
+        IoExecutor async = new IoExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Object> running = async.submit(() -> {
+            started.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        });
+        started.await(10, TimeUnit.SECONDS);
+        CompletableFuture<Account> queued = async.submit(() -> storage.get("nobody"));
+        assert async.getQueued() == 1;
+        try {
+            async.submit(() -> storage.get("nobody"));
+            assert false;
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        release.countDown();
+        assert (Boolean) running.get(10, TimeUnit.SECONDS);
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof AccountStorage.UserNotFoundException;
+        }
+        async.close();
+    }
+}
@@ -0,0 +1,65 @@
+import load.LoadGenerator;
+import load.ResourceTarget;
+import load.Workload;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+public class LoadGeneratorTest {
+
+    /**
+     * A short soak of a rename-heavy workload on hot keys: nothing fails and every operation is measured
+     * @throws IOException
+     */
+    @Test
+    public void soak() throws IOException {
+        ResourceTarget target = new ResourceTarget(new Properties());
+        LoadGenerator generator = new LoadGenerator(target, 16);
+        generator.preload(200);
+        generator.run(new Workload(200, Workload.parseMix("get=40,post=10,put=10,rename=30,delete=10"), 1.1),
+                2000, 1);
+
+        for(Workload.Operation operation : Arrays.asList(Workload.Operation.GET, Workload.Operation.PUT,
+                Workload.Operation.RENAME, Workload.Operation.POST)) {
+            LoadGenerator.Stats stats = generator.getStats(operation);
+            assert stats.getResponseTime().getCount() > 0 && stats.getErrors() == 0;
+            assert stats.getResponseTime().getMaxNanos() >= stats.getServiceTime().getQuantileNanos(0.5);
+        }
+        assert generator.getStats(Workload.Operation.RENAME).getStatusCount(204) > 0;
+        assert generator.getStats(Workload.Operation.POST).getStatusCount(201) > 0;
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        generator.printReport(new PrintStream(report));
+        assert report.toString().contains("RENAME");
+    }
+
+    /**
+     * Recorded requests are sent as they are, lines that are not requests are skipped
+     * @throws IOException
+     */
+    @Test
+    public void replay() throws IOException {
+        Path recording = Files.createTempFile("recording", ".jsonl");
+        Files.write(recording, Arrays.asList(
+                "{\"method\":\"POST\",\"path\":\"/accounts\",\"body\":{\"login\":\"replayed\",\"password\":\"pass\"," +
+                        "\"name\":\"Replayed\",\"sex\":\"Female\",\"birthday\":\"1990-01-01\"},\"at\":0}",
+                "{\"method\":\"GET\",\"path\":\"/accounts/replayed\",\"at\":20}",
+                "{\"request_id\":\"not a request\"}",
+                "{\"method\":\"DELETE\",\"path\":\"/accounts/missing\",\"at\":40}"));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        LoadGenerator.Recording requests = LoadGenerator.readRecording(recording.toString(), new PrintStream(log));
+        assert requests.size() == 3 && log.toString().startsWith("Skipped 1 lines");
+
+        LoadGenerator generator = new LoadGenerator(new ResourceTarget(new Properties()), 1);
+        generator.replay(requests, 100, 1);
+        LoadGenerator.Stats stats = generator.getStats(Workload.Operation.REPLAY);
+        assert stats.getStatusCount(201) == 1 && stats.getStatusCount(200) == 1 && stats.getStatusCount(404) == 1;
+    }
+}
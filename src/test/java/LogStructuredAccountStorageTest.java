@@ -0,0 +1,212 @@
+import org.Account;
+import org.AccountCodec;
+import org.AccountStorage;
+import org.LogStructuredAccountStorage;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+public class LogStructuredAccountStorageTest {
+
+    static Account getAccount(String login) {
+        Account account = AccountJsonSerializerTest.getDefaultAccount();
+        account.setLogin(login);
+        return account;
+    }
+
+    /**
+     * Tests that a stored account can be read back, and the latest record wins
+     * @throws IOException
+     */
+    @Test
+    public void storeAndGet() throws IOException {
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(
+                Files.createTempDirectory("log").toString());
+        Account account = getAccount("user1234");
+        log.store(account);
+        account.setName("Renamed");
+        log.store(account);
+
+        assert log.get("user1234").equals(account);
+        log.close();
+    }
+
+    /**
+     * Shows that a removed account is not found
+     * @throws IOException
+     */
+    @Test(expectedExceptions = AccountStorage.UserNotFoundException.class)
+    public void remove() throws IOException {
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(
+                Files.createTempDirectory("log").toString());
+        log.store(getAccount("user1234"));
+        log.remove("user1234");
+        log.get("user1234");
+    }
+
+    /**
+     * Tests that the index is rebuilt from segments after reopening, and a cut off record at the end is dropped
+     * @throws IOException
+     */
+    @Test
+    public void recovery() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir);
+        log.store(getAccount("first"));
+        log.store(getAccount("second"));
+        log.store(getAccount("third"));
+        log.remove("second");
+        log.store(getAccount("fourth"));
+        log.close();
+
+        RandomAccessFile segment = new RandomAccessFile(dir + "/segment-00000001.log", "rw");
+        segment.setLength(segment.length() - 5);
+        segment.close();
+
+        log = new LogStructuredAccountStorage(dir);
+        assert log.size() == 2;
+        assert log.get("first").equals(getAccount("first"));
+        assert log.get("third").equals(getAccount("third"));
+        log.close();
+    }
+
+    /**
+     * Tests that compaction drops overwritten records and keeps live ones readable
+     * @throws IOException
+     */
+    @Test
+    public void compaction() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        for(int i = 0; i < 100; i++) {
+            log.store(getAccount("user" + (i % 5)));
+        }
+        int segmentsBefore = log.getSegmentCount();
+        log.compactDeadSegments();
+        assert log.getSegmentCount() < segmentsBefore;
+        for(int i = 0; i < 5; i++) {
+            assert log.get("user" + i).equals(getAccount("user" + i));
+        }
+        log.close();
+
+        log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        assert log.size() == 5;
+        log.close();
+    }
+
+    /**
+     * Tests that compaction drops tombstones once no older segment holds a record they hide,
+     * instead of carrying them from segment to segment
+     * @throws IOException
+     */
+    @Test
+    public void tombstonesDropped() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        for(int i = 0; i < 5; i++) {
+            log.store(getAccount("user" + i));
+        }
+        for(int i = 0; i < 300; i++) {
+            log.store(getAccount("removed" + i));
+            log.remove("removed" + i);
+        }
+        for(int pass = 0; pass < 3; pass++) {
+            log.compactDeadSegments();
+        }
+        long bytes = 0;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(Paths.get(dir), "segment-*.log")) {
+            for(Path segment : segments) {
+                bytes += Files.size(segment);
+            }
+        }
+        assert bytes < 3 * 1024;
+        log.close();
+
+        log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        assert log.size() == 5;
+        for(int i = 0; i < 300; i += 50) {
+            try {
+                log.get("removed" + i);
+                assert false;
+            } catch (AccountStorage.UserNotFoundException e) {
+                // expected
+            }
+        }
+        log.close();
+    }
+
+    /**
+     * Tests reads through memory mappings, including records appended after the active segment was mapped
+     * @throws IOException
+     */
+    @Test
+    public void memoryMappedReads() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir, 64 * 1024, 0, true, AccountCodec.BINARY);
+        for(int i = 0; i < 1000; i++) {
+            log.store(getAccount("user" + i));
+            assert log.get("user" + i).equals(getAccount("user" + i));
+        }
+        for(int i = 0; i < 1000; i++) {
+            assert log.get("user" + i).equals(getAccount("user" + i));
+        }
+        log.close();
+    }
+
+    /**
+     * Tests that a renamed account is found only under the new login, also after compaction and reopening
+     * @throws IOException
+     */
+    @Test
+    public void rename() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        log.store(getAccount("before"));
+        log.rename("before", getAccount("after"));
+        for(int i = 0; i < 50; i++) {
+            log.store(getAccount("user" + (i % 5)));
+        }
+        log.compactDeadSegments();
+        assert log.get("after").equals(getAccount("after"));
+        log.close();
+
+        log = new LogStructuredAccountStorage(dir, 1024, 0.5, false, AccountCodec.JSON);
+        assert log.size() == 6;
+        assert log.get("after").equals(getAccount("after"));
+        try {
+            log.get("before");
+            assert false;
+        } catch (AccountStorage.UserNotFoundException e) {
+            // expected
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * A login longer than a record can hold is rejected instead of being written with a wrong length
+     * @throws IOException
+     */
+    @Test
+    public void longLoginRejected() throws IOException {
+        String dir = Files.createTempDirectory("log").toString();
+        LogStructuredAccountStorage log = new LogStructuredAccountStorage(dir);
+        try {
+            log.store(getAccount(new String(new char[0x10000]).replace('\0', 'a')));
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        log.store(getAccount("user"));
+        log.close();
+        log = new LogStructuredAccountStorage(dir);
+        assert log.get("user").getLogin().equals("user");
+        log.close();
+    }
+}
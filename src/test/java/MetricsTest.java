@@ -0,0 +1,67 @@
+import org.metrics.LatencyHistogram;
+import org.metrics.Metrics;
+import org.services.AccountResource;
+import org.testng.annotations.Test;
+
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+
+public class MetricsTest {
+
+    /**
+     * Quantiles of the histogram should be within the bucket precision of the exact ones
+     */
+    @Test
+    public void histogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = (long) (Math.exp(random.nextDouble() * 20));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for(double quantile : new double[] {0.5, 0.9, 0.99}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long estimate = histogram.getQuantileNanos(quantile);
+            assert estimate >= exact && estimate <= exact + exact / 16 + 1 : quantile + ": " + estimate + " vs " + exact;
+        }
+        assert histogram.getCount() == values.length;
+        assert histogram.getMaxNanos() == values[values.length - 1];
+    }
+
+    /**
+     * Requests of the resource are counted by status code and show up in the exported text
+     * @throws IOException
+     */
+    @Test
+    public void endpointMetrics() throws IOException {
+        AccountResource resource = AccountResourceTest.getResource();
+        resource.createAccount(new ByteArrayInputStream(AccountResourceTest.getJson("measured").getBytes()));
+        ((StreamingOutput) resource.getAccount("measured", null).getEntity()).write(new ByteArrayOutputStream());
+        try {
+            resource.deleteAccount("missing");
+        } catch (NotFoundException e) {
+            // counted as 404
+        }
+
+        StringWriter text = new StringWriter();
+        Metrics.writePrometheus(text);
+        String metrics = text.toString();
+        assert metrics.contains("usermanager_requests_total{endpoint=\"createAccount\",status=\"201\"}");
+        assert metrics.contains("usermanager_requests_total{endpoint=\"deleteAccount\",status=\"404\"}");
+        assert metrics.contains("usermanager_request_duration_seconds_count{endpoint=\"getAccount\",phase=\"serialize\"}");
+        assert metrics.contains("usermanager_storage_written_bytes_total ");
+        assert metrics.contains("usermanager_wal_fsync_seconds_total ");
+        assert metrics.contains("usermanager_account_cache_hits_total ");
+        assert metrics.contains("usermanager_wal_max_batch_size ");
+    }
+}
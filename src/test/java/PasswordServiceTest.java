@@ -0,0 +1,111 @@
+import org.Account;
+import org.PasswordHasher;
+import org.PasswordService;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+
+public class PasswordServiceTest {
+
+    /**
+     * Hashes are salted, verifiable, and legacy plaintext passwords are still accepted but need a rehash
+     */
+    @Test
+    public void hashAndVerify() {
+        PasswordHasher hasher = new PasswordHasher(1000);
+        String first = hasher.hash("qwerty");
+        assert !first.equals(hasher.hash("qwerty"));
+        assert hasher.verify("qwerty", first) && !hasher.verify("qwertz", first);
+        assert !hasher.needsRehash(first) && new PasswordHasher(2000).needsRehash(first);
+        assert new PasswordHasher(2000).verify("qwerty", first);
+        assert hasher.verify("qwerty", "qwerty") && hasher.needsRehash("qwerty");
+    }
+
+    /**
+     * A password that looks like a hash is hashed like any other, and a stored hash of excessive cost
+     * is rejected without being computed
+     * @throws IOException
+     */
+    @Test
+    public void clientHashesNotTrusted() throws IOException {
+        PasswordService passwords = new PasswordService(new PasswordHasher(1000), 1, 10, 0, 0);
+        String planted = new PasswordHasher(1000).hash("qwerty").replace("$1000$", "$2147483647$");
+        String stored = passwords.hash(planted);
+        assert !stored.equals(planted) && passwords.verify("user", planted, stored);
+        long start = System.nanoTime();
+        assert !new PasswordHasher(1000).verify("qwerty", planted);
+        assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1);
+        passwords.close();
+    }
+
+    /**
+     * An import hashes every password even when the queue is full, and keeps hashes only when asked to
+     * @throws IOException
+     */
+    @Test
+    public void hashAllBeyondQueue() throws IOException {
+        PasswordService passwords = new PasswordService(new PasswordHasher(1000), 1, 1, 0, 0);
+        String hashed = new PasswordHasher(1000).hash("qwerty");
+        List<Account> accounts = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            accounts.add(new Account("user" + i, i == 0 ? hashed : "qwerty"));
+        }
+        passwords.hashAll(accounts, false);
+        assert !accounts.get(0).getPassword().equals(hashed);
+        for(Account account : accounts) {
+            assert PasswordHasher.isHashed(account.getPassword());
+        }
+        List<Account> exported = new ArrayList<>();
+        exported.add(new Account("user", hashed));
+        passwords.hashAll(exported, true);
+        assert exported.get(0).getPassword().equals(hashed);
+        passwords.close();
+    }
+
+    /**
+     * A repeated successful verification is answered from the cache until the stored hash changes
+     * @throws IOException
+     */
+    @Test
+    public void verificationCache() throws IOException {
+        PasswordService passwords = new PasswordService(new PasswordHasher(1000), 1, 10, 60000, 10);
+        String stored = passwords.hash("qwerty");
+        assert passwords.verify("user", "qwerty", stored);
+        assert passwords.verify("user", "qwerty", stored);
+        assert !passwords.verify("user", "wrong", stored);
+        assert passwords.getCacheHits() == 1;
+        assert passwords.verify("user", "qwerty", passwords.hash("qwerty"));
+        assert passwords.getCacheHits() == 1;
+        passwords.close();
+    }
+
+    /**
+     * Hashes beyond the queue are rejected instead of waiting
+     * @throws Exception
+     */
+    @Test
+    public void boundedQueue() throws Exception {
+        PasswordService passwords = new PasswordService(new PasswordHasher(200000), 1, 1, 0, 0);
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        List<Future<String>> hashes = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            hashes.add(clients.submit(() -> passwords.hash("qwerty")));
+        }
+        int rejected = 0;
+        for(Future<String> hash : hashes) {
+            try {
+                hash.get();
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof RejectedExecutionException;
+                rejected++;
+            }
+        }
+        clients.shutdown();
+        passwords.close();
+        assert rejected > 0;
+    }
+}
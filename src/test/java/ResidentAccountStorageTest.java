@@ -0,0 +1,82 @@
+import org.Account;
+import org.AccountStorage;
+import org.ResidentAccountStorage;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+public class ResidentAccountStorageTest {
+
+    static Account getAccount(String login, Random random) {
+        Account account = new Account(login, "hash" + random.nextInt());
+        // names longer than 127 bytes have two-byte lengths
+        StringBuilder name = new StringBuilder("\u0418\u043c\u044f");
+        for(int i = random.nextInt(200); i > 0; i--) {
+            name.append('x');
+        }
+        account.setName(name.toString());
+        account.setSex(Account.Sex.values()[random.nextInt(2)]);
+        account.setBirthday(LocalDate.ofEpochDay(random.nextInt(40000) - 20000));
+        return account;
+    }
+
+    /**
+     * Random stores, renames and removes, enough to compact the arena, agree with a map of the same accounts,
+     * in memory and after a reload
+     * @throws IOException
+     */
+    @Test
+    public void randomChanges() throws IOException {
+        AccountStorage files = new AccountStorage(Files.createTempDirectory("resident").toString() + "/");
+        ResidentAccountStorage storage = new ResidentAccountStorage(files);
+        Map<String, Account> expected = new HashMap<>();
+        Random random = new Random(42);
+        for(int i = 0; i < 20000; i++) {
+            String login = "user" + random.nextInt(1000);
+            int operation = random.nextInt(10);
+            if(operation < 6) {
+                Account account = getAccount(login, random);
+                storage.store(account);
+                expected.put(login, account);
+            } else if(operation < 8 && expected.containsKey(login)) {
+                storage.remove(login);
+                expected.remove(login);
+            } else if(expected.containsKey(login)) {
+                Account account = getAccount("renamed" + i, random);
+                storage.rename(login, account);
+                expected.remove(login);
+                expected.put(account.getLogin(), account);
+            }
+        }
+
+        ResidentAccountStorage reloaded = new ResidentAccountStorage(files, 4);
+        for(ResidentAccountStorage resident : new ResidentAccountStorage[] {storage, reloaded}) {
+            assert resident.size() == expected.size();
+            for(Account account : expected.values()) {
+                assert resident.get(account.getLogin()).equals(account);
+            }
+            int[] visited = {0};
+            resident.forEachAccount(account -> {
+                assert account.equals(expected.get(account.getLogin()));
+                visited[0]++;
+            });
+            assert visited[0] == expected.size();
+        }
+        for(int i = 0; i < 1000; i++) {
+            if(!expected.containsKey("user" + i)) {
+                try {
+                    storage.get("user" + i);
+                    assert false;
+                } catch (AccountStorage.UserNotFoundException e) {
+                    // removed
+                }
+            }
+        }
+    }
+}
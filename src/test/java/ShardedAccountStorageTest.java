@@ -0,0 +1,149 @@
+import org.AccountStorage;
+import org.ShardedAccountStorage;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class ShardedAccountStorageTest {
+
+    static ShardedAccountStorage getStorage(Path... directories) throws IOException {
+        Map<String, AccountStorage> shards = new LinkedHashMap<>();
+        for(Path directory : directories) {
+            shards.put(directory.toString(), new AccountStorage(directory.toString() + "/"));
+        }
+        return new ShardedAccountStorage(shards);
+    }
+
+    static int copies(String login, Path... directories) {
+        int copies = 0;
+        for(Path directory : directories) {
+            if(Files.exists(directory.resolve(login + ".json"))) {
+                copies++;
+            }
+        }
+        return copies;
+    }
+
+    static int accounts(Path directory) {
+        return directory.toFile().list((dir, name) -> name.endsWith(".json")).length;
+    }
+
+    /**
+     * Tests that every account is kept by one shard, also after renames between shards
+     * @throws IOException
+     */
+    @Test
+    public void routing() throws IOException {
+        Path first = Files.createTempDirectory("shard");
+        Path second = Files.createTempDirectory("shard");
+        ShardedAccountStorage storage = getStorage(first, second);
+        for(int i = 0; i < 100; i++) {
+            storage.store(LogStructuredAccountStorageTest.getAccount("user" + i));
+        }
+        assert accounts(first) > 10 && accounts(second) > 10;
+
+        for(int i = 0; i < 100; i++) {
+            storage.rename("user" + i, LogStructuredAccountStorageTest.getAccount("renamed" + i));
+        }
+        for(int i = 0; i < 100; i++) {
+            assert copies("user" + i, first, second) == 0;
+            assert copies("renamed" + i, first, second) == 1;
+            assert storage.get("renamed" + i).getLogin().equals("renamed" + i);
+        }
+        storage.remove("renamed0");
+        assert copies("renamed0", first, second) == 0;
+        storage.close();
+    }
+
+    /**
+     * Tests that a new shard takes over its part of the accounts, which stay readable all the time
+     * @throws IOException
+     */
+    @Test
+    public void rebalance() throws IOException {
+        Path first = Files.createTempDirectory("shard");
+        Path second = Files.createTempDirectory("shard");
+        Path third = Files.createTempDirectory("shard");
+        ShardedAccountStorage storage = getStorage(first, second);
+        for(int i = 0; i < 300; i++) {
+            storage.store(LogStructuredAccountStorageTest.getAccount("user" + i));
+        }
+        storage.close();
+
+        storage = getStorage(first, second, third);
+        for(int i = 0; i < 300; i++) {
+            assert storage.get("user" + i).getLogin().equals("user" + i);
+        }
+        storage.awaitRebalance();
+        assert !storage.isRebalancing();
+        assert storage.getMoved() == accounts(third);
+        assert storage.getMoved() > 30 && storage.getMoved() < 200;
+        for(int i = 0; i < 300; i++) {
+            assert copies("user" + i, first, second, third) == 1;
+            assert storage.get("user" + i).getLogin().equals("user" + i);
+        }
+        storage.close();
+    }
+
+    /**
+     * Tests that accounts waiting to be moved stay readable while a slow scan holds up the move
+     * @throws Exception
+     */
+    @Test
+    public void readsDuringSlowScan() throws Exception {
+        Path first = Files.createTempDirectory("shard");
+        Path second = Files.createTempDirectory("shard");
+        Path third = Files.createTempDirectory("shard");
+        ShardedAccountStorage storage = getStorage(first, second);
+        for(int i = 0; i < 300; i++) {
+            storage.store(LogStructuredAccountStorageTest.getAccount("user" + i));
+        }
+        storage.close();
+
+        ShardedAccountStorage reopened = getStorage(first, second, third);
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> scan = CompletableFuture.runAsync(() -> {
+            try {
+                reopened.forEachAccount(account -> {
+                    scanning.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        scanning.await();
+        // let the move wait for the scan
+        Thread.sleep(100);
+        CompletableFuture<Void> reads = CompletableFuture.runAsync(() -> {
+            try {
+                for(int i = 0; i < 300; i++) {
+                    assert reopened.get("user" + i).getLogin().equals("user" + i);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            reads.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+        }
+        scan.get(5, TimeUnit.SECONDS);
+        reopened.awaitRebalance();
+        reopened.close();
+    }
+}
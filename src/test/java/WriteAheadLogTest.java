@@ -0,0 +1,142 @@
+import org.Account;
+import org.AccountCodec;
+import org.AccountStorage;
+import org.WriteAheadLog;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class WriteAheadLogTest {
+
+    static byte[] encode(Account account) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        AccountCodec.JSON.write(account, os);
+        return os.toByteArray();
+    }
+
+    /**
+     * Changes that reached the log but not the account files are applied when the storage is opened,
+     * and a record cut off by a crash is dropped
+     * @throws IOException
+     */
+    @Test
+    public void replayAfterCrash() throws IOException {
+        Path dir = Files.createTempDirectory("wal");
+        AccountStorage storage = new AccountStorage(dir + "/", AccountCodec.JSON, 0);
+        storage.store(LogStructuredAccountStorageTest.getAccount("removed"));
+        storage.close();
+
+        // a crash right after the log was synced
+        WriteAheadLog wal = new WriteAheadLog(dir.resolve(AccountStorage.WAL_FILE), 0);
+        wal.append(WriteAheadLog.PUT, "logged", encode(LogStructuredAccountStorageTest.getAccount("logged")));
+        wal.append(WriteAheadLog.DELETE, "removed", new byte[0]);
+        wal.append(WriteAheadLog.PUT, "torn", encode(LogStructuredAccountStorageTest.getAccount("torn")));
+        wal.close();
+        RandomAccessFile file = new RandomAccessFile(dir.resolve(AccountStorage.WAL_FILE).toFile(), "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        storage = new AccountStorage(dir + "/", AccountCodec.JSON, 0);
+        assert storage.get("logged").equals(LogStructuredAccountStorageTest.getAccount("logged"));
+        assert !Files.exists(dir.resolve("removed.json"));
+        assert !Files.exists(dir.resolve("torn.json"));
+        assert storage.getWriteAheadLog().size() == 0;
+        storage.close();
+    }
+
+    /**
+     * Concurrent stores are written to the log in shared batches
+     * @throws Exception
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        AccountStorage storage = new AccountStorage(
+                Files.createTempDirectory("wal") + "/", AccountCodec.JSON, 2000);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> tasks = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            int thread = t;
+            tasks.add(pool.submit(() -> {
+                for(int i = 0; i < 20; i++) {
+                    storage.store(LogStructuredAccountStorageTest.getAccount("user" + thread + "_" + i));
+                }
+                return null;
+            }));
+        }
+        for(Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+
+        WriteAheadLog wal = storage.getWriteAheadLog();
+        assert wal.getRecords() == 160;
+        assert wal.getBatches() < wal.getRecords();
+        assert storage.get("user7_19").getLogin().equals("user7_19");
+        storage.close();
+    }
+
+    /**
+     * A rename interrupted after its intent was synced is completed when the storage is opened
+     * @throws IOException
+     */
+    @Test
+    public void interruptedRename() throws IOException {
+        Path dir = Files.createTempDirectory("files");
+        AccountStorage storage = new AccountStorage(dir + "/", AccountCodec.JSON);
+        storage.store(LogStructuredAccountStorageTest.getAccount("before"));
+        storage.rename("before", LogStructuredAccountStorageTest.getAccount("renamed"));
+        assert !Files.exists(dir.resolve("before.json"));
+        storage.close();
+
+        // a crash right after the intent was written, and a temporary file of an unfinished store
+        Files.write(dir.resolve(".tmp/renamed.rename"), encode(LogStructuredAccountStorageTest.getAccount("after")));
+        Files.write(dir.resolve(".tmp/other.json.tmp-1"), new byte[] {'{'});
+
+        storage = new AccountStorage(dir + "/", AccountCodec.JSON);
+        assert storage.get("after").equals(LogStructuredAccountStorageTest.getAccount("after"));
+        assert !Files.exists(dir.resolve("renamed.json"));
+        assert !Files.exists(dir.resolve("other.json"));
+        assert !Files.list(dir.resolve(".tmp")).findAny().isPresent();
+        storage.close();
+
+        // a crash while the intent itself was written, so the rename never happened
+        byte[] intent = encode(LogStructuredAccountStorageTest.getAccount("torn"));
+        Files.write(dir.resolve(".tmp/after.rename"), Arrays.copyOf(intent, intent.length / 2));
+
+        storage = new AccountStorage(dir + "/", AccountCodec.JSON);
+        assert storage.get("after").getLogin().equals("after");
+        assert !Files.exists(dir.resolve("torn.json"));
+        assert !Files.list(dir.resolve(".tmp")).findAny().isPresent();
+        storage.close();
+    }
+
+    /**
+     * A login longer than a record can hold is rejected, along with the rest of its batch
+     * @throws IOException
+     */
+    @Test
+    public void longLoginRejected() throws IOException {
+        Path file = Files.createTempDirectory("wal").resolve("wal.log");
+        WriteAheadLog wal = new WriteAheadLog(file, 0);
+        try {
+            wal.appendAll(WriteAheadLog.PUT, Arrays.asList("user", new String(new char[0x10000]).replace('\0', 'a')),
+                    Arrays.asList(new byte[1], new byte[1]));
+            assert false;
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assert wal.size() == 0 && wal.getRecords() == 0;
+        wal.close();
+    }
+}
@@ -0,0 +1,97 @@
+package load;
+
+import org.server.EmbeddedServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Properties;
+
+
+/**
+ * Sends requests over HTTP, to a running server or to an {@link EmbeddedServer} started in-process.
+ * Connections are kept alive and reused by the JDK, so every response is read to the end
+ */
+public class HttpTarget implements Target {
+
+    /**
+     * @param root URL of the API root, e.g. 'http://localhost:8080/api'
+     */
+    public HttpTarget(String root) {
+        this(root, null);
+    }
+
+    private HttpTarget(String root, EmbeddedServer server) {
+        this.root = root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+        this.server = server;
+    }
+
+    /**
+     * Starts an embedded server on a free port with a temporary data directory and cheap password hashing
+     * @param settings storage settings, see {@link org.AccountStorageFactory}
+     * @throws Exception if the server can't be started
+     */
+    public static HttpTarget startServer(Properties settings) throws Exception {
+        Properties server = new Properties();
+        server.setProperty("usermanager.password.iterations", "1000");
+        server.putAll(settings);
+        server.setProperty("port", "0");
+        server.setProperty("host", "localhost");
+        server.setProperty("usermanager.dataPath", Files.createTempDirectory("load").toString() + "/");
+        EmbeddedServer embedded = new EmbeddedServer(server);
+        embedded.start();
+        return new HttpTarget("http://localhost:" + embedded.getPort() + "/api", embedded);
+    }
+
+    @Override
+    public int send(String method, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(root + path).openConnection();
+        connection.setRequestMethod(method);
+        if(body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream is = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if(is != null) {
+                byte[] buffer = new byte[8192];
+                while(is.read(buffer) != -1) {
+                    // drained so that the connection can be reused
+                }
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @return URL of the API root without a trailing slash
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * Stops the embedded server, if this target has started it
+     * @throws IOException if the server fails to stop
+     */
+    @Override
+    public void close() throws IOException {
+        if(server != null) {
+            try {
+                server.stop();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private final String root;
+    private final EmbeddedServer server;
+}
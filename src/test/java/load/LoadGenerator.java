@@ -0,0 +1,341 @@
+package load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.metrics.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+import java.util.function.LongUnaryOperator;
+
+
+/**
+ * Sends requests to the API at a fixed rate and reports latency percentiles of every operation.
+ * The load is open: the i-th request is due at start + i / rate whatever happened to the previous ones,
+ * and its latency is counted from when it was due rather than from when it was sent. So when the server stalls,
+ * the requests that should have been sent meanwhile count the stall instead of quietly waiting for it
+ * (coordinated omission). The service time, from sending a request to its response, is reported along.
+ *
+ * Usage: LoadGenerator [--target server|resource|<API root URL>] [--workload mixed|read-heavy|rename-heavy|hot-keys]
+ *                      [--mix get=70,post=10,put=15,rename=0,delete=5] [--skew 0] [--accounts 10000]
+ *                      [--rate 1000] [--duration 30] [--threads 64] [--replay <file.jsonl>] [--speed 1]
+ * 'server' (default) starts an embedded server with a temporary data directory and sends HTTP requests to it,
+ * 'resource' calls the resource directly without HTTP; storage settings are taken from the system properties.
+ * The workload sets the mix and the skew, which --mix and --skew override. The accounts are created before the run.
+ * With --replay recorded requests are sent instead, one JSON object per line:
+ * {"method": "PUT", "path": "/accounts/user1", "body": {"name": "New"}, "at": <ms since the recording started>},
+ * at their recorded times sped up by --speed, or at the rate if they have no "at";
+ * lines without a method and a path are skipped.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(int i = 0; i < args.length; i += 2) {
+            if(!args[i].startsWith("--") || i + 1 == args.length || !OPTIONS.contains(" " + args[i].substring(2) + " ")) {
+                System.err.println("Usage: LoadGenerator [--target server|resource|<url>] [--workload <name>] " +
+                        "[--mix <weights>] [--skew <zipf exponent>] [--accounts 10000] [--rate 1000] " +
+                        "[--duration 30] [--threads 64] [--replay <file>] [--speed 1]");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        String workload = options.getOrDefault("workload", "mixed");
+        if(!WORKLOADS.containsKey(workload)) {
+            System.err.println("Unknown workload: " + workload + ", known ones are " + WORKLOADS.keySet());
+            System.exit(2);
+        }
+        String targetName = options.getOrDefault("target", "server");
+        int accounts = Integer.parseInt(options.getOrDefault("accounts", "10000"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+
+        Target target = targetName.equals("server") ? HttpTarget.startServer(System.getProperties())
+                : targetName.equals("resource") ? new ResourceTarget(System.getProperties())
+                : new HttpTarget(targetName);
+        try {
+            LoadGenerator generator = new LoadGenerator(target, Integer.parseInt(options.getOrDefault("threads", "64")));
+            if(options.containsKey("replay")) {
+                generator.replay(readRecording(options.get("replay"), System.err), rate,
+                        Double.parseDouble(options.getOrDefault("speed", "1")));
+            } else {
+                String[] preset = WORKLOADS.get(workload);
+                System.out.printf("Creating %d accounts%n", accounts);
+                generator.preload(accounts);
+                generator.run(new Workload(accounts, Workload.parseMix(options.getOrDefault("mix", preset[0])),
+                        Double.parseDouble(options.getOrDefault("skew", preset[1]))),
+                        rate, Double.parseDouble(options.getOrDefault("duration", "30")));
+            }
+            generator.printReport(System.out);
+        } finally {
+            target.close();
+        }
+    }
+
+    /**
+     * @param threads number of threads sending requests, which limits how many requests may be in flight
+     */
+    public LoadGenerator(Target target, int threads) {
+        this.target = target;
+        this.threads = threads;
+    }
+
+    /**
+     * Creates the accounts a {@link Workload} expects, as fast as the target takes them; nothing is measured
+     * @throws IOException if some account couldn't be created
+     */
+    public void preload(int accounts) throws IOException {
+        AtomicLong next = new AtomicLong();
+        LongAdder failed = new LongAdder();
+        runThreads(() -> {
+            for(long i = next.getAndIncrement(); i < accounts; i = next.getAndIncrement()) {
+                Workload.Request request = Workload.preload((int) i);
+                try {
+                    if(target.send(request.method, request.path, request.body) / 100 != 2) {
+                        failed.increment();
+                    }
+                } catch (IOException e) {
+                    failed.increment();
+                }
+            }
+        });
+        if(failed.sum() > 0) {
+            throw new IOException(failed.sum() + " of " + accounts + " accounts couldn't be created");
+        }
+    }
+
+    /**
+     * Sends requests of the workload at the rate for the duration
+     * @param rate requests per second
+     * @param seconds duration of the run
+     */
+    public void run(Workload workload, double rate, double seconds) {
+        long count = (long) Math.ceil(rate * seconds);
+        drive(count, i -> (long) (i * 1e9 / rate), i -> workload.next(ThreadLocalRandom.current()), workload);
+    }
+
+    /**
+     * Sends recorded requests at their recorded times, or at the rate if they have none
+     * @param speed how much faster than recorded the requests are sent
+     */
+    public void replay(Recording recording, double rate, double speed) {
+        drive(recording.requests.size(), i -> {
+            long at = recording.at.get((int) i);
+            return at >= 0 ? (long) (at * 1e6 / speed) : (long) (i * 1e9 / rate);
+        }, i -> recording.requests.get((int) i), null);
+    }
+
+    /**
+     * Reads a recording, see {@link LoadGenerator}, and reports the skipped lines
+     * @throws IOException if the file can't be read
+     */
+    public static Recording readRecording(String file, PrintStream log) throws IOException {
+        Recording recording = new Recording();
+        ObjectMapper mapper = new ObjectMapper();
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                JsonNode request;
+                try {
+                    request = line.trim().isEmpty() ? null : mapper.readTree(line);
+                } catch (IOException e) {
+                    request = null;
+                }
+                if(request == null || !request.path("method").isTextual() || !request.path("path").isTextual()) {
+                    skipped++;
+                    continue;
+                }
+                JsonNode body = request.get("body");
+                recording.requests.add(Workload.replay(request.get("method").asText().toUpperCase(),
+                        request.get("path").asText(), body == null || body.isNull() ? null
+                                : (body.isTextual() ? body.asText() : body.toString()).getBytes(StandardCharsets.UTF_8)));
+                recording.at.add(request.path("at").isNumber() ? request.get("at").asLong() : -1);
+            }
+        }
+        if(skipped > 0) {
+            log.printf("Skipped %d lines of %s that are not requests%n", skipped, file);
+        }
+        return recording;
+    }
+
+    /**
+     * Prints the throughput and a line of latency percentiles with the statuses for every operation sent
+     */
+    public void printReport(PrintStream out) {
+        long total = 0;
+        for(Stats stats : this.stats.values()) {
+            total += stats.getResponseTime().getCount();
+        }
+        double seconds = elapsedNanos / 1e9;
+        out.printf("Sent %d requests in %.1f s, %.0f requests/s, %d of them sent more than %d ms late%n",
+                total, seconds, total / seconds, late.sum(), LATE_NANOS / 1000000);
+        out.printf("%-8s %8s %8s %9s %9s %9s %9s %9s %13s  %s%n", "", "count", "errors",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "service p99", "statuses");
+        for(Map.Entry<Workload.Operation, Stats> entry : new TreeMap<>(this.stats).entrySet()) {
+            LatencyHistogram latency = entry.getValue().getResponseTime();
+            out.printf("%-8s %8d %8d %9.2f %9.2f %9.2f %9.2f %9.2f %13.2f  %s%n", entry.getKey(), latency.getCount(),
+                    entry.getValue().getErrors(), latency.getQuantileNanos(0.5) / 1e6,
+                    latency.getQuantileNanos(0.9) / 1e6, latency.getQuantileNanos(0.99) / 1e6,
+                    latency.getQuantileNanos(0.999) / 1e6, latency.getMaxNanos() / 1e6,
+                    entry.getValue().getServiceTime().getQuantileNanos(0.99) / 1e6,
+                    new TreeMap<>(entry.getValue().statuses));
+        }
+    }
+
+    /**
+     * @return measurements of the operation, null if it wasn't sent
+     */
+    public Stats getStats(Workload.Operation operation) {
+        return stats.get(operation);
+    }
+
+    /**
+     * @return number of requests sent more than 10 ms after they were due, because all threads were busy
+     */
+    public long getLate() {
+        return late.sum();
+    }
+
+    /**
+     * Sends the requests, each at its due time after the start, on all threads
+     * @param due offset of the due time of a request from the start, in nanoseconds
+     * @param workload to be told about completed requests, or null
+     */
+    private void drive(long count, LongUnaryOperator due, LongFunction<Workload.Request> requests, Workload workload) {
+        AtomicLong next = new AtomicLong();
+        long start = System.nanoTime() + START_DELAY_NANOS;
+        runThreads(() -> {
+            for(long i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                long dueTime = start + due.applyAsLong(i);
+                long wait;
+                while((wait = dueTime - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                Workload.Request request = requests.apply(i);
+                long sent = System.nanoTime();
+                if(sent - dueTime > LATE_NANOS) {
+                    late.increment();
+                }
+                int status;
+                try {
+                    status = target.send(request.method, request.path, request.body);
+                } catch (IOException e) {
+                    status = -1;
+                }
+                long done = System.nanoTime();
+                stats.computeIfAbsent(request.operation, operation -> new Stats()).record(done - dueTime, done - sent, status);
+                if(workload != null) {
+                    workload.completed(request, status);
+                }
+            }
+        });
+        elapsedNanos += System.nanoTime() - start;
+    }
+
+    private void runThreads(Runnable loop) {
+        List<Thread> running = new ArrayList<>(threads);
+        for(int i = 0; i < threads; i++) {
+            Thread thread = new Thread(loop, "load-" + i);
+            thread.start();
+            running.add(thread);
+        }
+        for(Thread thread : running) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Recorded requests and their times, in milliseconds since the recording started or -1
+     */
+    public static class Recording {
+        public int size() {
+            return requests.size();
+        }
+
+        private final List<Workload.Request> requests = new ArrayList<>();
+        private final List<Long> at = new ArrayList<>();
+    }
+
+    public static class Stats {
+        void record(long responseNanos, long serviceNanos, int status) {
+            responseTime.record(responseNanos);
+            serviceTime.record(serviceNanos);
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+
+        /**
+         * @return latencies from the due time of requests to their responses
+         */
+        public LatencyHistogram getResponseTime() {
+            return responseTime;
+        }
+
+        /**
+         * @return latencies from sending requests to their responses
+         */
+        public LatencyHistogram getServiceTime() {
+            return serviceTime;
+        }
+
+        /**
+         * @return number of requests without a response or with a 5xx one
+         */
+        public long getErrors() {
+            long errors = 0;
+            for(Map.Entry<Integer, LongAdder> status : statuses.entrySet()) {
+                if(status.getKey() < 0 || status.getKey() >= 500) {
+                    errors += status.getValue().sum();
+                }
+            }
+            return errors;
+        }
+
+        /**
+         * @return number of responses with the status, -1 for requests without a response
+         */
+        public long getStatusCount(int status) {
+            LongAdder count = statuses.get(status);
+            return count == null ? 0 : count.sum();
+        }
+
+        private final LatencyHistogram responseTime = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    }
+
+    private static final String OPTIONS = " target workload mix skew accounts rate duration threads replay speed ";
+    /**
+     * Mixes and skews of the named workloads
+     */
+    private static final Map<String, String[]> WORKLOADS = new HashMap<>();
+    static {
+        WORKLOADS.put("mixed", new String[] {"get=70,post=10,put=15,delete=5", "0"});
+        WORKLOADS.put("read-heavy", new String[] {"get=95,put=5", "0"});
+        WORKLOADS.put("rename-heavy", new String[] {"get=40,put=10,rename=50", "0"});
+        WORKLOADS.put("hot-keys", new String[] {"get=70,post=10,put=15,delete=5", "1.1"});
+    }
+    private static final long START_DELAY_NANOS = 10000000;
+    private static final long LATE_NANOS = 10000000;
+
+    private final Target target;
+    private final int threads;
+    private final Map<Workload.Operation, Stats> stats = new ConcurrentHashMap<>();
+    private final LongAdder late = new LongAdder();
+    private long elapsedNanos = 0;
+}
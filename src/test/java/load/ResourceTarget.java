@@ -0,0 +1,85 @@
+package load;
+
+import org.AccountStorageFactory;
+import org.PasswordService;
+import org.services.AccountResource;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+
+/**
+ * Calls the endpoints of an in-process {@link AccountResource} directly, without HTTP and the container,
+ * which measures the resource and the storage alone. Supports single accounts and creation:
+ * GET, PUT and DELETE of '/accounts/{login}' and POST of '/accounts', other requests are answered with 404
+ */
+public class ResourceTarget implements Target {
+
+    /**
+     * Opens a storage in a temporary directory and hashes passwords cheaply, unless the settings say otherwise
+     * @param settings storage settings, see {@link AccountStorageFactory}
+     * @throws IOException if the storage can't be opened
+     */
+    public ResourceTarget(Properties settings) throws IOException {
+        Properties resource = new Properties();
+        resource.setProperty("usermanager.password.iterations", "1000");
+        resource.putAll(settings);
+        resource.setProperty("usermanager.dataPath", Files.createTempDirectory("load").toString() + "/");
+        this.resource = new AccountResource(AccountStorageFactory.create(resource), PasswordService.create(resource),
+                resource);
+    }
+
+    @Override
+    public int send(String method, String path, byte[] body) throws IOException {
+        int query = path.indexOf('?');
+        String[] segments = (query < 0 ? path : path.substring(0, query)).split("/");
+        try {
+            if(segments.length == 2 && segments[1].equals("accounts") && method.equals("POST")) {
+                return resource.createAccount(new ByteArrayInputStream(body)).getStatus();
+            }
+            if(segments.length != 3 || !segments[1].equals("accounts")) {
+                return Response.Status.NOT_FOUND.getStatusCode();
+            }
+            String login = segments[2];
+            switch(method) {
+                case "GET":
+                    Response response = resource.getAccount(login, null);
+                    if(response.getEntity() != null) {
+                        ((StreamingOutput) response.getEntity()).write(DISCARD);
+                    }
+                    return response.getStatus();
+                case "PUT":
+                    return resource.updateAccount(login, null, new ByteArrayInputStream(body)).getStatus();
+                case "DELETE":
+                    resource.deleteAccount(login);
+                    return Response.Status.NO_CONTENT.getStatusCode();
+                default:
+                    return Response.Status.METHOD_NOT_ALLOWED.getStatusCode();
+            }
+        } catch (WebApplicationException e) {
+            return e.getResponse().getStatus();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private final AccountResource resource;
+}
@@ -0,0 +1,20 @@
+package load;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Where the load generator sends its requests
+ */
+public interface Target extends Closeable {
+
+    /**
+     * Sends a request and reads the whole response
+     * @param path relative to the root of the API, e.g. '/accounts/user1'
+     * @param body JSON body, null for requests without one
+     * @return the status of the response
+     * @throws IOException if no response is received
+     */
+    int send(String method, String path, byte[] body) throws IOException;
+}
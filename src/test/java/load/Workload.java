@@ -0,0 +1,179 @@
+package load;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A random mix of requests over a set of preloaded accounts.
+ * Reads, updates and renames pick one of the preloaded accounts, uniformly or, with a skew, by a Zipf distribution
+ * where a few hot accounts get most requests. A rename gives the account a fresh login, which the following
+ * requests use. Creations make fresh accounts, and deletions remove those, so the preloaded set stays the same;
+ * a deletion with nothing to delete becomes a creation.
+ */
+public class Workload {
+
+    /**
+     * @param accounts number of preloaded accounts
+     * @param mix weights of the operations, see {@link Operation}
+     * @param skew exponent of the Zipf distribution of accounts, 0 for a uniform one
+     * @throws IllegalArgumentException if the mix has no positive weights
+     */
+    public Workload(int accounts, Map<Operation, Integer> mix, double skew) {
+        this.logins = new AtomicReferenceArray<>(accounts);
+        for(int i = 0; i < accounts; i++) {
+            logins.set(i, "user" + i);
+        }
+        int total = 0;
+        for(Operation operation : Operation.values()) {
+            total += mix.getOrDefault(operation, 0);
+            weights[operation.ordinal()] = total;
+        }
+        if(total <= 0) {
+            throw new IllegalArgumentException("No operations in the mix");
+        }
+        this.totalWeight = total;
+        if(skew > 0) {
+            this.cdf = new double[accounts];
+            double sum = 0;
+            for(int i = 0; i < accounts; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for(int i = 0; i < accounts; i++) {
+                cdf[i] /= sum;
+            }
+        } else {
+            this.cdf = null;
+        }
+    }
+
+    /**
+     * @param mix comma-separated weights like 'get=70,post=10,put=15,rename=0,delete=5'
+     * @throws IllegalArgumentException if an operation is unknown or a weight is malformed
+     */
+    public static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for(String part : mix.split(",")) {
+            String[] weight = part.trim().split("=");
+            if(weight.length != 2) {
+                throw new IllegalArgumentException("Malformed weight: " + part);
+            }
+            weights.put(Operation.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * @return the request that creates the i-th preloaded account
+     */
+    public static Request preload(int i) {
+        return new Request(Operation.POST, "POST", "/accounts", account("user" + i), null, -1);
+    }
+
+    /**
+     * @return a recorded request, which is sent as is and doesn't change the accounts the workload follows
+     */
+    public static Request replay(String method, String path, byte[] body) {
+        return new Request(Operation.REPLAY, method, path, body, null, -1);
+    }
+
+    public Request next(Random random) {
+        int pick = random.nextInt(totalWeight);
+        Operation operation = Operation.GET;
+        while(pick >= weights[operation.ordinal()]) {
+            operation = Operation.values()[operation.ordinal() + 1];
+        }
+        if(operation == Operation.DELETE) {
+            String created = this.created.poll();
+            if(created != null) {
+                return new Request(Operation.DELETE, "DELETE", "/accounts/" + created, null, null, -1);
+            }
+            operation = Operation.POST;
+        }
+        if(operation == Operation.POST) {
+            String login = "load" + counter.incrementAndGet();
+            return new Request(Operation.POST, "POST", "/accounts", account(login), login, -1);
+        }
+        int slot = pickAccount(random);
+        String login = logins.get(slot);
+        switch(operation) {
+            case GET:
+                return new Request(Operation.GET, "GET", "/accounts/" + login, null, null, slot);
+            case PUT:
+                return new Request(Operation.PUT, "PUT", "/accounts/" + login,
+                        ("{\"name\":\"Name" + random.nextInt(1000000) + "\"}").getBytes(StandardCharsets.UTF_8),
+                        null, slot);
+            default:
+                String renamed = "user" + slot + "r" + counter.incrementAndGet();
+                return new Request(Operation.RENAME, "PUT", "/accounts/" + login,
+                        ("{\"login\":\"" + renamed + "\"}").getBytes(StandardCharsets.UTF_8), renamed, slot);
+        }
+    }
+
+    /**
+     * Follows the accounts changed by a completed request
+     * @param status of the response, or -1 if there was none
+     */
+    public void completed(Request request, int status) {
+        if(status < 200 || status >= 300) {
+            return;
+        }
+        if(request.operation == Operation.POST && request.newLogin != null) {
+            created.add(request.newLogin);
+        } else if(request.operation == Operation.RENAME) {
+            logins.compareAndSet(request.slot, request.path.substring("/accounts/".length()), request.newLogin);
+        }
+    }
+
+    private int pickAccount(Random random) {
+        if(cdf == null) {
+            return random.nextInt(logins.length());
+        }
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+    }
+
+    private static byte[] account(String login) {
+        return ("{\"login\":\"" + login + "\",\"password\":\"password\",\"name\":\"Name\"," +
+                "\"sex\":\"Male\",\"birthday\":\"1990-01-01\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public enum Operation {
+        GET, POST, PUT, RENAME, DELETE, REPLAY
+    }
+
+    public static class Request {
+        Request(Operation operation, String method, String path, byte[] body, String newLogin, int slot) {
+            this.operation = operation;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.newLogin = newLogin;
+            this.slot = slot;
+        }
+
+        final Operation operation;
+        final String method;
+        final String path;
+        final byte[] body;
+        /**
+         * Login of a created account that may be deleted later, or the login an account gets with a rename
+         */
+        final String newLogin;
+        /**
+         * Index of the preloaded account, -1 for other requests
+         */
+        final int slot;
+    }
+
+    private final AtomicReferenceArray<String> logins;
+    private final int[] weights = new int[Operation.values().length];
+    private final int totalWeight;
+    private final double[] cdf;
+    private final Queue<String> created = new ConcurrentLinkedQueue<>();
+    private final AtomicLong counter = new AtomicLong();
+}